@@ -38,6 +38,7 @@ import mxio.DataOutputStream;
 import mxio.MxAddress;
 import mxio.MxListener;
 import mxio.MxSocket;
+import mxio.Tuning;
 
 public final class MxIbis extends ibis.ipl.impl.Ibis 
 implements MxListener {
@@ -60,11 +61,16 @@ implements MxListener {
 	
             super(registryEventHandler, capabilities, credentials, 
                         applicationTag, types, userProperties, starter);
-		this.properties.checkProperties("ibis.ipl.impl.mx.",
-				new String[] {"ibis.ipl.impl.mx.mx"}, null, true);
+		String[] settings = Tuning.ibisPropertyNames();
+		String[] valid = new String[settings.length + 1];
+		valid[0] = "ibis.ipl.impl.mx.mx";
+		System.arraycopy(settings, 0, valid, 1, settings.length);
+		this.properties.checkProperties(Tuning.IBIS_PREFIX, valid, null, true);
 	}
 
 	protected byte[] getData() throws IOException {
+		// called by the constructor of Ibis, before mxio reads its settings
+		Tuning.configure(properties);
 		socket = new MxSocket(this);
 		myAddress = socket.getMyAddress();
 
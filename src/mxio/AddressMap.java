@@ -0,0 +1,144 @@
+package mxio;
+
+/**
+ * A hash map keyed by MX addresses, as (nicId, endpointId) pairs, that does
+ * not allocate on lookups. It uses open addressing with linear probing, like
+ * IntMap. It is not thread-safe, callers synchronize access.
+ */
+final class AddressMap<V> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private long[] nicIds;
+	private int[] endpointIds;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	AddressMap() {
+		nicIds = new long[INITIAL_CAPACITY];
+		endpointIds = new int[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	private static int hash(long nicId, int endpointId) {
+		int h = ((int) (nicId ^ (nicId >>> 32)) * 31 + endpointId) * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int slot(long nicId, int endpointId) {
+		int i = hash(nicId, endpointId) & mask;
+		while (values[i] != null 
+				&& (nicIds[i] != nicId || endpointIds[i] != endpointId)) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(long nicId, int endpointId) {
+		return (V) values[slot(nicId, endpointId)];
+	}
+
+	V get(MxAddress address) {
+		return get(address.nicId, address.endpointId);
+	}
+
+	/**
+	 * @return the previous value of the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V put(MxAddress address, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int i = slot(address.nicId, address.endpointId);
+		V old = (V) values[i];
+		nicIds[i] = address.nicId;
+		endpointIds[i] = address.endpointId;
+		values[i] = value;
+		if (old == null) {
+			size++;
+			if (size * 2 > values.length) {
+				resize(values.length * 2);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * @return the removed value, or null when the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(MxAddress address) {
+		int i = slot(address.nicId, address.endpointId);
+		V old = (V) values[i];
+		if (old == null) {
+			return null;
+		}
+		values[i] = null;
+		size--;
+		// move the entries after it back, so lookups do not stop at the gap
+		int j = i;
+		while (true) {
+			j = (j + 1) & mask;
+			if (values[j] == null) {
+				return old;
+			}
+			int home = hash(nicIds[j], endpointIds[j]) & mask;
+			// can the entry at j move to i without passing its home slot?
+			if (((j - home) & mask) >= ((j - i) & mask)) {
+				nicIds[i] = nicIds[j];
+				endpointIds[i] = endpointIds[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of slots, for iterating with valueAt()
+	 */
+	int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * @return the value in a slot, or null when the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		long[] oldNicIds = nicIds;
+		int[] oldEndpointIds = endpointIds;
+		Object[] oldValues = values;
+		nicIds = new long[capacity];
+		endpointIds = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int j = slot(oldNicIds[i], oldEndpointIds[i]);
+				nicIds[j] = oldNicIds[i];
+				endpointIds[j] = oldEndpointIds[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
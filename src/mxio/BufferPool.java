@@ -0,0 +1,288 @@
+package mxio;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A cache of buffers that threads can use without taking a lock. Every
+ * thread has two magazines, small stacks of buffers that only it uses. When
+ * both are empty, a thread takes a full magazine from the depot, and when
+ * both are full it hands one to the depot. The depot is a lock-free stack of
+ * magazines, so the threads only meet there once every magazine.
+ *
+ * The depot holds at most capacity buffers, buffers that do not fit are
+ * dropped. The magazines of a thread that ends go back to the depot once the
+ * thread is garbage collected: the pool finds them in a reference queue when
+ * a thread starts using it, or when the depot is empty.
+ */
+abstract class BufferPool<T> {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(BufferPool.class);
+
+	static final int MAGAZINE_SIZE = 16;
+
+	private static final class Magazine {
+		final Object[] buffers;
+		int count = 0;
+
+		Magazine(int size) {
+			buffers = new Object[size];
+		}
+
+		boolean isEmpty() {
+			return count == 0;
+		}
+
+		boolean isFull() {
+			return count == buffers.length;
+		}
+	}
+
+	/** a magazine in the depot, a new node for every push, so a pop cannot suffer from ABA */
+	private static final class Node {
+		final Magazine magazine;
+		Node next;
+
+		Node(Magazine magazine) {
+			this.magazine = magazine;
+		}
+	}
+
+	/** the magazines of a thread */
+	private final class Magazines {
+		Magazine loaded = new Magazine(magazineSize);
+		Magazine previous = new Magazine(magazineSize);
+		/** hits that are not added to the counter of the pool yet */
+		long hits = 0;
+	}
+
+	/** a thread that uses the pool, it is queued when the thread is collected */
+	private final class Owner extends WeakReference<Thread> {
+		final Magazines magazines;
+
+		Owner(Thread thread, Magazines magazines) {
+			super(thread, ended);
+			this.magazines = magazines;
+		}
+	}
+
+	private final String name;
+	private final int magazineSize;
+	private final int maxMagazines;
+
+	private final AtomicReference<Node> depot = new AtomicReference<Node>();
+	private final AtomicInteger depotSize = new AtomicInteger();
+
+	private final ThreadLocal<Magazines> magazines = new ThreadLocal<Magazines>() {
+		protected Magazines initialValue() {
+			returnEndedMagazines();
+			Magazines result = new Magazines();
+			owners.add(new Owner(Thread.currentThread(), result));
+			return result;
+		}
+	};
+
+	/** the threads that use the pool, so their magazines outlive them */
+	private final Set<Owner> owners = Collections.synchronizedSet(new HashSet<Owner>());
+	private final ReferenceQueue<Thread> ended = new ReferenceQueue<Thread>();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong drops = new AtomicLong();
+
+	/**
+	 * @param capacity the number of buffers the depot can hold
+	 */
+	BufferPool(String name, int capacity) {
+		this(name, capacity, MAGAZINE_SIZE);
+	}
+
+	/**
+	 * @param capacity the number of buffers the depot can hold
+	 * @param magazineSize the number of buffers in a magazine
+	 */
+	BufferPool(String name, int capacity, int magazineSize) {
+		this.name = name;
+		this.magazineSize = magazineSize;
+		this.maxMagazines = capacity / magazineSize;
+	}
+
+	/**
+	 * Called for a buffer that does not fit in the pool anymore.
+	 */
+	abstract void dropped(T buffer);
+
+	/**
+	 * @return a buffer out of the pool, or null when it is empty
+	 */
+	@SuppressWarnings("unchecked")
+	T get() {
+		Magazines m = magazines.get();
+		if(m.loaded.isEmpty()) {
+			if(m.previous.isEmpty()) {
+				Magazine full = pop();
+				if(full == null && returnEndedMagazines()) {
+					full = pop();
+				}
+				if(full == null) {
+					hits(m);
+					misses.incrementAndGet();
+					return null;
+				}
+				// the empty one is reused for the next magazine that fills up
+				m.previous = m.loaded;
+				m.loaded = full;
+			} else {
+				Magazine swap = m.loaded;
+				m.loaded = m.previous;
+				m.previous = swap;
+			}
+		}
+		m.hits++;
+		Magazine loaded = m.loaded;
+		loaded.count--;
+		T result = (T) loaded.buffers[loaded.count];
+		loaded.buffers[loaded.count] = null;
+		return result;
+	}
+
+	/**
+	 * Puts a buffer in the pool, or drops it when the pool is full.
+	 */
+	void put(T buffer) {
+		Magazines m = magazines.get();
+		if(m.loaded.isFull()) {
+			if(m.previous.isFull()) {
+				hits(m);
+				if(!push(m.previous)) {
+					drops.incrementAndGet();
+					if(logger.isInfoEnabled()) {
+						logger.info(name + ": pool full, throwing away");
+					}
+					dropped(buffer);
+					return;
+				}
+				m.previous = m.loaded;
+				m.loaded = new Magazine(magazineSize);
+			} else {
+				Magazine swap = m.loaded;
+				m.loaded = m.previous;
+				m.previous = swap;
+			}
+		}
+		Magazine loaded = m.loaded;
+		loaded.buffers[loaded.count] = buffer;
+		loaded.count++;
+	}
+
+	private Magazine pop() {
+		while(true) {
+			Node top = depot.get();
+			if(top == null) {
+				return null;
+			}
+			if(depot.compareAndSet(top, top.next)) {
+				depotSize.decrementAndGet();
+				return top.magazine;
+			}
+		}
+	}
+
+	/**
+	 * @return false when the depot is full
+	 */
+	private boolean push(Magazine magazine) {
+		if(depotSize.incrementAndGet() > maxMagazines) {
+			depotSize.decrementAndGet();
+			return false;
+		}
+		Node node = new Node(magazine);
+		while(true) {
+			Node top = depot.get();
+			node.next = top;
+			if(depot.compareAndSet(top, node)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Puts the magazines of the threads that ended in the depot.
+	 * @return true when there were any
+	 */
+	@SuppressWarnings("unchecked")
+	private boolean returnEndedMagazines() {
+		boolean result = false;
+		Owner owner;
+		while((owner = (Owner) ended.poll()) != null) {
+			owners.remove(owner);
+			Magazines m = owner.magazines;
+			hits(m);
+			returnMagazine(m.loaded);
+			returnMagazine(m.previous);
+			result = true;
+		}
+		return result;
+	}
+
+	@SuppressWarnings("unchecked")
+	private void returnMagazine(Magazine magazine) {
+		if(magazine.isEmpty()) {
+			return;
+		}
+		if(push(magazine)) {
+			return;
+		}
+		for (int i = 0; i < magazine.count; i++) {
+			drops.incrementAndGet();
+			dropped((T) magazine.buffers[i]);
+			magazine.buffers[i] = null;
+		}
+		magazine.count = 0;
+	}
+
+	private void hits(Magazines m) {
+		if(m.hits > 0) {
+			hits.addAndGet(m.hits);
+			m.hits = 0;
+		}
+	}
+
+	/**
+	 * @return the number of buffers taken from the pool. The hits of a thread
+	 * are counted when it exchanges a magazine with the depot or ends.
+	 */
+	long hits() {
+		return hits.get();
+	}
+
+	/**
+	 * @return the number of times the pool was empty
+	 */
+	long misses() {
+		return misses.get();
+	}
+
+	/**
+	 * @return the number of buffers that did not fit in the pool
+	 */
+	long drops() {
+		return drops.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + " pool: " + hits() + " hits, " + misses() + " misses, "
+				+ drops() + " drops, " + depotSize.get() + " magazines in the depot";
+	}
+}
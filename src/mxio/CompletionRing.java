@@ -0,0 +1,336 @@
+package mxio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A queue of request completions that the transport fills, so JavaMx can find
+ * out whether a request is finished without calling into the transport. The
+ * queue is a ring of records in a direct ByteBuffer. The transport writes a
+ * record for every request of the endpoint that finishes, Java reads them with
+ * plain loads, and keeps the outcome per handle until test() or wait()
+ * collects it.
+ *
+ * The layout of the buffer is: consumer counter, producer counter, each on its
+ * own cache line, followed by the records. A record contains the handle, the
+ * status (0 for success), the message length and the matching information, in
+ * native byte order.
+ *
+ * A thread that waits for a request polls the ring for a while, and then
+ * blocks. One thread at a time blocks in the transport until it writes a new
+ * record, the others wait until drain() reads records, or until that thread
+ * leaves the transport and one of them can take its place.
+ */
+final class CompletionRing {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(CompletionRing.class);
+
+	/** System property to enable the completion rings */
+	static final String ENABLED_PROPERTY = "mxio.completionring";
+
+	/** The number of records in a ring */
+	static final int CAPACITY = 4096;
+
+	static final int HEAD = 0;
+	static final int TAIL = 64;
+	static final int RECORDS = 128;
+
+	static final int RECORD_SIZE = 32;
+	static final int RECORD_HANDLE = 0;
+	static final int RECORD_STATUS = 4;
+	static final int RECORD_LENGTH = 8;
+	static final int RECORD_MATCH_INFO = 16;
+
+	/** 
+	 * How long a thread blocks in the transport at most, a wakeup that comes
+	 * just before it blocks is seen after this many milliseconds 
+	 */
+	private static final long MAX_BLOCK = 100;
+
+	/* the state of a handle, finished requests store the length, or -1 - status on errors */
+	private static final int IDLE = Integer.MIN_VALUE;
+	private static final int PENDING = Integer.MIN_VALUE + 1;
+
+	private static final boolean enabled = Boolean.getBoolean(ENABLED_PROPERTY);
+
+	/**
+	 * @return true when the endpoints should get a completion ring
+	 */
+	static boolean enabled() {
+		return enabled;
+	}
+
+	private final MxTransport transport;
+	private final int endpointNumber;
+	private final ByteBuffer ring;
+	private final int capacity;
+
+	/** records read so far, guarded by drainLock */
+	private long head = 0;
+	private final ReentrantLock drainLock = new ReentrantLock();
+	/** signalled when records were read, and when a thread leaves the transport */
+	private final Condition drained = drainLock.newCondition();
+	/** held by the thread that blocks in the transport */
+	private final ReentrantLock blockLock = new ReentrantLock();
+
+	private final int blockSize;
+	private final AtomicIntegerArray[] states;
+
+	private volatile int wakeups = 0;
+
+	private volatile int fence;
+
+	CompletionRing(MxTransport transport, int endpointNumber, int capacity) {
+		this.transport = transport;
+		this.endpointNumber = endpointNumber;
+		this.capacity = capacity;
+		ring = ByteBuffer.allocateDirect(RECORDS + capacity * RECORD_SIZE).order(
+				ByteOrder.nativeOrder());
+		blockSize = JavaMx.handles.blockSize;
+		states = new AtomicIntegerArray[JavaMx.handles.maxBlocks];
+	}
+
+	/**
+	 * @return the buffer the transport writes the records to
+	 */
+	ByteBuffer buffer() {
+		return ring;
+	}
+
+	/**
+	 * A full fence between the accesses to the ring, like ShmChannel uses
+	 * between the accesses to a channel.
+	 */
+	private void fence() {
+		fence = 0;
+		if(fence != 0) {
+			throw new Error("cannot happen");
+		}
+	}
+
+	private AtomicIntegerArray block(int handle) {
+		int b = handle / blockSize;
+		AtomicIntegerArray block = states[b];
+		if(block == null) {
+			synchronized (this) {
+				block = states[b];
+				if(block == null) {
+					block = new AtomicIntegerArray(blockSize);
+					for (int i = 0; i < blockSize; i++) {
+						block.set(i, IDLE);
+					}
+					states[b] = block;
+				}
+			}
+		}
+		return block;
+	}
+
+	/**
+	 * Reads the records the transport has written. When another thread is
+	 * already doing this, returns immediately.
+	 */
+	private void drain() {
+		if(!drainLock.tryLock()) {
+			return;
+		}
+		try {
+			fence();
+			long tail = ring.getLong(TAIL);
+			if(tail == head) {
+				return;
+			}
+			fence();
+			while(head < tail) {
+				int record = RECORDS + (int) (head % capacity) * RECORD_SIZE;
+				int handle = ring.getInt(record + RECORD_HANDLE);
+				int status = ring.getInt(record + RECORD_STATUS);
+				int result = (status == 0) ? ring.getInt(record + RECORD_LENGTH)
+						: -1 - status;
+				if(!block(handle).compareAndSet(handle % blockSize, PENDING, result)) {
+					// a request that was forgotten
+					if(logger.isDebugEnabled()) {
+						logger.debug("dropped completion of handle " + handle);
+					}
+				}
+				head++;
+			}
+			fence();
+			ring.putLong(HEAD, head);
+			drained.signalAll();
+		} finally {
+			drainLock.unlock();
+		}
+	}
+
+	/**
+	 * Blocks until records may have arrived, the deadline passed, or a 
+	 * wakeup came.
+	 * @param deadline The deadline in milliseconds, as in System.currentTimeMillis().
+	 * @param wakeups The number of wakeups when the caller started waiting.
+	 */
+	private void await(long deadline, int wakeups) {
+		long timeout = Math.min(deadline - System.currentTimeMillis(), MAX_BLOCK);
+		if(timeout <= 0) {
+			return;
+		}
+		if(blockLock.tryLock()) {
+			try {
+				long seen;
+				drainLock.lock();
+				try {
+					seen = head;
+				} finally {
+					drainLock.unlock();
+				}
+				transport.waitForCompletion(endpointNumber, seen, timeout);
+			} finally {
+				blockLock.unlock();
+			}
+			drainLock.lock();
+			try {
+				// another thread can block in the transport now
+				drained.signalAll();
+			} finally {
+				drainLock.unlock();
+			}
+			return;
+		}
+		drainLock.lock();
+		try {
+			if(wakeups == this.wakeups && blockLock.isLocked()) {
+				drained.await(timeout, TimeUnit.MILLISECONDS);
+			}
+		} catch (InterruptedException e) {
+			// ignore
+		} finally {
+			drainLock.unlock();
+		}
+	}
+
+	/**
+	 * Must be called before a request is started on the handle.
+	 */
+	void posted(int handle) {
+		block(handle).set(handle % blockSize, PENDING);
+	}
+
+	/**
+	 * The request on the handle will not be tested for anymore.
+	 */
+	void forgotten(int handle) {
+		drain();
+		block(handle).set(handle % blockSize, IDLE);
+	}
+
+	void wakeup() {
+		drainLock.lock();
+		try {
+			wakeups++;
+			drained.signalAll();
+		} finally {
+			drainLock.unlock();
+		}
+	}
+
+	/**
+	 * @return The message size, or -1 when the request is not finished yet.
+	 */
+	int test(int handle) throws MxException {
+		drain();
+		AtomicIntegerArray block = block(handle);
+		int index = handle % blockSize;
+		int result = block.get(index);
+		switch (result) {
+		case PENDING:
+			return -1;
+		case IDLE:
+			throw new MxException("Invalid Handle");
+		}
+		block.set(index, IDLE);
+		if(result < 0) {
+			throw new MxException("Request failed: status " + (-1 - result));
+		}
+		return result;
+	}
+
+	/**
+	 * @param timeout The timeout in milliseconds, 0 means no timeout.
+	 * @return The message size, or -1 on a timeout or a wakeup.
+	 */
+	int waitFor(int handle, long timeout) throws MxException {
+		long deadline = (timeout == 0) ? Long.MAX_VALUE
+				: System.currentTimeMillis() + timeout;
+		int wakeups = this.wakeups;
+		for (int i = 0; ; i++) {
+			int result = test(handle);
+			if(result >= 0 || wakeups != this.wakeups
+					|| System.currentTimeMillis() >= deadline) {
+				return result;
+			}
+			if(i < Config.RPOLLS) {
+				Thread.yield();
+			} else {
+				await(deadline, wakeups);
+			}
+		}
+	}
+
+	int testAny(int[] handles, int count, int[] sizes) throws MxException {
+		int first = -1;
+		for (int i = 0; i < count; i++) {
+			sizes[i] = (first == -1) ? test(handles[i]) : -1;
+			if(sizes[i] >= 0) {
+				first = i;
+			}
+		}
+		return first;
+	}
+
+	int testSome(int[] handles, int count, int[] sizes) throws MxException {
+		int finished = 0;
+		for (int i = 0; i < count; i++) {
+			try {
+				sizes[i] = test(handles[i]);
+			} catch (MxException e) {
+				// only the owner of the request sees the failure
+				if(logger.isDebugEnabled()) {
+					logger.debug("testSome(): request " + handles[i] + " failed: " + e.getMessage());
+				}
+				sizes[i] = MxTransport.FAILED;
+				finished++;
+				continue;
+			}
+			if(sizes[i] >= 0) {
+				finished++;
+			}
+		}
+		return finished;
+	}
+
+	int waitAny(int[] handles, int count, int[] sizes, long timeout) throws MxException {
+		long deadline = (timeout == 0) ? Long.MAX_VALUE
+				: System.currentTimeMillis() + timeout;
+		int wakeups = this.wakeups;
+		for (int i = 0; ; i++) {
+			int first = testAny(handles, count, sizes);
+			if(first >= 0 || count == 0 || wakeups != this.wakeups
+					|| System.currentTimeMillis() >= deadline) {
+				return first;
+			}
+			if(i < Config.RPOLLS) {
+				Thread.yield();
+			} else {
+				await(deadline, wakeups);
+			}
+		}
+	}
+}
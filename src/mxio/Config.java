@@ -1,42 +1,89 @@
 package mxio;
 
+/**
+ * The settings of mxio. The protocol constants are fixed, the others can be
+ * tuned per job with system properties or ibis properties, see Tuning.
+ */
 interface Config {	
     //'NIO' streams
 
     /**
-     * The header contains 1 byte for the byte order, one byte indicating the
-     * length of the padding at the end of the packet (in bytes), followed by 
-     * two unused bytes. Then there is 1 int (4 bytes) for the number of bytes
-     * sent (in bytes!), followed by four bytes containing the port number and 
-     * 4 empty bytes for alignment. 
+     * The header contains 1 byte for the byte order, one byte with flags,
+     * followed by a short with the sequence number of the message, the
+     * receiver puts the messages back in order with it. Then there are four
+     * bytes containing the port number. 
      * 
      */
     static final int SIZEOF_HEADER = 8;
     static final int BYTEORDER_BYTE = 0;
+    static final int FLAGS_BYTE = 1;
+    static final int SEQNO_BYTE = 2;
     static final int PORT_BYTE = 4;
 
-    static final int SEQ_SIZE = 1 * 1024;
-    static final int[] SEQ_MULTIPLIER = { 9,24 };
-    static final int SEQ_STEPS = SEQ_MULTIPLIER.length;
+    /** Flag of a message that announces a rendezvous, its payload is the size of the array that follows **/
+    static final byte FLAG_RENDEZVOUS = 1;
 
-    /** Byte buffer size used. **/
-    static final int START_BUFFER_SIZE    = (32 * 1024);
-    static final int BUFFER_SIZE          = (32 * 1024) - SIZEOF_HEADER;
-    static final int REPORTED_BUFFER_SIZE = (32 * 1024) - SIZEOF_HEADER;
+    /** Byte buffer size used, the header included. A socket rejects connections of senders with another size. **/
+    static final int START_BUFFER_SIZE    = Math.max(1024, Tuning.getInt(Tuning.BUFFER_SIZE, 32 * 1024));
+    static final int BUFFER_SIZE          = START_BUFFER_SIZE - SIZEOF_HEADER;
+    static final int REPORTED_BUFFER_SIZE = START_BUFFER_SIZE - SIZEOF_HEADER;
 
-    static final int DELIVERY_THREAD_BUFFERS = 32;
+    /** Direct buffers of at least this size are sent without copying them into the stream buffer **/
+    static final int GATHER_THRESHOLD = Tuning.getInt(Tuning.GATHER_THRESHOLD, 4 * 1024);
+    /** Maximum number of those buffers in one message, the stream buffer and header take 2 MX segments **/
+    static final int MAX_GATHER_SEGMENTS = MxTransport.MAX_SEGMENTS - 2;
 
-    /** Receive queue size of LowLatencyInputStream **/
-    static final int RECEIVE_QUEUE_SIZE = 16;
+    /** Primitive arrays of at least this size (in bytes) are sent as one message after a rendezvous, 0 disables this **/
+    static final int RENDEZVOUS_THRESHOLD = Math.max(0, Tuning.getInt(Tuning.RENDEZVOUS_THRESHOLD, 256 * 1024));
+    /** Maximum number of unfinished rendezvous sends per OutputStream, each one has its own staging region **/
+    static final int RENDEZVOUS_SENDS = 2;
+
+    /** Initial receive queue size of the DeliveryThread, see ReceiveDepth **/
+    static final int DELIVERY_THREAD_BUFFERS = Math.max(1, Tuning.getInt(Tuning.DELIVERY_THREAD_BUFFERS, 32));
+
+    /** Initial receive queue size of LowLatencyInputStream, see ReceiveDepth, and the initial credits the receiver grants a sender, see Credits **/
+    static final int RECEIVE_QUEUE_SIZE = Math.max(1, Tuning.getInt(Tuning.RECEIVE_QUEUE_SIZE, 16));
+
+    /** Bounds of the receive queue sizes, they adapt to the traffic, see ReceiveDepth **/
+    static final int MIN_RECEIVE_DEPTH = Math.max(1, Tuning.getInt(Tuning.MIN_RECEIVE_DEPTH, 2));
+    static final int MAX_RECEIVE_DEPTH = Math.max(MIN_RECEIVE_DEPTH, Tuning.getInt(Tuning.MAX_RECEIVE_DEPTH, 64));
+    /** Memory (in bytes) of the posted receives of a MxSocket, a receive queue only grows when it fits **/
+    static final long RECEIVE_MEMORY = Tuning.getLong(Tuning.RECEIVE_MEMORY, 64L * 1024 * 1024);
+
+    /** When true, idle LowLatencyInputStreams post no receives, a thread per MxSocket receives their messages, see SharedReceiveThread **/
+    static final boolean SHARED_RECEIVE = Tuning.getBoolean(Tuning.SHARED_RECEIVE, false);
+    /** Initial receive queue size of a busy LowLatencyInputStream when the receives are shared **/
+    static final int DEDICATED_RECEIVES = Math.max(1, Tuning.getInt(Tuning.DEDICATED_RECEIVES, 2));
 
     /** Flush queue size of OutputStreams **/
-    static final int FLUSH_QUEUE_SIZE = 4; //2 ~= triple buffering
+    static final int FLUSH_QUEUE_SIZE = Math.max(1, Tuning.getInt(Tuning.FLUSH_QUEUE_SIZE, 4)); //2 ~= triple buffering
+
+    /** Amount of polls of a shared memory channel before the reader parks, see SpinPolicy for the MX requests **/ 
+    static final int RPOLLS = Tuning.getInt(Tuning.POLLS, 1500); // Integer.MAX_VALUE; // 5 polls per micro? probably less
+
+    /** Profile of the SpinPolicy: latency, balanced or throughput **/
+    static final String WAIT_PROFILE = Tuning.getString(Tuning.WAIT_PROFILE, "balanced");
+
+    static final int BUFFER_CACHE_SIZE = Math.max(0, Tuning.getInt(Tuning.BUFFER_CACHE_SIZE, 128));
 
-    /** Amount of poll before a blocking call to complete a request **/ 
-    static final int SPOLLS = 3000; // Integer.MAX_VALUE; // 5 polls per micro? probably less
-    static final int RPOLLS = 1500; // Integer.MAX_VALUE; // 5 polls per micro? probably less
+    /** Number of threads that handle incoming connection requests, per MxSocket **/
+    static final int ACCEPT_THREADS = Math.max(1, Tuning.getInt(Tuning.ACCEPT_THREADS, 4));
+    /** Connection requests that can wait for an accept thread, before the control thread handles them itself **/
+    static final int ACCEPT_QUEUE_SIZE = Math.max(1, Tuning.getInt(Tuning.ACCEPT_QUEUE_SIZE, 64));
 
-    static final int SYNC_RATE = 600;//RECEIVE_QUEUE_SIZE * 2;
+    /** Maximum number of rails (boards) a MxSocket stripes the messages of a stream over **/
+    static final int MAX_RAILS = 4;
+    /** Maximum number of send endpoints per rail of a MxSocket **/
+    static final int MAX_SEND_ENDPOINTS = 4;
+    /** Number of rails a MxSocket uses, 0 means all boards **/
+    static final int RAILS = Tuning.getInt(Tuning.RAILS, 1);
+    /** Number of send endpoints per rail of a MxSocket **/
+    static final int SEND_ENDPOINTS = Math.max(1, Math.min(Tuning.getInt(Tuning.SEND_ENDPOINTS, 1), MAX_SEND_ENDPOINTS));
+    /** Messages of at least this size (header included) are striped over the rails, smaller ones use the first rail **/
+    static final int STRIPE_THRESHOLD = Tuning.getInt(Tuning.STRIPE_THRESHOLD, 8 * 1024);
+    /** Receive queue size of the other rails of a striped LowLatencyInputStream **/
+    static final int STRIPE_RECEIVE_QUEUE_SIZE = Math.max(1, Tuning.getInt(Tuning.STRIPE_RECEIVE_QUEUE_SIZE, 8));
 
-    static final int BUFFER_CACHE_SIZE = 128;
+    /** Links that are not used for this many milliseconds are disconnected, 0 disables this **/
+    static final long LINK_IDLE_TIMEOUT = Tuning.getLong(Tuning.LINK_IDLE_TIMEOUT, 60 * 1000);
 }
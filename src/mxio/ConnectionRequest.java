@@ -1,5 +1,7 @@
 package mxio;
 
+import java.nio.ByteBuffer;
+
 public class ConnectionRequest {
 	protected static final int PENDING = 0;
 	protected static final int ACCEPTED = 1;
@@ -8,6 +10,15 @@ public class ConnectionRequest {
 	
 	private final MxAddress source;
 	private final byte[] descriptor;
+	private final String channelName;
+	/** the number of rails the sender can stripe its messages over */
+	private final int rails;
+	/** the size of the message buffers of the sender */
+	private final int bufferSize;
+	private final long replyMatchData;
+	/** buffer and handle for the reply */
+	private final ByteBuffer buffer;
+	private final int handle;
 	
 	protected int status = PENDING;
 	protected byte[] replyMessage;
@@ -15,10 +26,18 @@ public class ConnectionRequest {
 	private MxSocket socket;
 	private boolean selectable = true;
 	
-	protected ConnectionRequest(MxSocket socket, MxAddress source, byte[] descriptor) {
+	protected ConnectionRequest(MxSocket socket, MxAddress source, byte[] descriptor,
+			String channelName, int rails, int bufferSize, long replyMatchData,
+			ByteBuffer buffer, int handle) {
 		this.socket = socket;
 		this.source = source;
 		this.descriptor = descriptor;
+		this.channelName = channelName;
+		this.rails = rails;
+		this.bufferSize = bufferSize;
+		this.replyMatchData = replyMatchData;
+		this.buffer = buffer;
+		this.handle = handle;
 		replyMessage = new byte[MxSocket.MAX_CONNECT_MSG_SIZE];
 	}
 
@@ -30,6 +49,36 @@ public class ConnectionRequest {
 		return descriptor;
 	}
 	
+	/**
+	 * @return the name of the shared memory channel the sender offered, or null
+	 */
+	protected String getChannelName() {
+		return channelName;
+	}
+	
+	protected int getRails() {
+		return rails;
+	}
+
+	protected int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * @return the matching data for the reply, it tells the sender which of its requests this is
+	 */
+	protected long getReplyMatchData() {
+		return replyMatchData;
+	}
+	
+	protected ByteBuffer buffer() {
+		return buffer;
+	}
+	
+	protected int handle() {
+		return handle;
+	}
+	
 	public void reject() {
 		status = REJECTED;
 	}
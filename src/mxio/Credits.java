@@ -0,0 +1,140 @@
+package mxio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The receiving side of the flow control of a stream. The sender has a
+ * credit for every message it may send before the receiver took the earlier
+ * ones, it starts with the window of the receiver when it accepted the
+ * connection, and blocks when it runs out. The receiver grants new credits for the messages its reader
+ * took, up to its window: the number of receives it keeps posted for the
+ * stream. It sends them in a CREDIT message once half of the window is
+ * free, so a reader that keeps up sends one credit message for every half
+ * window of messages.
+ *
+ * A CREDIT message holds the number of messages the sender may send in all,
+ * not the number of new credits, so a later one makes up for one that was
+ * lost. When the sender runs out of credits and none arrive, it sends a
+ * CREDIT_REQUEST, and the receiver sends its grant again.
+ *
+ * The messages of a shared memory channel are not counted, the channel
+ * has flow control of its own. Neither are the arrays that follow a
+ * rendezvous, the reader posts a receive for each of them. Neither are the
+ * messages of selectable streams: their delivery thread takes the messages
+ * of all of them off the endpoint and queues them per stream, so there is no
+ * number of posted receives to bound.
+ *
+ * Credits are used by the thread that reads the stream, and by the socket
+ * when a credit request arrives.
+ */
+final class Credits {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(Credits.class);
+
+	private final MxSocket socket;
+	private final MxAddress source;
+	private final long matchData;
+	/** the address of the receiver, followed by the number of messages granted */
+	private final ByteBuffer message;
+
+	/** the number of messages the sender may send in all, and the number the reader took */
+	private long granted = 0, taken = 0;
+	private long messages = 0, requests = 0;
+
+	Credits(MxSocket socket, MxAddress source, int port) {
+		this.socket = socket;
+		this.source = source;
+		this.matchData = Matching.construct(Matching.PROTOCOL_CREDIT, port);
+		message = ByteBuffer.allocateDirect(MxAddress.SIZE + SizeOf.LONG).order(
+				ByteOrder.BIG_ENDIAN);
+		message.put(socket.getMyAddress().toBytes());
+	}
+
+	/**
+	 * Called when the connection is accepted, the reply to the sender grants
+	 * the first credits.
+	 * @param window the number of receives posted for the stream
+	 */
+	synchronized void started(int window) {
+		granted = window;
+	}
+
+	/**
+	 * Called when the reader took a message.
+	 * @param window the number of receives posted for the stream
+	 */
+	synchronized void taken(int window) {
+		taken++;
+		long grant = taken + window;
+		if(grant - granted < Math.max(1, window / 2)) {
+			return;
+		}
+		if(send(grant)) {
+			granted = grant;
+		}
+	}
+
+	/**
+	 * Called when the sender asked for credits, it has none left.
+	 * @param window the number of receives posted for the stream
+	 */
+	synchronized void requested(int window) {
+		requests++;
+		// the sender may have missed the last grant
+		long grant = Math.max(granted, taken + window);
+		if(send(grant)) {
+			granted = grant;
+		}
+	}
+
+	/**
+	 * @param grant the number of messages the sender may send in all
+	 * @return false when the credits could not be sent, they are granted
+	 * with the next message the reader takes, or on a credit request
+	 */
+	private boolean send(long grant) {
+		int link = socket.lookup(source);
+		if(link == -1) {
+			return false;
+		}
+		int endpointNumber = socket.sendEndpointNumber();
+		message.putLong(MxAddress.SIZE, grant);
+		int handle;
+		try {
+			handle = JavaMx.handles.getHandle();
+		} catch (MxException e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("could not send credits: " + e.getMessage());
+			}
+			return false;
+		}
+		try {
+			JavaMx.send(message, 0, message.capacity(), endpointNumber, link,
+					handle, matchData);
+			if(JavaMx.wait(endpointNumber, handle, 1000) < 0) {
+				JavaMx.forget(endpointNumber, handle);
+				return false;
+			}
+		} catch (MxException e) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("could not send credits: " + e.getMessage());
+			}
+			return false;
+		} finally {
+			JavaMx.handles.releaseHandle(handle);
+		}
+		messages++;
+		return true;
+	}
+
+	@Override
+	public String toString() {
+		return "Credits: " + granted + " granted, " + taken + " taken, in "
+				+ messages + " credit messages, " + requests + " requests";
+	}
+}
@@ -2,6 +2,7 @@ package mxio;
 
 import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.BufferUnderflowException;
 
 import org.slf4j.Logger;
@@ -25,6 +26,8 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	
 	private MxReceiveBuffer buffer = null;
 	private long bytesRead = 0;
+	/** the flow control of the stream, used when creditWindow() is not 0 */
+	private final Credits credits;
     
 	protected DataInputStream(MxSocket socket, MxAddress source,
 			int endpointNumber, long matchData) throws IOException {
@@ -33,6 +36,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 		this.source = source;
 		this.endpointNumber = endpointNumber;
 		this.matchData = matchData;
+		credits = new Credits(socket, source, getPort());
 
 		if (logger.isDebugEnabled()) {
 			logger.debug("InputStream <-- " + source.toString() + " : " + 
@@ -64,10 +68,39 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 			socket.sendCloseMessage(this);
 			cleanUp();
 		}
+		if (logger.isDebugEnabled() && creditWindow() > 0) {
+			logger.debug(credits.toString());
+		}
+		socket.removeDataInputStream(getPort());
 	}
 	
 	protected abstract void cleanUp();
 
+	/**
+	 * Called by the socket when the sender ran out of credits, and did not
+	 * get new ones in time. Grants the credits that are due again, in case
+	 * the message that granted them was lost.
+	 */
+	void creditsRequested() {
+		int window = creditWindow();
+		if(window > 0) {
+			credits.requested(window);
+		}
+	}
+
+	/**
+	 * Called by the socket when it accepts the connection.
+	 * @return the credits the sender starts with, 0 when the stream has no
+	 * flow control
+	 */
+	int startCredits() {
+		int window = creditWindow();
+		if(window > 0) {
+			credits.started(window);
+		}
+		return window;
+	}
+
 	protected void senderClosedConnection() {
 		if (logger.isDebugEnabled()) {
 			logger.debug("senderClosedConnection()");
@@ -88,6 +121,77 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	
 	// TODO state the demanded properties of this function
 	protected abstract MxReceiveBuffer fetchBuffer() throws IOException;
+
+	/**
+	 * @return the number of receives posted for this stream, the sender gets
+	 * credits up to it, see Credits. 0 when the stream has no flow control.
+	 */
+	protected int creditWindow() {
+		return Config.RECEIVE_QUEUE_SIZE;
+	}
+
+	/**
+	 * Fetches the next buffer. When it announces a rendezvous, the array that
+	 * follows is received in a pooled staging region, and that is returned 
+	 * as the next buffer.
+	 */
+	private MxReceiveBuffer nextBuffer() throws IOException {
+		return nextBuffer(null);
+	}
+
+	/**
+	 * @param target A buffer the reader is going to fill, an array that fits
+	 * in it is received in it directly when it is a direct buffer. The bytes
+	 * of that array are skipped in the returned buffer.
+	 */
+	private MxReceiveBuffer nextBuffer(ByteBuffer target) throws IOException {
+		MxReceiveBuffer result = fetchBuffer();
+		if(result != null) {
+			int window = creditWindow();
+			if(window > 0) {
+				credits.taken(window);
+			}
+		}
+		if(result != null && result.isRendezvous()) {
+			result = receiveBulk(result, target);
+		}
+		return result;
+	}
+
+	private MxReceiveBuffer receiveBulk(MxReceiveBuffer announcement, 
+			ByteBuffer target) throws IOException {
+		int size = announcement.readInt();
+		MxReceiveBuffer.recycle(announcement);
+
+		boolean direct = target != null && target.isDirect() 
+				&& target.remaining() >= size;
+		int offset = direct ? target.position() : 0;
+		long bulkMatchData = Matching.setProtocol(matchData, Matching.PROTOCOL_BULK);
+		// only the header is received in the buffer itself
+		MxReceiveBuffer result = MxReceiveBuffer.get(0);
+		if(direct) {
+			result.post(endpointNumber, bulkMatchData, Matching.MASK_ALL, 
+					target, offset, size);
+		} else {
+			result.postBulk(endpointNumber, bulkMatchData, Matching.MASK_ALL, size);
+		}
+		while(!result.finish(1000, null)) {
+			if(closed) {
+				result.cancel();
+				MxReceiveBuffer.recycle(result);
+				throw new EOFException();
+			}
+		}
+		if (logger.isDebugEnabled()) {
+			logger.debug("received an array of " + size + " bytes after a rendezvous");
+		}
+		if(direct) {
+			target.position(offset + size);
+			result.skip(size);
+			bytesRead += size;
+		}
+		return result;
+	}
 	
 	@Override
 	public void mark(int arg0) {
@@ -111,7 +215,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	byte result = buffer.readByte();
 	        	bytesRead++;
@@ -120,7 +224,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -151,7 +255,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -163,7 +267,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -180,6 +284,78 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     	}   	
     }
        
+    /**
+     * Reads at most dst.remaining() bytes into dst. Blocks until at least one
+     * byte is available.
+     * @return the number of bytes read, or -1 at the end of the stream
+     */
+    public int read(ByteBuffer dst) throws IOException {
+    	if(!dst.hasRemaining()) {
+    		return 0;
+    	}
+    	while(true) {
+    		if(closed) {
+    			return -1;
+    		}
+
+    		if(buffer == null || buffer.remaining() == 0) {
+    			if(buffer != null) {
+    				MxReceiveBuffer.recycle(buffer);
+    				buffer = null;
+    			}
+    			int start = dst.position();
+    			buffer = nextBuffer(dst);
+    			if(buffer == null && senderClosed) {
+    				if (logger.isDebugEnabled()) {
+    					logger.debug("senderClosed detected in read()");
+    				}
+    				closed = true;
+    				cleanUp();
+           	 		return -1;
+           	 	}
+    			if(dst.position() > start) {
+    				// an array was received in dst directly
+    				return dst.position() - start;
+    			}
+    		} else {
+    			int result = buffer.read(dst);
+    			bytesRead += result;
+    			return result;
+    		}
+    	}   	
+    }
+
+    /**
+     * Fills dst. When a large array written by the sender fits in dst and
+     * dst is a direct buffer, the array is received in dst without copying it.
+     * @throws EOFException when the stream ends before dst is full
+     */
+    public void readFully(ByteBuffer dst) throws IOException {
+    	while(dst.hasRemaining()) {
+    		if(closed) {
+    			throw new EOFException();
+    		}
+
+    		if(buffer == null || buffer.remaining() == 0) {
+    			if(buffer != null) {
+    				MxReceiveBuffer.recycle(buffer);
+    				buffer = null;
+    			}
+    			buffer = nextBuffer(dst);
+    			if(buffer == null && senderClosed) {
+    				if (logger.isDebugEnabled()) {
+    					logger.debug("senderClosed detected in read()");
+    				}
+    				closed = true;
+    				cleanUp();
+    				throw new EOFException();
+           	 	}
+    		} else {
+    			bytesRead += buffer.read(dst);
+    		}
+    	}
+    }
+
     @Override
 	public int bufferSize() {
     	return Config.REPORTED_BUFFER_SIZE;
@@ -221,7 +397,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -233,7 +409,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -259,7 +435,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -271,7 +447,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -297,7 +473,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -309,7 +485,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -335,7 +511,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -347,7 +523,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -373,7 +549,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -385,7 +561,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -411,7 +587,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -423,7 +599,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -449,7 +625,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		}
 
     		if(buffer == null) {
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -461,7 +637,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
     		} else if(buffer.remaining() == 0) {
     			MxReceiveBuffer.recycle(buffer);
     			buffer = null;
-    			buffer = fetchBuffer();
+    			buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -485,7 +661,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	char result = buffer.readChar();
 	        	bytesRead += SizeOf.CHAR;
@@ -494,7 +670,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -515,7 +691,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	double result = buffer.readDouble();
 	        	bytesRead += SizeOf.DOUBLE;
@@ -524,7 +700,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -545,7 +721,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	float result = buffer.readFloat();
 	        	bytesRead += SizeOf.FLOAT;
@@ -554,7 +730,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -575,7 +751,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	int result = buffer.readInt();
 	        	bytesRead += SizeOf.INT;
@@ -584,7 +760,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -605,7 +781,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	long result = buffer.readLong();
 	        	bytesRead += SizeOf.LONG;
@@ -614,7 +790,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
@@ -635,7 +811,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	while(buffer.remaining() == 0) {
 	        		MxReceiveBuffer.recycle(buffer);
 	    			buffer = null;
-		        	buffer = fetchBuffer();
+		        	buffer = nextBuffer();
 	        	}
 	        	short result = buffer.readShort();
 	        	bytesRead += SizeOf.SHORT;
@@ -644,7 +820,7 @@ public abstract class DataInputStream extends ibis.io.DataInputStream {
 	        	if (logger.isDebugEnabled()) {
 		            logger.debug("NullPointerException");
 		        }
-	        	buffer = fetchBuffer();
+	        	buffer = nextBuffer();
     			if(buffer == null && senderClosed) {
     				if (logger.isDebugEnabled()) {
     					logger.debug("senderClosed detected in read()");
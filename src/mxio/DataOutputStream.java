@@ -2,6 +2,8 @@ package mxio;
 
 import java.io.IOException;
 import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,7 +20,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 
 	boolean closed = false;
 	boolean receiverClosed = false;
+	/** the number of messages since the last flush */
 	int sequenceNo = 0;
+	/** the bytes sent since the last flush */
+	private long burst = 0;
+
+	/** chooses the message sizes of this stream */
+	final MessageSizer sizer = new MessageSizer();
 	
 	
 
@@ -33,9 +41,10 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 	}
 
 	void nextBuffer() {
-		buffer = MxSendBuffer.get();
-		if(sequenceNo < Config.SEQ_STEPS) {
-			buffer.setLimit(Config.SEQ_SIZE * Config.SEQ_MULTIPLIER[sequenceNo]);
+		int limit = sizer.segment(sequenceNo);
+		buffer = MxSendBuffer.get(SizeClass.of(limit + Config.SIZEOF_HEADER));
+		if(limit < Config.BUFFER_SIZE) {
+			buffer.setLimit(limit);
 			sequenceNo++;
 		}
 	}
@@ -99,7 +108,9 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			return;
 		}
 		buffer.flip();
-		bytesWritten += doSend(buffer);
+		long size = doSend(buffer);
+		bytesWritten += size;
+		burst += size;
 
 		// get a new buffer
 		nextBuffer();
@@ -121,6 +132,41 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 		}
 		doFlush();
 		flushed = true;
+		sizer.flushed(burst);
+		burst = 0;
+		sequenceNo = 0;
+	}
+
+	/**
+	 * Sends the data written so far, like flush(), but does not wait for the
+	 * sends to finish. The progress engine of the socket drives them, so the
+	 * writer can compute the next block meanwhile.
+	 * @return a future that is done when the sends of all data written so 
+	 * far have finished
+	 */
+	public Future<Void> flushAsync() throws IOException {
+		FlushFuture future = new FlushFuture();
+		flushAsync(future);
+		future.seal();
+		return future;
+	}
+
+	final void flushAsync(FlushFuture future) throws IOException {
+		if (closed) {
+			throw new IOException("Stream is closed");
+		}
+		if (receiverClosed) {
+			doClose();
+			throw new IOException("Stream is closed by receiver");
+		}
+		
+		if(buffer != null) {
+			send();
+		}
+		doFlushAsync(future);
+		flushed = true;
+		sizer.flushed(burst);
+		burst = 0;
 		sequenceNo = 0;
 	}
 
@@ -128,10 +174,31 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 		return Config.REPORTED_BUFFER_SIZE;
 	}
 
+	/**
+	 * @return the size of the first message after a flush, as chosen from
+	 * the measurements of this stream
+	 */
+	public int firstMessageSize() {
+		return sizer.segment(0);
+	}
+
+	/**
+	 * @return the number of buffered bytes at which this stream sends a 
+	 * message at the end of a write, without waiting for a full buffer
+	 */
+	public int eagerSendThreshold() {
+		return sizer.eagerThreshold();
+	}
+
 	abstract long doSend(MxSendBuffer buffer) throws IOException;
 
 	abstract void doFlush() throws IOException;
 
+	/**
+	 * Adds the sends that did not finish yet to a flush.
+	 */
+	abstract void doFlushAsync(FlushFuture future) throws IOException;
+
 	abstract void doClose() throws IOException;
 
 	public long bytesWritten() {
@@ -172,6 +239,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.BYTE);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -196,6 +270,72 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 		writeArray(b, off, len);
 	}
 
+	/**
+	 * Writes the remaining bytes of a buffer. A large direct buffer is sent 
+	 * without copying it, so it must not be modified until the stream is 
+	 * flushed. Other buffers are copied once.
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		if(closed) {
+			throw new IOException("Stream is closed");
+		}
+		if(receiverClosed) {
+			doClose();
+			throw new IOException("Stream is closed by receiver");
+		}
+
+		put(src);
+		startupSend();
+	}
+
+	/**
+	 * Writes the remaining bytes of a number of buffers. Large direct buffers
+	 * are sent without copying them, so the buffers must not be modified
+	 * until the stream is flushed.
+	 */
+	public void write(ByteBuffer[] buffers) throws IOException {
+		if(closed) {
+			throw new IOException("Stream is closed");
+		}
+		if(receiverClosed) {
+			doClose();
+			throw new IOException("Stream is closed by receiver");
+		}
+
+		for (ByteBuffer src : buffers) {
+			put(src);
+		}
+		startupSend();
+	}
+
+	private void put(ByteBuffer src) throws IOException {
+		if (!src.isDirect()) {
+			MxIOBuffer region = rendezvousRegion(src.remaining(), SizeOf.BYTE);
+			if (region != null) {
+				region.buf.put(src);
+				rendezvous(region);
+				return;
+			}
+		}
+		while (src.hasRemaining()) {
+			int size = Math.min(src.remaining(), buffer.gatherRoom());
+			if (src.isDirect() && size >= Config.GATHER_THRESHOLD
+					&& buffer.gather(src, size)) {
+				src.position(src.position() + size);
+				continue;
+			}
+			if (buffer.payload.remaining() == 0) {
+				send();
+				continue;
+			}
+			size = Math.min(src.remaining(), buffer.payload.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + size);
+			buffer.payload.buf.put(part);
+			src.position(src.position() + size);
+		}
+	}
+
 
 	@Override
 	public void writeArray(boolean[] array, int off, int len)
@@ -215,6 +355,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.CHAR);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -241,6 +388,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.DOUBLE);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -266,6 +420,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.FLOAT);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -291,6 +452,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.INT);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -316,6 +484,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.LONG);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -341,6 +516,13 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 			doClose();
 			throw new IOException("Stream is closed by receiver");
 		}
+
+		MxIOBuffer region = rendezvousRegion(len, SizeOf.SHORT);
+		if(region != null) {
+			region.put(array, off, len);
+			rendezvous(region);
+			return;
+		}
 			 
 		int remaining = len;
 		int offset = off;
@@ -504,9 +686,59 @@ public abstract class DataOutputStream extends ibis.io.DataOutputStream {
 		startupSend();
 	}
 	
+	/**
+	 * @return a staging region for an array of len elements of elementSize
+	 * bytes, when the array is large enough to be sent with a rendezvous.
+	 * Null when it is written into the stream buffers.
+	 */
+	private MxIOBuffer rendezvousRegion(int len, int elementSize) throws IOException {
+		long size = (long) len * elementSize;
+		if(Config.RENDEZVOUS_THRESHOLD == 0 || size < Config.RENDEZVOUS_THRESHOLD
+				|| size > Integer.MAX_VALUE) {
+			return null;
+		}
+		return stagingRegion((int) size);
+	}
+
+	/**
+	 * Sends an array in a staging region with a rendezvous: the buffered
+	 * bytes go first, then a message that announces the size of the array,
+	 * then the array itself in one message. The receiver posts a receive for 
+	 * exactly that message when it reads the announcement.
+	 */
+	private void rendezvous(MxIOBuffer region) throws IOException {
+		region.flip();
+		int size = region.remaining();
+		send();
+		buffer.setFlags(Config.FLAG_RENDEZVOUS);
+		buffer.payload.putInt(size);
+		buffer.flip();
+		doSend(buffer);
+		nextBuffer();
+		doSendBulk(region);
+		bytesWritten += size;
+		burst += size;
+		flushed = false;
+	}
+
+	/**
+	 * @return a staging region of size bytes for a rendezvous send, or null
+	 * when this stream does not send arrays with a rendezvous
+	 */
+	MxIOBuffer stagingRegion(int size) throws IOException {
+		return null;
+	}
+
+	/**
+	 * Sends the remaining bytes of a staging region as one message, after its
+	 * announcement. The region belongs to the stream again when the send is finished.
+	 */
+	void doSendBulk(MxIOBuffer region) throws IOException {
+		throw new IOException("rendezvous not supported by " + this);
+	}
+
 	void startupSend() throws IOException {
-//		if(flushed && buffer.payload.position() > Config.START_BUFFER_SIZE) {
-		if(buffer.payload.position() > Config.START_BUFFER_SIZE) {
+		if(buffer.payload.position() >= sizer.eagerThreshold()) {
 			send();
 		}
 	}
@@ -1,6 +1,10 @@
 package mxio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.LinkedList;
+import java.util.concurrent.locks.ReentrantLock;
 
 import mxio.JavaMx.HandleManager;
 
@@ -12,23 +16,60 @@ public class DataOutputStreamImpl extends DataOutputStream {
 	private static final Logger logger = LoggerFactory
 	.getLogger(DataOutputStreamImpl.class);
 
+	/** the longest we wait for the receiver to take the array of a rendezvous send */
+	private static final long BULK_TIMEOUT = 30 * 1000;
+
 	private class FlushQueue {
+		/** the endpoint and link of the rail this queue sends over */
+		final int endpointNumber;
+		final int link;
+
 		int[] handles;
 		MxSendBuffer[] queue;
+		/** size of the finished sends, -1 when not finished yet */
+		int[] sizes;
+		/** 
+		 * when the sends were posted and when a blocking wait saw them finish,
+		 * in nanoseconds. posted is 0 for the sends that are not measured: a
+		 * send found finished by a test finished at some time since the last
+		 * test, so that would measure how often we test.
+		 */
+		long[] posted, finished;
+		/** scratch arrays for testing the unfinished sends */
+		int[] pending, slots, results;
 
 		int head;
 		int elements;
+		/** the number of sends posted and retired so far */
+		long posts = 0, retired = 0;
 
 		int size;
 		private boolean destroyed = false;
 
-		FlushQueue(int size) {
+		FlushQueue(int size, int endpointNumber, int link) throws MxException {
+			this.endpointNumber = endpointNumber;
+			this.link = link;
 			head = elements = 0;
 			this.size = size;
 			queue = new MxSendBuffer[size];
 			handles = new int[size];
+			sizes = new int[size];
+			posted = new long[size];
+			finished = new long[size];
+			pending = new int[size];
+			slots = new int[size];
+			results = new int[size];
 			for (int i = 0; i < size; i++) {
-				handles[i] = JavaMx.handles.getHandle();
+				try {
+					handles[i] = JavaMx.handles.getHandle();
+				} catch (MxException e) {
+					for (int j = 0; j < i; j++) {
+						JavaMx.handles.releaseHandle(handles[j]);
+					}
+					destroyed = true;
+					throw e;
+				}
+				sizes[i] = -1;
 			}
 		}
 
@@ -36,64 +77,128 @@ public class DataOutputStreamImpl extends DataOutputStream {
 			destroy();
 		}
 
+		/**
+		 * Waits until the send at the head of the queue is finished. All 
+		 * outstanding sends are tested at once, and every finished send at 
+		 * the front of the queue is retired.
+		 */
 		void flushHead() throws MxException {
 			if (elements == 0) {
 				return;
 			}
 
-			MxSendBuffer buf = queue[head];
-			if(buf == null) {
-				throw new Error("got null buf from queue");
-			}
-			queue[head] = null;
-                        
-                       // long t1 = System.nanoTime();
-                        
-			int msgSize = -1;
-
-			msgSize = JavaMx.test(endpointNumber, handles[head]);
-			int i = 1;
-			while(msgSize < 0 && i < Config.SPOLLS) {
-				Thread.yield();
-				msgSize = JavaMx.test(endpointNumber, handles[head]);
-				i++;
-			}
-
-                        /*
-                        long t2 = System.nanoTime();
-                        
-                        if (msgSize < 0) {                            
-                            System.out.println("No send after " + i + " polls " + (t2-t1));
-                        } else { 
-                            System.out.println("Message send after " + i + " polls " + (t2-t1));
-                        }
-                        */
-			//msgSize = JavaMx.test(endpointNumber, handles[head], Config.SPOLLS);
-
-			while(msgSize < 0) {
-				msgSize = JavaMx.wait(endpointNumber, handles[head]);
-			}
-
-			head = (head+1) % size;
-			elements--;
-			if(msgSize == -1) {
-				//	error
-				throw new Error("send error 1b");
-			}
-			if (msgSize != buf.msgSize() ) {
-				//error
-				throw new Error("send error 2b");
-			}
-			MxSendBuffer.recycle(buf);
-                      /*  
-                        long t3 = System.nanoTime();
-                        
-                        System.out.println("Message send after " + i + " polls+wait " + (t3-t1));
-                      */  
-			return;
+			if(sizes[head] < 0) {
+				int unfinished = testPending();
+				int polls = 1;
+				while(sizes[head] < 0 && polls < policy.budget()) {
+					policy.pause(polls);
+					unfinished = testPending();
+					polls++;
+				}
+
+				if(sizes[head] >= 0) {
+					policy.spun();
+				} else {
+					policy.parked();
+				}
+				while(sizes[head] < 0) {
+					int index = JavaMx.waitAny(endpointNumber, pending, unfinished, results, 0);
+					if(index >= 0) {
+						sizes[slots[index]] = results[index];
+						finished[slots[index]] = System.nanoTime();
+						if(sizes[head] < 0) {
+							// leave the finished send out of the next wait
+							unfinished = testPending();
+						}
+					}
+				}
+			}
+
+			retire();
 		}
 
-		boolean doSend(MxSendBuffer buffer, boolean synchronous) throws MxException {
+		/**
+		 * Retires the finished sends at the front of the queue, without
+		 * waiting for the others.
+		 */
+		void progress() throws MxException {
+			if(elements > 0 && sizes[head] < 0) {
+				testPending();
+			}
+			retire();
+		}
+
+		private void retire() {
+			while(elements > 0 && sizes[head] >= 0) {
+				MxSendBuffer buf = queue[head];
+				if(buf == null) {
+					throw new Error("got null buf from queue");
+				}
+				queue[head] = null;
+				int msgSize = sizes[head];
+				sizes[head] = -1;
+				long nanos = posted[head] == 0 ? -1 : finished[head] - posted[head];
+
+				head = (head+1) % size;
+				elements--;
+				retired++;
+				if (msgSize != buf.msgSize() ) {
+					//error
+					throw new Error("send error 2b");
+				}
+				if(nanos >= 0) {
+					sizer.sent(msgSize, nanos);
+				}
+				MxSendBuffer.recycle(buf);
+			}
+		}
+
+		/**
+		 * Tests the unfinished sends in the queue with one call.
+		 * @return the number of sends that are still unfinished, in pending[], 
+		 * oldest first
+		 */
+		private int testPending() throws MxException {
+			int count = 0;
+			for (int i = 0; i < elements; i++) {
+				int slot = (head + i) % size;
+				if(sizes[slot] < 0) {
+					pending[count] = handles[slot];
+					slots[count] = slot;
+					count++;
+				}
+			}
+			if(JavaMx.testSome(endpointNumber, pending, count, results) > 0) {
+				int unfinished = 0;
+				boolean failed = false;
+				for (int i = 0; i < count; i++) {
+					if(results[i] == MxTransport.FAILED) {
+						// the buffer is retired as usual, the writer gets the failure
+						sizes[slots[i]] = (int) queue[slots[i]].msgSize();
+						posted[slots[i]] = 0;
+						failed = true;
+					} else if(results[i] >= 0) {
+						sizes[slots[i]] = results[i];
+						posted[slots[i]] = 0;
+					} else {
+						// the finished requests are gone, leave them out of a wait
+						pending[unfinished] = pending[i];
+						slots[unfinished] = slots[i];
+						unfinished++;
+					}
+				}
+				count = unfinished;
+				if(failed) {
+					throw new MxException("send failed");
+				}
+			}
+			return count;
+		}
+
+		/**
+		 * @param matchData the matching data of the message, with its size class
+		 */
+		boolean doSend(MxSendBuffer buffer, boolean synchronous, long matchData) throws MxException {
 			if(elements == size) {
 				return false;
 			}
@@ -101,19 +206,46 @@ public class DataOutputStreamImpl extends DataOutputStream {
 			int tail = (head + elements) % size;
 			queue[tail] = buffer;
 			elements++;
+			posts++;
+			// a synchronous send waits for the receiver, it says nothing about the link
+			posted[tail] = synchronous ? 0 : System.nanoTime();
 
-			if(synchronous) {
+			if(buffer.segmentCount > 0) {
+				sendSegments(buffer, synchronous, handles[tail], matchData);
+			} else if(synchronous) {
 				JavaMx.sendSynchronous(buffer.header.buf, buffer.header.capacity(), buffer.payload.buf, buffer.payload.remaining(), endpointNumber, 
-						myLink, handles[tail], matchData);
+						link, handles[tail], matchData);
 			} else {
 				JavaMx.send(buffer.header.buf, buffer.header.capacity(), buffer.payload.buf, buffer.payload.remaining(), endpointNumber, 
-					myLink, handles[tail], matchData);
+					link, handles[tail], matchData);
 			}
 
 			return true;
 
 		}
 
+		/**
+		 * Sends the header, the payload and the gathered buffers as one message.
+		 */
+		private void sendSegments(MxSendBuffer buffer, boolean synchronous, int handle, long matchData) {
+			int count = buffer.segmentCount + 2;
+			ByteBuffer[] segments = new ByteBuffer[count];
+			int[] lengths = new int[count];
+			segments[0] = buffer.header.buf;
+			lengths[0] = buffer.header.capacity();
+			segments[1] = buffer.payload.buf;
+			lengths[1] = buffer.payload.remaining();
+			for (int i = 2; i < count; i++) {
+				segments[i] = buffer.segments[i - 2];
+				lengths[i] = segments[i].remaining();
+			}
+			if(synchronous) {
+				JavaMx.sendSynchronous(segments, lengths, endpointNumber, link, handle, matchData);
+			} else {
+				JavaMx.send(segments, lengths, endpointNumber, link, handle, matchData);
+			}
+		}
+
 		boolean isEmpty() {
 			return elements == 0;
 		}
@@ -121,7 +253,9 @@ public class DataOutputStreamImpl extends DataOutputStream {
 		void destroy() {
 			if(!destroyed ) {
 				for (int i = head; i < head + elements; i++) {
-					JavaMx.forget(endpointNumber, handles[i%size]);
+					if(sizes[i%size] < 0) {
+						JavaMx.forget(endpointNumber, handles[i%size]);
+					}
 				}
 
 				for (int i = 0; i < size; i++) {
@@ -136,66 +270,452 @@ public class DataOutputStreamImpl extends DataOutputStream {
 		}
 	}
 
-	private FlushQueue flushQueue;
+	/** a flushAsync() of which the sends did not finish yet */
+	private static final class PendingFlush {
+		/** the number of sends of each queue that have to be retired */
+		final long[] marks;
+		final FlushFuture future;
+
+		PendingFlush(long[] marks, FlushFuture future) {
+			this.marks = marks;
+			this.future = future;
+		}
+	}
 
+	/** one queue per rail, the first one is used for the messages that are not striped */
+	private FlushQueue[] flushQueues;
+	/** 
+	 * Guards the flush queues and the pending flushes, the writer and the
+	 * ProgressEngine of the socket both retire sends.
+	 */
+	private final ReentrantLock queueLock = new ReentrantLock();
+	private final LinkedList<PendingFlush> flushes = new LinkedList<PendingFlush>();
+	private volatile int pendingFlushes = 0;
+
+	private MxSocket socket;
 	private MxAddress target;
+	/** the addresses of the rails of the receiver, the first one is target */
+	private MxAddress[] targets;
 	private int endpointNumber;
 	private long matchData;
 	private int myLink;
+
+	/** the rail of the next striped message */
+	private int nextRail = 0;
+	/** the sequence number of the next message */
+	private short nextSequenceNumber = 0;
 	
 	private int port;
+	/** shared memory channel to the receiver, when it runs on the same host */
+	private ShmChannel channel;
 	
-	private static final int syncRate = Config.SYNC_RATE;
-	private int sync = 0;
+	/** decides how long we poll for a send to finish */
+	private final SpinPolicy policy = new SpinPolicy();
+
+	/** the number of messages we may send in all, and the number we sent, see Credits */
+	private long credits, sent = 0;
+	/** false when the receiver grants no credits, the stream has no flow control */
+	private final boolean flowControl;
+	private final Object creditLock = new Object();
+	private long creditWaits = 0, creditRequests = 0;
+
+	/** 
+	 * The rendezvous sends, with their handles, staging regions and headers.
+	 * The regions come from the region pool, the sends that are not retired
+	 * yet are the bulkCount ones from bulkHead on. 
+	 */
+	private final int[] bulkHandles = new int[Config.RENDEZVOUS_SENDS];
+	private final MxIOBuffer[] bulkRegions = new MxIOBuffer[Config.RENDEZVOUS_SENDS];
+	private final MxIOBuffer[] bulkHeaders = new MxIOBuffer[Config.RENDEZVOUS_SENDS];
+	private int bulkHead = 0;
+	private int bulkCount = 0;
 	
-	protected DataOutputStreamImpl(MxSocket socket, int endpointNumber, int link,
-			long matchData, MxAddress target) {
+	/**
+	 * @param endpointNumbers The endpoint of each rail
+	 * @param links The link of each rail
+	 * @param targets The address of the receiver on each rail
+	 * @param credits The initial credits the receiver granted, 0 when it grants none
+	 */
+	protected DataOutputStreamImpl(MxSocket socket, int[] endpointNumbers, int[] links,
+			long matchData, MxAddress[] targets, ShmChannel channel, int credits) 
+			throws MxException {
 		super();
 
-		flushQueue = new FlushQueue(Config.FLUSH_QUEUE_SIZE);
-		this.endpointNumber = endpointNumber;
+		flushQueues = new FlushQueue[links.length];
+		for (int i = 0; i < links.length; i++) {
+			try {
+				flushQueues[i] = new FlushQueue(Config.FLUSH_QUEUE_SIZE, 
+						endpointNumbers[i], links[i]);
+			} catch (MxException e) {
+				for (int j = 0; j < i; j++) {
+					flushQueues[j].destroy();
+				}
+				throw e;
+			}
+		}
+		this.socket = socket;
+		this.endpointNumber = endpointNumbers[0];
 		this.matchData = matchData;
-		this.target = target;
+		this.targets = targets;
+		this.target = targets[0];
 		this.port = Matching.getPort(matchData);
-		myLink = link;
+		myLink = links[0];
+		this.channel = channel;
+		this.credits = credits;
+		flowControl = credits > 0;
 	}
 
 	long doSend(MxSendBuffer buffer) throws IOException {
 		buffer.setPort(port);
-		long size = buffer.remaining();
+		long size = buffer.remaining() + buffer.gathered;
 		
+		if(channel != null) {
+			// the channel copies the message, so we are done with the buffer
+			channel.put(buffer);
+			MxSendBuffer.recycle(buffer);
+			return size;
+		}
+		
+		if(flowControl) {
+			takeCredit();
+		}
 		boolean sendSync = false;
-		sync++;
-		if(sync == syncRate) {
-			sync = 0;
-			sendSync = true;
+		
+		// the receiver puts the messages back in order, when they arrive over
+		// multiple rails or in receive buffers of different size classes
+		buffer.setSequenceNumber(nextSequenceNumber++);
+		long messageMatchData = matchData 
+			| SizeClass.matchBits(SizeClass.of((int) size + Config.SIZEOF_HEADER));
+
+		FlushQueue queue = flushQueues[0];
+		if(flushQueues.length > 1) {
+			if(size + Config.SIZEOF_HEADER >= Config.STRIPE_THRESHOLD) {
+				queue = flushQueues[nextRail];
+				nextRail = (nextRail + 1) % flushQueues.length;
+			}
+			if(queue != flushQueues[0]) {
+				// a finished send has been received, so the DISCONNECT message 
+				// on the first rail cannot overtake it
+				sendSync = true;
+			}
 		}
 		
-		while(!flushQueue.doSend(buffer, sendSync)) {
-			flushHead();
+		queueLock.lock();
+		try {
+			while(!queue.doSend(buffer, sendSync, messageMatchData)) {
+				queue.flushHead();
+			}
+			completeFlushes();
+		} finally {
+			queueLock.unlock();
 		}
 		
 		return size;
 	}
 
+	/**
+	 * Takes the credit for a message, waits for the receiver to grant more
+	 * when there are none left. When none arrive in time, the receiver is 
+	 * asked for them, see Credits.
+	 * @throws IOException when the receiver closed the stream, or cannot be
+	 * reached
+	 */
+	private void takeCredit() throws IOException {
+		synchronized(creditLock) {
+			if(sent < credits) {
+				sent++;
+				return;
+			}
+			creditWaits++;
+		}
+		while(true) {
+			synchronized(creditLock) {
+				if(sent == credits && !receiverClosed) {
+					try {
+						creditLock.wait(1000);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				if(sent < credits) {
+					sent++;
+					return;
+				}
+				if(receiverClosed) {
+					throw new IOException("Stream is closed by receiver");
+				}
+				creditRequests++;
+			}
+			// not while holding the lock, the socket adds the credits that arrive
+			requestCredits();
+		}
+	}
+
+	/**
+	 * Asks the receiver to grant the credits that are due again.
+	 * @throws IOException when the request cannot be delivered
+	 */
+	private void requestCredits() throws IOException {
+		int handle = JavaMx.handles.getHandle();
+		long matchData = Matching.setProtocol(this.matchData,
+				Matching.PROTOCOL_CREDIT_REQUEST);
+		try {
+			JavaMx.send(null, 0, 0, endpointNumber, myLink, handle, matchData);
+			if(JavaMx.wait(endpointNumber, handle, 1000) < 0) {
+				JavaMx.forget(endpointNumber, handle);
+				throw new IOException("Receiver does not respond to a credit request");
+			}
+		} finally {
+			JavaMx.handles.releaseHandle(handle);
+		}
+	}
+
+	/**
+	 * Called by the socket when the receiver granted credits.
+	 * @param granted the number of messages we may send in all
+	 */
+	void grantCredits(long granted) {
+		synchronized(creditLock) {
+			if(granted > credits) {
+				credits = granted;
+				creditLock.notifyAll();
+			}
+		}
+	}
+
 	void doFlush() throws IOException {
-		while(!flushQueue.isEmpty()) {
-			flushHead();
+		queueLock.lock();
+		try {
+			for (FlushQueue queue : flushQueues) {
+				while(!queue.isEmpty()) {
+					queue.flushHead();
+				}
+			}
+			completeFlushes();
+		} finally {
+			queueLock.unlock();
 		}
+		// a rendezvous send finishes when the receiver reads the array, 
+		// so we do not wait for those
+		finishBulk(0);
 	}
 
-	void flushHead() throws MxException {
-		flushQueue.flushHead();
+	@Override
+	void doFlushAsync(FlushFuture future) throws IOException {
+		queueLock.lock();
+		try {
+			long[] marks = new long[flushQueues.length];
+			boolean empty = true;
+			for (int i = 0; i < flushQueues.length; i++) {
+				marks[i] = flushQueues[i].posts;
+				empty &= flushQueues[i].isEmpty();
+			}
+			if(empty) {
+				// all sends finished already
+				return;
+			}
+			future.expect();
+			flushes.add(new PendingFlush(marks, future));
+			pendingFlushes = flushes.size();
+		} finally {
+			queueLock.unlock();
+		}
+		socket.progressEngine().add(this);
 	}
 
+	/**
+	 * Called by the ProgressEngine: retires the finished sends, and completes
+	 * the flushes they finish. Does nothing when the writer is using the 
+	 * flush queues.
+	 * @return false when there are no pending flushes anymore
+	 */
+	boolean progress() {
+		if(!queueLock.tryLock()) {
+			return true;
+		}
+		try {
+			if(flushes.isEmpty()) {
+				return false;
+			}
+			for (FlushQueue queue : flushQueues) {
+				queue.progress();
+			}
+			completeFlushes();
+			return !flushes.isEmpty();
+		} catch (MxException e) {
+			failFlushes(e);
+			return false;
+		} finally {
+			queueLock.unlock();
+		}
+	}
 
+	int pendingFlushes() {
+		return pendingFlushes;
+	}
+
+	/**
+	 * Completes the pending flushes of which all sends are retired, in the
+	 * order they were made. Called with queueLock held.
+	 */
+	private void completeFlushes() {
+		while(!flushes.isEmpty()) {
+			PendingFlush flush = flushes.getFirst();
+			for (int i = 0; i < flushQueues.length; i++) {
+				if(flushQueues[i].retired < flush.marks[i]) {
+					return;
+				}
+			}
+			flushes.removeFirst();
+			pendingFlushes = flushes.size();
+			flush.future.finished(null);
+		}
+	}
+
+	/**
+	 * Fails the pending flushes. Called with queueLock held.
+	 */
+	private void failFlushes(IOException e) {
+		for (PendingFlush flush : flushes) {
+			flush.future.finished(e);
+		}
+		flushes.clear();
+		pendingFlushes = 0;
+	}
+
+	@Override
+	MxIOBuffer stagingRegion(int size) throws IOException {
+		if(channel != null || mcStream != null) {
+			// the channel copies every message anyway
+			return null;
+		}
+		if(bulkCount == Config.RENDEZVOUS_SENDS) {
+			finishBulk(System.currentTimeMillis() + BULK_TIMEOUT);
+		}
+		int slot = (bulkHead + bulkCount) % Config.RENDEZVOUS_SENDS;
+		if(bulkHeaders[slot] == null) {
+			ByteOrder order = ByteOrder.nativeOrder();
+			MxIOBuffer header = new MxIOBuffer(Config.SIZEOF_HEADER).order(order);
+			header.put(Config.BYTEORDER_BYTE, 
+					(byte) (order == ByteOrder.BIG_ENDIAN ? 1 : 0));
+			header.putInt(Config.PORT_BYTE, port);
+			bulkHeaders[slot] = header;
+			bulkHandles[slot] = JavaMx.handles.getHandle();
+		}
+		MxIOBuffer region = new MxIOBuffer(SizeClass.getRegion(size));
+		region.order(ByteOrder.nativeOrder()).limit(size);
+		bulkRegions[slot] = region;
+		return region;
+	}
+
+	@Override
+	void doSendBulk(MxIOBuffer region) throws IOException {
+		int slot = (bulkHead + bulkCount) % Config.RENDEZVOUS_SENDS;
+		if(bulkRegions[slot] != region) {
+			throw new IOException("not the current staging region of " + this);
+		}
+		JavaMx.send(bulkHeaders[slot].buf, Config.SIZEOF_HEADER, region.buf, 
+				region.remaining(), endpointNumber, myLink, bulkHandles[slot], 
+				Matching.setProtocol(matchData, Matching.PROTOCOL_BULK));
+		bulkCount++;
+	}
+
+	/**
+	 * Retires the finished rendezvous sends, oldest first.
+	 * @param deadline 0 to retire the finished ones only, else the time until 
+	 * which we wait for at least the oldest one. When it is not finished by
+	 * then, all of them are forgotten.
+	 */
+	private void finishBulk(long deadline) throws IOException {
+		boolean wait = deadline != 0;
+		while(bulkCount > 0) {
+			int handle = bulkHandles[bulkHead];
+			int size;
+			if(wait) {
+				size = JavaMx.wait(endpointNumber, handle, 1000);
+			} else {
+				size = JavaMx.test(endpointNumber, handle);
+			}
+			if(size < 0) {
+				if(!wait) {
+					return;
+				}
+				if(receiverClosed) {
+					throw new IOException("Stream is closed by receiver");
+				}
+				if(System.currentTimeMillis() >= deadline) {
+					// the receiver does not read, its arrays are lost
+					destroyBulk();
+					throw new IOException("rendezvous send not received within "
+							+ BULK_TIMEOUT + " ms");
+				}
+				continue;
+			}
+			SizeClass.recycleRegion(bulkRegions[bulkHead].buf);
+			bulkRegions[bulkHead] = null;
+			bulkHead = (bulkHead + 1) % Config.RENDEZVOUS_SENDS;
+			bulkCount--;
+			wait = false;
+		}
+	}
+
+	private void destroyBulk() {
+		for (int i = 0; i < bulkCount; i++) {
+			JavaMx.forget(endpointNumber, bulkHandles[(bulkHead + i) % Config.RENDEZVOUS_SENDS]);
+		}
+		bulkCount = 0;
+		for (int i = 0; i < Config.RENDEZVOUS_SENDS; i++) {
+			if(bulkHeaders[i] != null) {
+				JavaMx.handles.releaseHandle(bulkHandles[i]);
+				bulkHeaders[i] = null;
+			}
+			bulkRegions[i] = null;
+		}
+	}
 
 	void doClose() throws IOException {
 		closed = true;
+		if(channel != null) {
+			channel.close();
+		}
 		if(!receiverClosed) {
+			// the arrays are received before the receiver sees the disconnect
+			long deadline = System.currentTimeMillis() + BULK_TIMEOUT;
+			try {
+				while(bulkCount > 0) {
+					finishBulk(deadline);
+				}
+			} catch (IOException e) {
+				// the receiver is gone
+			}
 			sendDisconnectMessage();
 		}
-		flushQueue.destroy();
+		destroyBulk();
+		queueLock.lock();
+		try {
+			// the sends are forgotten, a pending flush never finishes
+			failFlushes(new IOException(receiverClosed ? "Stream is closed by receiver"
+					: "Stream is closed"));
+			for (FlushQueue queue : flushQueues) {
+				queue.destroy();
+			}
+		} finally {
+			queueLock.unlock();
+		}
+		policy.retire();
+		if(logger.isDebugEnabled()) {
+			logger.debug(this + " closed, " + sizer + ", waited for credits " 
+					+ creditWaits + " times, requested credits " + creditRequests
+					+ " times");
+		}
+		if(socket != null) {
+			// we are done with the links
+			socket.removeDataOutputStream(this);
+			for (MxAddress address : targets) {
+				socket.releaseLink(address);
+			}
+			socket = null;
+		}
 	}
 
 	protected void receiverClosedConnection() {
@@ -203,6 +723,10 @@ public class DataOutputStreamImpl extends DataOutputStream {
 			return;
 		}
 		receiverClosed = true;
+		synchronized(creditLock) {
+			// a sender that waits for credits gives up
+			creditLock.notifyAll();
+		}
 		// TODO forget messages that are in transit?
 		try {
 			doClose();
@@ -214,7 +738,13 @@ public class DataOutputStreamImpl extends DataOutputStream {
 	//	 My OutputStream closes, notify the receiver
 	private void sendDisconnectMessage() {
 		//TODO move this to the socket??
-		int handle = JavaMx.handles.getHandle();
+		int handle;
+		try {
+			handle = JavaMx.handles.getHandle();
+		} catch (MxException e) {
+			// when this is not successful, quit anyways
+			return;
+		}
 		long matchData = Matching.setProtocol(this.matchData,
 				Matching.PROTOCOL_DISCONNECT);
 		JavaMx.send(null, 0, 0, endpointNumber, myLink, handle,
@@ -229,6 +759,14 @@ public class DataOutputStreamImpl extends DataOutputStream {
 		JavaMx.handles.releaseHandle(handle);		
 	}
 	
+	MxAddress getTarget() {
+		return target;
+	}
+
+	int getPort() {
+		return port;
+	}
+
 	@Override
 	public String toString() {
 		return createString(target, Matching.getPort(matchData));
@@ -1,8 +1,6 @@
 package mxio;
 
 import java.io.IOException;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,22 +12,43 @@ public final class DeliveryThread implements Runnable, Config {
 	private static final Logger logger = LoggerFactory
     .getLogger(DeliveryThread.class);
 	
-	ArrayBlockingQueue<MxReceiveBuffer> queue;
+	/** the posted buffers, in the order they were posted, count of them starting at head */
+	MxReceiveBuffer[] buffers;
+	/** size of the messages in finished buffers, -1 when not finished yet, the buffer is null when its receive failed */
+	int[] sizes;
+	int head = 0;
+	int count = 0;
 	int capacity;
+	/** decides how many buffers are posted */
+	private final ReceiveDepth depth;
 	int endpointNumber;
 	MxSocket socket;
 	
+	/** scratch arrays for testing the unfinished buffers */
+	private int[] pending, slots, results;
+
+	/** decides how long we poll for a message to arrive */
+	private final SpinPolicy policy = new SpinPolicy();
+	
 	private static long SELECTABLEMASK = Matching.construct(Matching.PROTOCOL_MASK, Matching.getPort(Matching.SELECTABLEPORTS_MASK)); 
 	private static long SELECTABLEDATA = Matching.construct(Matching.PROTOCOL_DATA, Matching.getPort(Matching.SELECTABLEPORTS_MASK));
 	
 	boolean open = true;
 	
-	DeliveryThread(MxSocket socket, int capacity) {
-		this.capacity = capacity;
+	/**
+	 * @param depth the initial number of posted buffers
+	 */
+	DeliveryThread(MxSocket socket, int depth) {
+		this.capacity = Config.MAX_RECEIVE_DEPTH;
 		this.socket = socket;
 		this.endpointNumber = socket.endpointNumber();
+		this.depth = new ReceiveDepth(socket, depth);
 		
-		queue = new ArrayBlockingQueue<MxReceiveBuffer>(capacity);
+		buffers = new MxReceiveBuffer[capacity];
+		sizes = new int[capacity];
+		pending = new int[capacity];
+		slots = new int[capacity];
+		results = new int[capacity];
 		if(logger.isDebugEnabled()) {
 			logger.debug("DeliveryThread created");
 		}
@@ -39,30 +58,39 @@ public final class DeliveryThread implements Runnable, Config {
 		open = false;
 	}
 	
+	ReceiveDepth receiveDepth() {
+		return depth;
+	}
+	
 	public void run() {
-		for(int i = 0; i< capacity; i++) {
-			postBuffer();
-		}
+		postBuffers();
 
 		while(open) {
-			MxReceiveBuffer buf = null;
-			while(buf == null) {
-				try {
-					buf = queue.poll(1, TimeUnit.SECONDS);
-				} catch (InterruptedException e) {
-					// TODO ignore
-				}
-				if(!open) {
-					finish();
-					return;
-				}
-			}
-			
 			try {
-				while(!buf.finish(1000, true)) {
-					if(!open) {
-						finish();
-						return;
+				if(sizes[head] < 0) {
+					int unfinished = testPending();
+					int polls = 1;
+					while(sizes[head] < 0 && polls < policy.budget()) {
+						policy.pause(polls);
+						unfinished = testPending();
+						polls++;
+					}
+					if(sizes[head] >= 0) {
+						policy.spun();
+					} else {
+						policy.parked();
+					}
+					if(sizes[head] < 0) {
+						if(depth.idle(System.currentTimeMillis()) && depth.shrink()) {
+							cancelBuffers();
+							// the canceled handles are gone, test again
+							continue;
+						}
+						int index = JavaMx.waitAny(endpointNumber, pending, unfinished, results, 1000);
+						if(index >= 0) {
+							sizes[slots[index]] = results[index];
+						}
+						continue;
 					}
 				}
 			} catch (IOException e) {
@@ -72,45 +100,145 @@ public final class DeliveryThread implements Runnable, Config {
 				System.exit(1);
 			}
 			
-			
-			SelectableDataInputStream target = socket.getSelectableDataInputStream(buf.port());
-			if(target == null) {
-				if(logger.isDebugEnabled()) {
-					logger.debug("Buffer dropped: unknown receiver: " + buf.port());
+			// deliver the finished buffers in the order they were posted
+			while(count > 0 && sizes[head] >= 0) {
+				MxReceiveBuffer buf = buffers[head];
+				if(buf == null) {
+					// the receive failed
+					head = (head + 1) % capacity;
+					count--;
+					continue;
+				}
+				buf.received(sizes[head]);
+				
+				SelectableDataInputStream target = socket.getSelectableDataInputStream(buf.port());
+				if(target == null) {
+					if(logger.isDebugEnabled()) {
+						logger.debug("Buffer dropped: unknown receiver: " + buf.port());
+					}
+					//target stream unknown, drop message?
+					MxReceiveBuffer.recycle(buf);
+				} else {
+					target.newMessage(buf);
 				}
-				//target stream unknown, drop message?
-			} else {
-				target.newMessage(buf);
+				buffers[head] = null;
+				head = (head + 1) % capacity;
+				count--;
 			}
-			postBuffer();			
+			depth.arrived();
+			if(count == 0) {
+				// all buffers were finished, the senders may be ahead of us
+				depth.full();
+			}
+			postBuffers();
 		}
+		finish();
+	}
+
+	/**
+	 * Posts buffers after the newest one, up to the depth.
+	 */
+	private void postBuffers() {
+		while(count < depth.depth()) {
+			if(!postBuffer((head + count) % capacity)) {
+				// we post the others the next time
+				return;
+			}
+			count++;
+		}
+	}
+
+	/**
+	 * Cancels the newest buffers above the depth. A buffer that received a
+	 * message already stops the cancelling, it is delivered as usual.
+	 */
+	private void cancelBuffers() {
+		while(count > depth.depth()) {
+			int slot = (head + count - 1) % capacity;
+			if(sizes[slot] >= 0 || !buffers[slot].unpost()) {
+				return;
+			}
+			MxReceiveBuffer.recycle(buffers[slot]);
+			buffers[slot] = null;
+			count--;
+		}
+	}
+
+	/**
+	 * Tests the unfinished buffers with one call.
+	 * @return the number of buffers that are still unfinished, in pending[], 
+	 * oldest first
+	 */
+	private int testPending() throws MxException {
+		int tested = 0;
+		for (int i = 0; i < count; i++) {
+			int slot = (head + i) % capacity;
+			if(sizes[slot] < 0) {
+				pending[tested] = buffers[slot].handle();
+				slots[tested] = slot;
+				tested++;
+			}
+		}
+		if(JavaMx.testSome(endpointNumber, pending, tested, results) > 0) {
+			int unfinished = 0;
+			for (int i = 0; i < tested; i++) {
+				if(results[i] == MxTransport.FAILED) {
+					// the message is lost, the other streams go on
+					if(logger.isDebugEnabled()) {
+						logger.debug("receive failed, message dropped");
+					}
+					MxReceiveBuffer.recycle(buffers[slots[i]]);
+					buffers[slots[i]] = null;
+					sizes[slots[i]] = 0;
+				} else if(results[i] >= 0) {
+					sizes[slots[i]] = results[i];
+				} else {
+					// the finished requests are gone, leave them out of a wait
+					pending[unfinished] = pending[i];
+					slots[unfinished] = slots[i];
+					unfinished++;
+				}
+			}
+			tested = unfinished;
+		}
+		return tested;
 	}
 
 	private void finish() {
-		MxReceiveBuffer buffer = queue.poll();
-		while(buffer != null) {
-			buffer.cancel();
+		policy.retire();
+		depth.close();
+		for(int i = 0; i < capacity; i++) {
+			MxReceiveBuffer buffer = buffers[i];
+			if(buffer == null) {
+				continue;
+			}
+			if(sizes[i] < 0) {
+				buffer.cancel();
+			}
 			MxReceiveBuffer.recycle(buffer);
-			buffer = queue.poll();
+			buffers[i] = null;
 		}
 	}
 
-	private void postBuffer() {
-		MxReceiveBuffer buf = MxReceiveBuffer.get();
-		if (queue.offer(buf) == false) {
-			if(logger.isDebugEnabled()) {
-				logger.debug("not posting buffer: queue full");
-			}
-			// Queue full
-			MxReceiveBuffer.recycle(buf);
-			return;
+	/**
+	 * @return false when there is no handle left for the buffer
+	 */
+	private boolean postBuffer(int slot) {
+		MxReceiveBuffer buf;
+		try {
+			buf = MxReceiveBuffer.get();
+		} catch (MxException e) {
+			logger.warn("could not post a receive: " + e.getMessage());
+			return false;
 		}
-				
+		buffers[slot] = buf;
+		sizes[slot] = -1;
 		try {
 			buf.post(endpointNumber, SELECTABLEDATA, SELECTABLEMASK);
 		} catch (IOException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
+		return true;
 	}
 }
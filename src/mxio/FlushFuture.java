@@ -0,0 +1,90 @@
+package mxio;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The outcome of DataOutputStream.flushAsync(). It is done when the sends
+ * of all data written before the flush have finished, on every connection of
+ * a multicast stream. When a connection closes before its sends finished,
+ * get() throws an ExecutionException with the IOException as its cause. A
+ * flush cannot be canceled, the data is on its way already.
+ */
+final class FlushFuture implements Future<Void> {
+
+	/** the connections of which the sends did not finish yet */
+	private int pending = 0;
+	/** true when all connections are added */
+	private boolean sealed = false;
+	private IOException failure = null;
+
+	/**
+	 * Adds a connection of which the sends have to finish.
+	 */
+	synchronized void expect() {
+		pending++;
+	}
+
+	/**
+	 * Called when the sends of a connection finished.
+	 * @param failure why they did not finish, null when they did
+	 */
+	synchronized void finished(IOException failure) {
+		if(failure != null && this.failure == null) {
+			this.failure = failure;
+		}
+		pending--;
+		notifyAll();
+	}
+
+	/**
+	 * Called when all connections are added.
+	 */
+	synchronized void seal() {
+		sealed = true;
+		notifyAll();
+	}
+
+	public boolean cancel(boolean mayInterruptIfRunning) {
+		return false;
+	}
+
+	public boolean isCancelled() {
+		return false;
+	}
+
+	public synchronized boolean isDone() {
+		return sealed && pending == 0;
+	}
+
+	public synchronized Void get() throws InterruptedException,
+			ExecutionException {
+		while(!isDone()) {
+			wait();
+		}
+		return result();
+	}
+
+	public synchronized Void get(long timeout, TimeUnit unit)
+			throws InterruptedException, ExecutionException, TimeoutException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while(!isDone()) {
+			long left = deadline - System.nanoTime();
+			if(left <= 0) {
+				throw new TimeoutException();
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, left);
+		}
+		return result();
+	}
+
+	private Void result() throws ExecutionException {
+		if(failure != null) {
+			throw new ExecutionException(failure);
+		}
+		return null;
+	}
+}
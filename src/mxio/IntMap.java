@@ -0,0 +1,132 @@
+package mxio;
+
+/**
+ * A hash map with int keys that does not box its keys and does not allocate
+ * on lookups. It uses open addressing with linear probing. It is not
+ * thread-safe, callers synchronize access.
+ */
+final class IntMap<V> {
+
+	private static final int INITIAL_CAPACITY = 16;
+
+	private int[] keys;
+	private Object[] values;
+	private int mask;
+	private int size = 0;
+
+	IntMap() {
+		keys = new int[INITIAL_CAPACITY];
+		values = new Object[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	private int slot(int key) {
+		int i = hash(key) & mask;
+		while(values[i] != null && keys[i] != key) {
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	V get(int key) {
+		return (V) values[slot(key)];
+	}
+
+	/**
+	 * @return the previous value of the key, or null
+	 */
+	@SuppressWarnings("unchecked")
+	V put(int key, V value) {
+		if(value == null) {
+			throw new NullPointerException();
+		}
+		int i = slot(key);
+		V old = (V) values[i];
+		keys[i] = key;
+		values[i] = value;
+		if(old == null) {
+			size++;
+			if(size * 2 > values.length) {
+				resize(values.length * 2);
+			}
+		}
+		return old;
+	}
+
+	/**
+	 * @return the removed value, or null when the key was not in the map
+	 */
+	@SuppressWarnings("unchecked")
+	V remove(int key) {
+		int i = slot(key);
+		V old = (V) values[i];
+		if(old == null) {
+			return null;
+		}
+		values[i] = null;
+		size--;
+		// move the entries after it back, so lookups do not stop at the gap
+		int j = i;
+		while(true) {
+			j = (j + 1) & mask;
+			if(values[j] == null) {
+				return old;
+			}
+			int home = hash(keys[j]) & mask;
+			// can the entry at j move to i without passing its home slot?
+			if(((j - home) & mask) >= ((j - i) & mask)) {
+				keys[i] = keys[j];
+				values[i] = values[j];
+				values[j] = null;
+				i = j;
+			}
+		}
+	}
+
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of slots, for iterating with valueAt()
+	 */
+	int capacity() {
+		return values.length;
+	}
+
+	/**
+	 * @return the value in a slot, or null when the slot is empty
+	 */
+	@SuppressWarnings("unchecked")
+	V valueAt(int slot) {
+		return (V) values[slot];
+	}
+
+	void clear() {
+		for (int i = 0; i < values.length; i++) {
+			values[i] = null;
+		}
+		size = 0;
+	}
+
+	private void resize(int capacity) {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[capacity];
+		values = new Object[capacity];
+		mask = capacity - 1;
+		for (int i = 0; i < oldValues.length; i++) {
+			if(oldValues[i] != null) {
+				int j = slot(oldKeys[i]);
+				keys[j] = oldKeys[i];
+				values[j] = oldValues[i];
+			}
+		}
+	}
+}
@@ -1,7 +1,9 @@
 package mxio;
 
 import java.nio.ByteBuffer;
-
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -13,8 +15,24 @@ final class JavaMx {
 		private static final Logger logger = LoggerFactory
 		.getLogger(HandleManager.class);
 
-		int size, blockSize, maxBlocks, activeHandles;
-		boolean[] inUse;
+		/** marks a handle that is handed out in the free list */
+		private static final int IN_USE = -2;
+		/** the end of the free list */
+		private static final int NONE = -1;
+
+		final int blockSize, maxBlocks;
+		
+		/**
+		 * The free handles form a linked list through the next fields of the
+		 * blocks. The head of the list is a handle in the lower 32 bits, and a
+		 * version in the upper 32 bits that protects against ABA problems.
+		 */
+		private final AtomicLong head = new AtomicLong(pack(0, NONE));
+		private final AtomicIntegerArray[] next;
+		private volatile int blocks = 0;
+
+		private final AtomicInteger activeHandles = new AtomicInteger(0);
+		private final AtomicInteger highWaterMark = new AtomicInteger(0);
 
 		/**
 		 * @param blockSize The size of the memory blocks used
@@ -22,50 +40,44 @@ final class JavaMx {
 		 * @throws MxException
 		 */
 		private HandleManager(int blockSize, int maxBlocks) throws MxException {			
-			this.size = 0;
 			this.blockSize = blockSize;
 			this.maxBlocks = maxBlocks;
-			this.activeHandles = 0;
-			this.inUse = new boolean[size];
-			if (init(blockSize, maxBlocks) == false) {
+			this.next = new AtomicIntegerArray[maxBlocks];
+			if (transport.initHandles(blockSize, maxBlocks) == false) {
 				throw new MxException("HandleManager: could not initialize Handles.");
 			}
 		}
 
-		private native boolean init(int blockSize, int maxBlocks);
-		private native boolean addBlock();
+		private static long pack(int version, int handle) {
+			return ((long) version << 32) | (handle & 0xffffffffL);
+		}
 
 		/**
 		 * Allocates a request handle in native code
 		 * @return the handle identifier
+		 * @throws MxException when the maximum number of handles is reached
 		 */
-		protected synchronized int getHandle() {
-			if(activeHandles == size) {
-				//Size up handle array, also in C code
-				if (logger.isDebugEnabled()) {
-					logger.debug("adding block...");
+		protected int getHandle() throws MxException {
+			int handle;
+			while (true) {
+				long h = head.get();
+				handle = (int) h;
+				if (handle == NONE) {
+					addBlock();
+					continue;
 				}
-				if(addBlock() == false) {
-					//TODO exception
-					System.exit(1);
+				int n = next[handle / blockSize].get(handle % blockSize);
+				if (head.compareAndSet(h, pack((int) (h >>> 32) + 1, n))) {
+					break;
 				}
-				if (logger.isDebugEnabled()) {
-					logger.debug("Block added");
-				}
-				size += blockSize;
-				boolean[] temp = new boolean[size];
-				for(int i = 0; i < inUse.length; i++) {
-					temp[i] = inUse[i];
-				}
-				inUse = temp;
 			}
+			next[handle / blockSize].set(handle % blockSize, IN_USE);
 
-			int handle = 0;
-			while(inUse[handle]) {
-				handle++;
+			int active = activeHandles.incrementAndGet();
+			int max = highWaterMark.get();
+			while (active > max && !highWaterMark.compareAndSet(max, active)) {
+				max = highWaterMark.get();
 			}
-			inUse[handle] = true;
-			activeHandles++;
 			if (logger.isDebugEnabled()) {
 				logger.debug("Handle " + handle + " distributed");
 			}
@@ -77,18 +89,90 @@ final class JavaMx {
 		 * release a handle that is not in use anymore
 		 * @param handle the handle 
 		 */
-		protected synchronized void releaseHandle(int handle) {
-			if(!inUse[handle]) {
+		protected void releaseHandle(int handle) {
+			AtomicIntegerArray block = next[handle / blockSize];
+			int index = handle % blockSize;
+			if(!block.compareAndSet(index, IN_USE, NONE)) {
 				//FIXME exception
 				throw new Error("handle already released!");
 			}
-			inUse[handle] = false;
-			activeHandles--;
+			activeHandles.decrementAndGet();
+			push(handle, handle);
 			if (logger.isDebugEnabled()) {
 				logger.debug("Handle " + handle + " released");
 			}
 		}
 
+		/**
+		 * Puts the chain of free handles from first to last in front of the 
+		 * free list.
+		 */
+		private void push(int first, int last) {
+			AtomicIntegerArray block = next[last / blockSize];
+			int index = last % blockSize;
+			while (true) {
+				long h = head.get();
+				block.set(index, (int) h);
+				if (head.compareAndSet(h, pack((int) (h >>> 32) + 1, first))) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Size up the handle storage, also in C code
+		 */
+		private synchronized void addBlock() throws MxException {
+			if ((int) head.get() != NONE) {
+				// another thread added a block or released a handle meanwhile
+				return;
+			}
+			if (logger.isDebugEnabled()) {
+				logger.debug("adding block...");
+			}
+			if (blocks == maxBlocks || transport.addHandleBlock() == false) {
+				throw new MxException("HandleManager: maximum number of handles ("
+						+ blocks * blockSize + ") reached");
+			}
+			int first = blocks * blockSize;
+			AtomicIntegerArray block = new AtomicIntegerArray(blockSize);
+			for (int i = 0; i < blockSize - 1; i++) {
+				block.set(i, first + i + 1);
+			}
+			next[blocks] = block;
+			blocks++;
+			push(first, first + blockSize - 1);
+			if (logger.isDebugEnabled()) {
+				logger.debug("Block added");
+			}
+		}
+
+		/**
+		 * @return the number of handles that are currently handed out
+		 */
+		int handlesInUse() {
+			return activeHandles.get();
+		}
+
+		/**
+		 * @return the maximum number of handles that were handed out at the same time
+		 */
+		int highWaterMark() {
+			return highWaterMark.get();
+		}
+
+		/**
+		 * @return the number of handles allocated in native code
+		 */
+		int size() {
+			return blocks * blockSize;
+		}
+
+		@Override
+		public String toString() {
+			return "HandleManager: " + handlesInUse() + " handles in use, at most "
+					+ highWaterMark() + ", of " + size() + " allocated";
+		}
 	}
 
 	static final class LinkManager {
@@ -97,6 +181,9 @@ final class JavaMx {
 		
 		int size, blockSize, maxBlocks, activeTargets;
 		boolean[] inUse;
+		/** stack of the links that are not in use */
+		int[] free;
+		int freeCount;
 
 		/**
 		 * @param blockSize The size of the memory blocks used
@@ -109,41 +196,41 @@ final class JavaMx {
 			this.maxBlocks = maxBlocks;
 			this.activeTargets = 0;
 			inUse = new boolean[size];
-			if (init(blockSize, maxBlocks) == false) {
+			free = new int[size];
+			freeCount = 0;
+			if (transport.initLinks(blockSize, maxBlocks) == false) {
 				throw new MxException("LinkManager: could not initialize Links.");
 			}
-			// init calls to C library
 		}
 
-		private native boolean init(int blockSize, int maxBlocks);
-		private native boolean addBlock();
-
 		/**
 		 * Allocates a link data structure in native code
 		 * @return the link identifier
+		 * @throws MxException when the maximum number of links is reached
 		 */
-		protected synchronized int getLink() {
-			if(activeTargets == size) {
+		protected synchronized int getLink() throws MxException {
+			if(freeCount == 0) {
 				//Size up target array, also in C code
 				if (logger.isDebugEnabled()) {
 					logger.debug("adding block...");
 				}
-				if(addBlock() == false) {
-					//TODO exception
-					System.exit(1);
-				}
-				size += blockSize;
-				boolean[] temp = new boolean[size];
-				for(int i = 0; i < inUse.length; i++) {
-					temp[i] = inUse[i];
+				if(size / blockSize == maxBlocks || transport.addLinkBlock() == false) {
+					throw new MxException("LinkManager: maximum number of links (" 
+							+ size + ") reached");
 				}
+				boolean[] temp = new boolean[size + blockSize];
+				System.arraycopy(inUse, 0, temp, 0, size);
 				inUse = temp;
+				free = new int[size + blockSize];
+				// hand out the lowest links first
+				for(int i = 0; i < blockSize; i++) {
+					free[i] = size + blockSize - 1 - i;
+				}
+				freeCount = blockSize;
+				size += blockSize;
 			}
 
-			int target = 0;
-			while(inUse[target] ) {
-				target++;
-			}
+			int target = free[--freeCount];
 			inUse[target] = true;
 			activeTargets++;
 			if (logger.isDebugEnabled()) {
@@ -157,29 +244,62 @@ final class JavaMx {
 		 * @param the link that can be released
 		 */
 		protected synchronized void releaseLink(int target) {
+			if(!inUse[target]) {
+				//FIXME exception
+				throw new Error("link already released!");
+			}
 			inUse[target] = false;
+			free[freeCount++] = target;
 			activeTargets--;
 			if (logger.isDebugEnabled()) {
 				logger.debug("Link " + target + " released");
 			}
 		}
-	}
 
+		/**
+		 * @return the number of links that are currently handed out
+		 */
+		synchronized int linksInUse() {
+			return activeTargets;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return "LinkManager: " + linksInUse() + " links in use, of " + size
+					+ " allocated";
+		}
+	}
 	private static final Logger logger = LoggerFactory
 	.getLogger(JavaMx.class);
 
+	/**
+	 * System property that selects the transport: "mx" (the default) uses the
+	 * MX library, "local" uses the in-process LocalMxTransport.
+	 */
+	static final String TRANSPORT_PROPERTY = "mxio.transport";
+
 	public static boolean initialized;
+	static MxTransport transport;
 	static HandleManager handles;
 	static LinkManager links;
 
+	/** the completion rings of the endpoints, by endpoint number */
+	private static volatile CompletionRing[] rings = new CompletionRing[0];
+
 	static {
 		try {
-			System.loadLibrary("myriexpress");
-			System.loadLibrary("javamx");
-			if (logger.isDebugEnabled()) {
-				logger.debug("init: libraries found");
+			String name = System.getProperty(TRANSPORT_PROPERTY, "mx");
+			if (name.equals("local")) {
+				transport = new LocalMxTransport();
+			} else if (name.equals("mx")) {
+				transport = new NativeMxTransport();
+				if (logger.isDebugEnabled()) {
+					logger.debug("init: libraries found");
+				}
+			} else {
+				throw new MxException("unknown transport: " + name);
 			}
-			initialized = init();
+			initialized = transport.init();
 			if(!initialized) {
 				if (logger.isDebugEnabled()) {
 					logger.debug("Initializing JavaMX library failed.");
@@ -203,45 +323,123 @@ final class JavaMx {
 	 * Initializes the JavaMx library.
 	 * @return True when successful.
 	 */
-	static native boolean init() throws MxException;
+	static boolean init() throws MxException {
+		return transport.init();
+	}
 
 	/**
 	 * Stops the library.
 	 * @return always true?
 	 */
-	static native boolean deInit();
+	static boolean deInit() {
+		return transport.deInit();
+	}
 
 	/**
 	 * Opens a new endpoint.
 	 * @param filter The filter that is used for this endpoint.
 	 * @return The endpoint identifier.
 	 */
-	static native int newEndpoint(int filter); 
+	static int newEndpoint(int filter) {
+		return newEndpoint(filter, MxTransport.ANY_BOARD);
+	}
+
+	/**
+	 * Opens a new endpoint on a specific board.
+	 * @param filter The filter that is used for this endpoint.
+	 * @param board The board number, or MxTransport.ANY_BOARD.
+	 * @return The endpoint identifier.
+	 */
+	static int newEndpoint(int filter, int board) {
+		int endpointNumber = transport.newEndpoint(filter, board);
+		if (endpointNumber >= 0 && CompletionRing.enabled()) {
+			CompletionRing ring = new CompletionRing(transport, endpointNumber, CompletionRing.CAPACITY);
+			if (transport.attachCompletionRing(endpointNumber, ring.buffer())) {
+				setRing(endpointNumber, ring);
+			} else if (logger.isDebugEnabled()) {
+				logger.debug("no completion ring for endpoint " + endpointNumber);
+			}
+		}
+		return endpointNumber;
+	} 
+
+	/**
+	 * @return The number of boards (NICs) in this host.
+	 */
+	static int getBoardCount() {
+		return transport.getBoardCount();
+	}
+
+	private static synchronized void setRing(int endpointNumber, CompletionRing ring) {
+		CompletionRing[] temp = rings;
+		if (endpointNumber >= temp.length) {
+			CompletionRing[] n = new CompletionRing[endpointNumber + 1];
+			System.arraycopy(temp, 0, n, 0, temp.length);
+			temp = n;
+		} else {
+			temp = temp.clone();
+		}
+		temp[endpointNumber] = ring;
+		rings = temp;
+	}
+
+	/**
+	 * @return the completion ring of the endpoint, or null when requests have
+	 * to be completed by the transport
+	 */
+	private static CompletionRing ring(int endpointNumber) {
+		CompletionRing[] rings = JavaMx.rings;
+		if (endpointNumber < 0 || endpointNumber >= rings.length) {
+			return null;
+		}
+		return rings[endpointNumber];
+	}
+
+	/**
+	 * Registers a new request at the completion ring of the endpoint, if any.
+	 */
+	private static void posted(int endpointNumber, int handle) {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			ring.posted(handle);
+		}
+	}
 
 	/**
 	 * Closes an endpoint.
 	 * @param endpointNumber the endpoint number of the endpoint that will be closed.
 	 */
-	static native void closeEndpoint(int endpointNumber);
+	static void closeEndpoint(int endpointNumber) {
+		if (ring(endpointNumber) != null) {
+			setRing(endpointNumber, null);
+		}
+		transport.closeEndpoint(endpointNumber);
+	}
 
 	/**
 	 * @param endpointNumber The endpoint.
 	 * @return The NIC ID of the NIC the endpoint located at.
 	 */
-	static native long getMyNicId(int endpointNumber);
+	static long getMyNicId(int endpointNumber) {
+		return transport.getMyNicId(endpointNumber);
+	}
 
 	/**
 	 * @param endpointId The JavaMx endpoint ID.
 	 * @return The endpoint number that is used in the mx library. This can be different from the identifier used in JavaMx. 
 	 */
-	static native int getMyEndpointId(int endpointNumber);
+	static int getMyEndpointId(int endpointNumber) {
+		return transport.getMyEndpointId(endpointNumber);
+	}
 
 	/**
 	 * Gets the NIC identifier of a host by its name.
 	 * @param name The name to resolve.
 	 * @return The NIC identifier.
 	 */
-	static native long getNicId(String name);
+	static long getNicId(String name) {
+		return transport.getNicId(name);
+	}
 
 	/**
 	 * Sets up a connection for writing to a remote endpoint. Connections are one-way in JavaMx. 
@@ -252,7 +450,9 @@ final class JavaMx {
 	 * @param filter The filter which should be used for this connection.
 	 * @return True when successful, false if something went wrong.
 	 */
-	static native boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter) throws MxException;
+	static boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter) throws MxException {
+		return transport.connect(endpointNumber, link, targetNicId, targetEndpoint, filter);
+	}
 
 	/**
 	 * Sets up a connection for writing to a remote endpoint. Connections are one-way in JavaMx. 
@@ -264,14 +464,18 @@ final class JavaMx {
 	 * @param timeout The timeout in milliseconds.
 	 * @return true when successful, false when a timeout occurs, or on any other error.
 	 */
-	static native boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter, long timeout) throws MxException;
+	static boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter, long timeout) throws MxException {
+		return transport.connect(endpointNumber, link, targetNicId, targetEndpoint, filter, timeout);
+	}
 
 	/**
 	 * Closes the connection.
 	 * @param link The link datastructure of the connection that can be closed.
 	 * @return true when succesful, false if the link does not exist (anymore).
 	 */
-	static native boolean disconnect(int link);
+	static boolean disconnect(int link) {
+		return transport.disconnect(link);
+	}
 
 	/**
 	 * Initiates an unreliable message transfer over a link. This request is successful when the message transfer is initiated successfully.
@@ -283,7 +487,10 @@ final class JavaMx {
 	 * @param handle The request handle that can be used for this operation.
 	 * @param matchData The matching data.
 	 */
-	static native void send(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData);
+	static void send(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData) {
+		posted(endpointNumber, handle);
+		transport.send(buffer, offset, msgSize, endpointNumber, link, handle, matchData);
+	}
 
 	/**
 	 * Initiates a reliable message transfer over a link. This request is succesful when the message is received correctly.
@@ -295,20 +502,59 @@ final class JavaMx {
 	 * @param handle The handle that can be used for this request.
 	 * @param matchData The matching data.
 	 */
-	static native void sendSynchronous(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData);
+	static void sendSynchronous(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData) {
+		posted(endpointNumber, handle);
+		transport.sendSynchronous(buffer, offset, msgSize, endpointNumber, link, handle, matchData);
+	}
 
 	/* the same, but with 2 buffers */
-	static native void send(
+	static void send(
 			ByteBuffer header, int headerSize,
 			ByteBuffer payload, int payloadSize,			
 			int endpointNumber, int link, int handle, long matchData
-	);
+	) {
+		posted(endpointNumber, handle);
+		transport.send(header, headerSize, payload, payloadSize, endpointNumber, link, handle, matchData);
+	}
 
-	static native void sendSynchronous(
+	static void sendSynchronous(
 			ByteBuffer header, int headerSize,
 			ByteBuffer payload, int payloadSize,			
 			int endpointNumber, int link, int handle, long matchData
-	);
+	) {
+		posted(endpointNumber, handle);
+		transport.sendSynchronous(header, headerSize, payload, payloadSize, endpointNumber, link, handle, matchData);
+	}
+
+	/**
+	 * Initiates an unreliable transfer of a number of buffers as one message (a gather send).
+	 * The buffers must stay untouched until the request is finished.
+	 * @param segments The buffers, each starting at index 0. At most MxTransport.MAX_SEGMENTS.
+	 * @param lengths The number of bytes to send from each buffer.
+	 * @param endpointNumber The endpoint that will be used to send the message.
+	 * @param link The link over which the message will be sent.
+	 * @param handle The request handle that can be used for this operation.
+	 * @param matchData The matching data.
+	 */
+	static void send(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData) {
+		posted(endpointNumber, handle);
+		transport.send(segments, lengths, endpointNumber, link, handle, matchData);
+	}
+
+	/**
+	 * Initiates a reliable transfer of a number of buffers as one message (a gather send).
+	 * The buffers must stay untouched until the request is finished.
+	 * @param segments The buffers, each starting at index 0. At most MxTransport.MAX_SEGMENTS.
+	 * @param lengths The number of bytes to send from each buffer.
+	 * @param endpointNumber The endpoint that will be used to send the message.
+	 * @param link The link over which the message will be sent.
+	 * @param handle The request handle that can be used for this operation.
+	 * @param matchData The matching data.
+	 */
+	static void sendSynchronous(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData) {
+		posted(endpointNumber, handle);
+		transport.sendSynchronous(segments, lengths, endpointNumber, link, handle, matchData);
+	}
 
 	/**
 	 * Receives a message from an endpoint. Only message with correct matching data will be received.
@@ -320,7 +566,10 @@ final class JavaMx {
 	 * @param matchData The matching data. Only messages with exactly this matching data will be received by this request.
 	 * @throws MxException 
 	 */
-	static native void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData) throws MxException; // returns a handle
+	static void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData) throws MxException {
+		posted(endpointNumber, handle);
+		transport.recv(buffer, offset, bufsize, endpointNumber, handle, matchData);
+	}
 
 	/**
 	 * Receives a message from an endpoint. Only message with correct matching data will be received.
@@ -333,16 +582,55 @@ final class JavaMx {
 	 * @param matchMask The mask applied to the matching data of the message. 
 	 * @throws MxException
 	 */
-	static native void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData, long matchMask) throws MxException; // returns a handle
+	static void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData, long matchMask) throws MxException {
+		posted(endpointNumber, handle);
+		transport.recv(buffer, offset, bufsize, endpointNumber, handle, matchData, matchMask);
+	}
 
-	// TODO implement
-	static native void recv(ByteBuffer buffer, int offset, int bufsize,
+	/**
+	 * Receives a message from an endpoint into two buffers. The first bufsize bytes of the message 
+	 * are written to the first buffer, the rest to the second buffer. 
+	 * Only message with correct matching data will be received.
+	 * @param buffer The buffer in to which the start of the message will be written.
+	 * @param offset The offset in the buffer where the message will be written at.
+	 * @param bufsize The number of bytes that will be written to the first buffer.
+	 * @param buffer2 The buffer in to which the rest of the message will be written.
+	 * @param offset2 The offset in the second buffer where the rest of the message will be written at.
+	 * @param bufsize2 The maximum number of bytes that can be written to the second buffer.
+	 * @param endpointNumber The local endpoint at which the message must arrive.
+	 * @param handle The handle that can be used for this request.
+	 * @param matchData The matching data. Only messages with exactly this matching data will be received by this request.
+	 * @throws MxException 
+	 */
+	static void recv(ByteBuffer buffer, int offset, int bufsize,
 			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
-			int handle, long matchData) throws MxException;	
+			int handle, long matchData) throws MxException {
+		posted(endpointNumber, handle);
+		transport.recv(buffer, offset, bufsize, buffer2, offset2, bufsize2, endpointNumber, handle, matchData);
+	}	
 
-	static native void recv(ByteBuffer buffer, int offset, int bufsize,
+	/**
+	 * Receives a message from an endpoint into two buffers. The first bufsize bytes of the message 
+	 * are written to the first buffer, the rest to the second buffer. 
+	 * Only message with correct matching data will be received.
+	 * @param buffer The buffer in to which the start of the message will be written.
+	 * @param offset The offset in the buffer where the message will be written at.
+	 * @param bufsize The number of bytes that will be written to the first buffer.
+	 * @param buffer2 The buffer in to which the rest of the message will be written.
+	 * @param offset2 The offset in the second buffer where the rest of the message will be written at.
+	 * @param bufsize2 The maximum number of bytes that can be written to the second buffer.
+	 * @param endpointNumber The local endpoint at which the message must arrive.
+	 * @param handle The handle that can be used for this request.
+	 * @param matchData The matching data. Only messages with matching data that equals this field after masking with the mask will be received by this request.
+	 * @param matchMask The mask applied to the matching data of the message. 
+	 * @throws MxException 
+	 */
+	static void recv(ByteBuffer buffer, int offset, int bufsize,
 			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
-			int handle, long matchData, long matchMask) throws MxException;
+			int handle, long matchData, long matchMask) throws MxException {
+		posted(endpointNumber, handle);
+		transport.recv(buffer, offset, bufsize, buffer2, offset2, bufsize2, endpointNumber, handle, matchData, matchMask);
+	}
 
 	/**
 	 * Waits for a request to finish.
@@ -351,7 +639,13 @@ final class JavaMx {
 	 * @return The message size, or -1 when not successful.
 	 * @throws MxException
 	 */
-	static native int wait(int endpointNumber, int handle) throws MxException; // return message size by success, -1, when unsuccessful
+	static int wait(int endpointNumber, int handle) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.waitFor(handle, 0);
+		}
+		return transport.wait(endpointNumber, handle);
+	}
 
 	/**
 	 * Waits for a request to finish.
@@ -361,7 +655,13 @@ final class JavaMx {
 	 * @return The message size, or -1 when not successful.
 	 * @throws MxException
 	 */
-	static native int wait(int endpointNumber, int handle, long timeout) throws MxException; // return message size by success, -1, when unsuccessful
+	static int wait(int endpointNumber, int handle, long timeout) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.waitFor(handle, timeout);
+		}
+		return transport.wait(endpointNumber, handle, timeout);
+	}
 
 	/**
 	 * Tests whether a request is finished.
@@ -370,7 +670,13 @@ final class JavaMx {
 	 * @return The message size, or -1 when not successful.
 	 * @throws MxException
 	 */
-	static native int test(int endpointNumber, int handle) throws MxException;
+	static int test(int endpointNumber, int handle) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.test(handle);
+		}
+		return transport.test(endpointNumber, handle);
+	}
 
 	/**
 	 * Tests whether a request is finished.
@@ -379,7 +685,67 @@ final class JavaMx {
 	 * @return The message size, or -1 when not successful.
 	 * @throws MxException
 	 */
-	static native int test(int endpointNumber, int handle, int attempts) throws MxException;
+	static int test(int endpointNumber, int handle, int attempts) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.test(handle);
+		}
+		return transport.test(endpointNumber, handle, attempts);
+	}
+
+	/**
+	 * Tests whether any of a number of requests is finished.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handles The handles of the requests to test for.
+	 * @param count The number of handles to test, starting at index 0.
+	 * @param sizes Receives the message size of the finished request at the same index, -1 for the others.
+	 * @return The index of the finished request, or -1 when no request is finished.
+	 * @throws MxException
+	 */
+	static int testAny(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.testAny(handles, count, sizes);
+		}
+		return transport.testAny(endpointNumber, handles, count, sizes);
+	}
+
+	/**
+	 * Tests all of a number of requests with a single call into the transport.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handles The handles of the requests to test for.
+	 * @param count The number of handles to test, starting at index 0.
+	 * @param sizes Receives the message sizes of the finished requests at the same index, -1 for the others,
+	 * and MxTransport.FAILED for the requests that failed.
+	 * @return The number of finished requests, the failed ones included.
+	 * @throws MxException
+	 */
+	static int testSome(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.testSome(handles, count, sizes);
+		}
+		return transport.testSome(endpointNumber, handles, count, sizes);
+	}
+
+	/**
+	 * Waits for any of a number of requests to finish. Blocks on the first 
+	 * handle when none is finished yet.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handles The handles of the requests to wait for, oldest first.
+	 * @param count The number of handles, starting at index 0.
+	 * @param sizes Receives the message size of the finished request at the same index, -1 for the others.
+	 * @param timeout The timeout in milliseconds.
+	 * @return The index of the finished request, or -1 on a timeout.
+	 * @throws MxException
+	 */
+	static int waitAny(int endpointNumber, int[] handles, int count, int[] sizes, long timeout) throws MxException {
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			return ring.waitAny(handles, count, sizes, timeout);
+		}
+		return transport.waitAny(endpointNumber, handles, count, sizes, timeout);
+	}
 	
 	/**
 	 * Probes for a new message that is ready to be received. This call returns immediately.
@@ -388,7 +754,9 @@ final class JavaMx {
 	 * @param matchMask The mask applied to the matching data of the message. 
 	 * @return the size of the message that can be received, or -1 when there is no message
 	 */
-	static native int iprobe(int endpointNumber, long matchData, long matchMask);
+	static int iprobe(int endpointNumber, long matchData, long matchMask) {
+		return transport.iprobe(endpointNumber, matchData, matchMask);
+	}
 
 	/**
 	 * Probes for a new message that is ready to be received. Blocks until the timeout expires.
@@ -398,7 +766,9 @@ final class JavaMx {
 	 * @param matchMask The mask applied to the matching data of the message. 
 	 * @return the size of the message that can be received, or -1 when there is no message
 	 */
-	static native int probe(int endpointNumber, long timeout, long matchData, long matchMask);
+	static int probe(int endpointNumber, long timeout, long matchData, long matchMask) {
+		return transport.probe(endpointNumber, timeout, matchData, matchMask);
+	}
 
 	/**
 	 * Cancels a receive pending request and clean up its resources. Beware: Cannot be used for send() requests.
@@ -407,64 +777,59 @@ final class JavaMx {
 	 * @return True when the request is canceled, false when it was too late to cancel the request. 
 	 * In that case, the request still has to be completed by calling test() or wait() 
 	 */
-	static native boolean cancel(int endpointNumber, int handle);
+	static boolean cancel(int endpointNumber, int handle) {
+		if (!transport.cancel(endpointNumber, handle)) {
+			return false;
+		}
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			ring.forgotten(handle);
+		}
+		return true;
+	}
 
 	/**
 	 * Forget a pending request and clean up its resources. Probably works on all kinds of requests
 	 * @param endpointNumber The number of the endpoint we are working on.
 	 * @param handle The handle of a request that has to be canceled. 
 	 */
-	static native void forget(int endpointNumber, int handle);
+	static void forget(int endpointNumber, int handle) {
+		transport.forget(endpointNumber, handle);
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			ring.forgotten(handle);
+		}
+	}
 
 	/**
 	 * Wake up all threads that are blocked on the endpoint.
 	 * @param endpointNumber The endpoint for which all threads will be waked up.
 	 */
-	static native void wakeup(int endpointNumber);
+	static void wakeup(int endpointNumber) {
+		// first, so a thread the transport wakes up sees the wakeup in the ring
+		CompletionRing ring = ring(endpointNumber);
+		if (ring != null) {
+			ring.wakeup();
+		}
+		transport.wakeup(endpointNumber);
+	}
 
 	/**
 	 * Waits for a message to arrive
 	 * @param endpointNumber the endpoint to work on
 	 * @return the matching information of the next message, or 0 (Matching.MATCH_NONE) when no message has arrived
 	 */
-	static native long waitForMessage(int endpointNumber, long timeout, long matchData, long matchMask);
+	static long waitForMessage(int endpointNumber, long timeout, long matchData, long matchMask) {
+		return transport.waitForMessage(endpointNumber, timeout, matchData, matchMask);
+	}
 
 	/**
 	 * @param endpointNumber the endpoint to work on
 	 * @return the matching information of the next message, or 0 (Matching.MATCH_NONE) when no message has arrived
 	 */
-	static native long pollForMessage(int endpointNumber, long matchData, long matchMask);
-
-	/*
-	static void send(SendBuffer buffer, int endpointNumber, int link, int handle, long matchData) {
-		send(
-			buffer.byteBuffers[0], buffer.byteBuffers[0].remaining(),
-			buffer.byteBuffers[1], buffer.byteBuffers[1].remaining(),
-			buffer.byteBuffers[2], buffer.byteBuffers[2].remaining(),
-			buffer.byteBuffers[3], buffer.byteBuffers[3].remaining(),
-			buffer.byteBuffers[4], buffer.byteBuffers[4].remaining(),
-			buffer.byteBuffers[5], buffer.byteBuffers[5].remaining(),
-			buffer.byteBuffers[6], buffer.byteBuffers[6].remaining(),
-			buffer.byteBuffers[7], buffer.byteBuffers[7].remaining(),
-			buffer.byteBuffers[8], buffer.byteBuffers[8].remaining(),
-			endpointNumber, link, handle, matchData
-			);
-	}
-	static void sendSynchronous(SendBuffer buffer, int endpointNumber, int link, int handle, long matchData) {
-		sendSynchronous(
-			buffer.byteBuffers[0], buffer.byteBuffers[0].remaining(),
-			buffer.byteBuffers[1], buffer.byteBuffers[1].remaining(),
-			buffer.byteBuffers[2], buffer.byteBuffers[2].remaining(),
-			buffer.byteBuffers[3], buffer.byteBuffers[3].remaining(),
-			buffer.byteBuffers[4], buffer.byteBuffers[4].remaining(),
-			buffer.byteBuffers[5], buffer.byteBuffers[5].remaining(),
-			buffer.byteBuffers[6], buffer.byteBuffers[6].remaining(),
-			buffer.byteBuffers[7], buffer.byteBuffers[7].remaining(),
-			buffer.byteBuffers[8], buffer.byteBuffers[8].remaining(),
-			endpointNumber, link, handle, matchData
-			);
+	static long pollForMessage(int endpointNumber, long matchData, long matchMask) {
+		return transport.pollForMessage(endpointNumber, matchData, matchMask);
 	}
-	 */
 
 	//TODO do not use filters in Java, but move them away to the native code completely ?
 	//TODO add endpoint info to links in LinkManager?
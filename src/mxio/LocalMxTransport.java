@@ -0,0 +1,882 @@
+package mxio;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pure Java MxTransport in which all endpoints live inside this JVM. It
+ * reproduces the MX matching semantics: messages carry 64-bit matching data,
+ * receives are matched in the order they were posted using a match mask, and
+ * messages that arrive before a matching receive is posted wait in the
+ * unexpected message queue of the endpoint, where they can be probed for.
+ * Normal sends complete as soon as the data is copied away, synchronous sends
+ * complete when a matching receive has been found.
+ *
+ * With mxio.local.reorder set, every other normal send completes a little
+ * later, like a large MX message that waits for the receiver to pull it, so
+ * the sends of a stream finish out of order.
+ *
+ * This makes it possible to run and profile mxio without Myrinet hardware.
+ */
+final class LocalMxTransport implements MxTransport {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(LocalMxTransport.class);
+
+	/** The NIC ID that is reported for the endpoints on board 0, board b gets LOCAL_NIC_ID + b */
+	static final long LOCAL_NIC_ID = 0x0000020000000001L;
+
+	/** System property for the number of boards this transport pretends to have */
+	static final String BOARDS_PROPERTY = "mxio.local.boards";
+	private static final int BOARDS = Math.max(1, Integer.getInteger(BOARDS_PROPERTY, 1));
+
+	/** System property to let the sends finish out of order */
+	static final String REORDER_PROPERTY = "mxio.local.reorder";
+	/** the delay of a late send, in microseconds */
+	private static final long REORDER_DELAY = 500;
+
+	/** MX_INFINITE: a timeout of 0 means no timeout */
+	private static final long INFINITE = 0;
+
+	private static final int STATUS_SUCCESS = 0;
+	private static final int STATUS_TRUNCATED = 1;
+	private static final int STATUS_ENDPOINT_CLOSED = 2;
+
+	private static final class Message {
+		final byte[] data;
+		final long matchInfo;
+		/** the request of a synchronous sender, that completes when the message is matched */
+		final Request sender;
+
+		Message(byte[] data, long matchInfo, Request sender) {
+			this.data = data;
+			this.matchInfo = matchInfo;
+			this.sender = sender;
+		}
+	}
+
+	private static final class Endpoint {
+		final int number;
+		final int id;
+		final int filter;
+		final int board;
+
+		/** receives that are posted, in order of posting */
+		final LinkedList<Request> posted = new LinkedList<Request>();
+		/** messages that arrived before a matching receive was posted */
+		final LinkedList<Message> unexpected = new LinkedList<Message>();
+
+		boolean closed = false;
+		int wakeups = 0;
+		/** where completions are reported, if set */
+		volatile ByteBuffer ring = null;
+		private volatile int fence;
+		/** wakeups of the threads that wait for the ring, guarded by the ring */
+		int ringWakeups = 0;
+
+		Endpoint(int number, int id, int filter, int board) {
+			this.number = number;
+			this.id = id;
+			this.filter = filter;
+			this.board = board;
+		}
+
+		/** Orders the accesses to the completion ring, like CompletionRing does */
+		void fence() {
+			fence = 0;
+			if (fence != 0) {
+				throw new Error("cannot happen");
+			}
+		}
+
+		/** Must be called while holding the lock of the endpoint */
+		Request matchPosted(long matchInfo) {
+			Iterator<Request> it = posted.iterator();
+			while (it.hasNext()) {
+				Request r = it.next();
+				if (matches(matchInfo, r.matchData, r.matchMask)) {
+					it.remove();
+					return r;
+				}
+			}
+			return null;
+		}
+
+		/** Must be called while holding the lock of the endpoint */
+		Message findUnexpected(long matchData, long matchMask, boolean remove) {
+			Iterator<Message> it = unexpected.iterator();
+			while (it.hasNext()) {
+				Message m = it.next();
+				if (matches(m.matchInfo, matchData, matchMask)) {
+					if (remove) {
+						it.remove();
+					}
+					return m;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final class Request {
+		static final int IDLE = 0, PENDING = 1, DONE = 2;
+
+		final int handle;
+		int state = IDLE;
+		Endpoint endpoint;
+		boolean forgotten = false;
+		boolean woken = false;
+		/** the number of operations started with this request */
+		int started = 0;
+
+		// receive requests only
+		ByteBuffer buffer, buffer2;
+		int offset, size, offset2, size2;
+		long matchData, matchMask;
+
+		// set on completion
+		int length;
+		int status;
+		long matchInfo;
+
+		Request(int handle) {
+			this.handle = handle;
+		}
+
+		/** copies the message into the buffers of this receive request */
+		void scatter(Message m) {
+			int length = m.data.length;
+			int first = Math.min(length, size);
+			put(buffer, offset, m.data, 0, first);
+			int second = Math.min(length - first, size2);
+			put(buffer2, offset2, m.data, first, second);
+			complete(first + second,
+					(first + second < length) ? STATUS_TRUNCATED : STATUS_SUCCESS,
+					m.matchInfo);
+		}
+
+		synchronized void complete(int length, int status, long matchInfo) {
+			if (forgotten) {
+				reset();
+				return;
+			}
+			ByteBuffer ring = (endpoint == null) ? null : endpoint.ring;
+			if (ring != null) {
+				report(endpoint, ring, handle, status, length, matchInfo);
+				reset();
+				return;
+			}
+			this.length = length;
+			this.status = status;
+			this.matchInfo = matchInfo;
+			state = DONE;
+			notifyAll();
+		}
+
+		/** Must be called while holding the lock of the request */
+		int consume() throws MxException {
+			int status = this.status;
+			int length = this.length;
+			reset();
+			switch (status) {
+			case STATUS_SUCCESS:
+				return length;
+			case STATUS_TRUNCATED:
+				throw new MxException("Message truncated");
+			case STATUS_ENDPOINT_CLOSED:
+				throw new MxException("Remote endpoint is closed");
+			default:
+				throw new MxException("Request failed");
+			}
+		}
+
+		/** Must be called while holding the lock of the request */
+		void reset() {
+			state = IDLE;
+			endpoint = null;
+			forgotten = false;
+			buffer = buffer2 = null;
+		}
+	}
+
+	private volatile Endpoint[] endpoints = new Endpoint[0];
+
+	/** completes the late sends, null when the sends finish in order */
+	private final ScheduledExecutorService reorder = !Boolean.getBoolean(REORDER_PROPERTY) ? null
+			: new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "LocalMxTransport reorder");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+	private final AtomicInteger reordered = new AtomicInteger();
+	private final ArrayList<Endpoint> endpointIds = new ArrayList<Endpoint>();
+
+	private Request[][] requests;
+	private int handleBlockSize;
+	private volatile int handleBlocksInUse;
+
+	private Endpoint[][] links;
+	private int linkBlockSize;
+	private volatile int linkBlocksInUse;
+
+	static boolean matches(long matchInfo, long matchData, long matchMask) {
+		return (matchInfo & matchMask) == (matchData & matchMask);
+	}
+
+	private static void get(ByteBuffer buffer, int offset, byte[] dst, int dstOffset, int length) {
+		if (length == 0) {
+			return;
+		}
+		ByteBuffer b = buffer.duplicate();
+		b.clear();
+		b.position(offset);
+		b.get(dst, dstOffset, length);
+	}
+
+	private static void put(ByteBuffer buffer, int offset, byte[] src, int srcOffset, int length) {
+		if (length <= 0) {
+			return;
+		}
+		ByteBuffer b = buffer.duplicate();
+		b.clear();
+		b.position(offset);
+		b.put(src, srcOffset, length);
+	}
+
+	public boolean init() {
+		if (logger.isDebugEnabled()) {
+			logger.debug("Using the in-process transport");
+		}
+		return true;
+	}
+
+	public boolean deInit() {
+		return true;
+	}
+
+	public boolean initHandles(int blockSize, int maxBlocks) {
+		handleBlockSize = blockSize;
+		requests = new Request[maxBlocks][];
+		handleBlocksInUse = 0;
+		return true;
+	}
+
+	public synchronized boolean addHandleBlock() {
+		if (handleBlocksInUse >= requests.length) {
+			return false;
+		}
+		Request[] block = new Request[handleBlockSize];
+		for (int i = 0; i < handleBlockSize; i++) {
+			block[i] = new Request(handleBlocksInUse * handleBlockSize + i);
+		}
+		requests[handleBlocksInUse] = block;
+		handleBlocksInUse++;
+		return true;
+	}
+
+	public boolean initLinks(int blockSize, int maxBlocks) {
+		linkBlockSize = blockSize;
+		links = new Endpoint[maxBlocks][];
+		linkBlocksInUse = 0;
+		return true;
+	}
+
+	public synchronized boolean addLinkBlock() {
+		if (linkBlocksInUse >= links.length) {
+			return false;
+		}
+		links[linkBlocksInUse] = new Endpoint[linkBlockSize];
+		linkBlocksInUse++;
+		return true;
+	}
+
+	private Request getRequest(int handle) {
+		int block = handle / handleBlockSize;
+		if (handle < 0 || block >= handleBlocksInUse) {
+			throw new Error("Invalid Handle");
+		}
+		return requests[block][handle % handleBlockSize];
+	}
+
+	private Endpoint getEndpoint(int endpointNumber) {
+		Endpoint[] endpoints = this.endpoints;
+		if (endpointNumber < 0 || endpointNumber >= endpoints.length
+				|| endpoints[endpointNumber] == null) {
+			throw new Error("Invalid Endpoint");
+		}
+		return endpoints[endpointNumber];
+	}
+
+	private Endpoint getTarget(int link) {
+		int block = link / linkBlockSize;
+		if (link < 0 || block >= linkBlocksInUse) {
+			throw new Error("Invalid Link");
+		}
+		return links[block][link % linkBlockSize];
+	}
+
+	public int getBoardCount() {
+		return BOARDS;
+	}
+
+	public synchronized int newEndpoint(int filter, int board) {
+		if (board == ANY_BOARD) {
+			board = 0;
+		} else if (board < 0 || board >= BOARDS) {
+			throw new Error("no such board: " + board);
+		}
+		Endpoint[] current = endpoints;
+		int number = 0;
+		while (number < current.length && current[number] != null) {
+			number++;
+		}
+		Endpoint[] temp = new Endpoint[Math.max(current.length, number + 1)];
+		System.arraycopy(current, 0, temp, 0, current.length);
+		Endpoint e = new Endpoint(number, endpointIds.size(), filter, board);
+		endpointIds.add(e);
+		temp[number] = e;
+		endpoints = temp;
+		return number;
+	}
+
+	public void closeEndpoint(int endpointNumber) {
+		Endpoint e;
+		synchronized (this) {
+			e = getEndpoint(endpointNumber);
+			Endpoint[] temp = endpoints.clone();
+			temp[endpointNumber] = null;
+			endpoints = temp;
+			endpointIds.set(e.id, null);
+		}
+		ArrayList<Request> failed = new ArrayList<Request>();
+		synchronized (e) {
+			e.closed = true;
+			failed.addAll(e.posted);
+			e.posted.clear();
+			for (Message m : e.unexpected) {
+				if (m.sender != null) {
+					failed.add(m.sender);
+				}
+			}
+			e.unexpected.clear();
+			e.notifyAll();
+		}
+		for (Request r : failed) {
+			r.complete(0, STATUS_ENDPOINT_CLOSED, Matching.NONE);
+		}
+		wakeup(e);
+	}
+
+	public boolean attachCompletionRing(int endpointNumber, ByteBuffer ring) {
+		Endpoint e = getEndpoint(endpointNumber);
+		if (!ring.isDirect() || ring.capacity() < CompletionRing.RECORDS + CompletionRing.RECORD_SIZE) {
+			return false;
+		}
+		e.ring = ring.duplicate().order(ByteOrder.nativeOrder());
+		return true;
+	}
+
+	public void waitForCompletion(int endpointNumber, long seen, long timeout) {
+		Endpoint[] endpoints = this.endpoints;
+		Endpoint e = (endpointNumber < endpoints.length) ? endpoints[endpointNumber] : null;
+		ByteBuffer ring = (e == null) ? null : e.ring;
+		if (ring == null) {
+			// the requests of a closed endpoint are all completed
+			return;
+		}
+		e.fence();
+		if (ring.getLong(CompletionRing.TAIL) != seen) {
+			// without the lock of the ring, report() holds it while the ring is full
+			return;
+		}
+		long deadline = (timeout == INFINITE) ? Long.MAX_VALUE
+				: System.currentTimeMillis() + timeout;
+		synchronized (ring) {
+			int wakeups = e.ringWakeups;
+			while (ring.getLong(CompletionRing.TAIL) == seen && wakeups == e.ringWakeups) {
+				long left = deadline - System.currentTimeMillis();
+				if (left <= 0) {
+					return;
+				}
+				try {
+					ring.wait(left);
+				} catch (InterruptedException ex) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Writes a completion record to a ring, waits for the consumer when the
+	 * ring is full.
+	 */
+	private static void report(Endpoint e, ByteBuffer ring, int handle, int status, int length, long matchInfo) {
+		int capacity = (ring.capacity() - CompletionRing.RECORDS) / CompletionRing.RECORD_SIZE;
+		synchronized (ring) {
+			long tail = ring.getLong(CompletionRing.TAIL);
+			int i = 0;
+			e.fence();
+			while (tail - ring.getLong(CompletionRing.HEAD) >= capacity) {
+				ShmChannel.idle(i++);
+				e.fence();
+			}
+			int record = CompletionRing.RECORDS + (int) (tail % capacity) * CompletionRing.RECORD_SIZE;
+			ring.putInt(record + CompletionRing.RECORD_HANDLE, handle);
+			ring.putInt(record + CompletionRing.RECORD_STATUS, status);
+			ring.putInt(record + CompletionRing.RECORD_LENGTH, length);
+			ring.putLong(record + CompletionRing.RECORD_MATCH_INFO, matchInfo);
+			e.fence();
+			ring.putLong(CompletionRing.TAIL, tail + 1);
+			ring.notifyAll();
+		}
+	}
+
+	public long getMyNicId(int endpointNumber) {
+		return LOCAL_NIC_ID + getEndpoint(endpointNumber).board;
+	}
+
+	public int getMyEndpointId(int endpointNumber) {
+		return getEndpoint(endpointNumber).id;
+	}
+
+	public long getNicId(String name) {
+		// every host name resolves to this JVM
+		return LOCAL_NIC_ID;
+	}
+
+	public boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter) throws MxException {
+		return connect(endpointNumber, link, targetNicId, targetEndpoint, filter, INFINITE);
+	}
+
+	public boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter, long timeout) throws MxException {
+		getEndpoint(endpointNumber);
+		Endpoint target = null;
+		synchronized (this) {
+			if (targetEndpoint >= 0 && targetEndpoint < endpointIds.size()) {
+				target = endpointIds.get(targetEndpoint);
+			}
+		}
+		if (target == null || targetNicId != LOCAL_NIC_ID + target.board) {
+			throw new MxException("Remote endpoint is closed");
+		}
+		if (target.filter != filter) {
+			throw new MxException("Bad connection key");
+		}
+		int block = link / linkBlockSize;
+		if (link < 0 || block >= linkBlocksInUse) {
+			throw new MxException("Invalid Link");
+		}
+		links[block][link % linkBlockSize] = target;
+		return true;
+	}
+
+	public boolean disconnect(int link) {
+		if (getTarget(link) == null) {
+			return false;
+		}
+		links[link / linkBlockSize][link % linkBlockSize] = null;
+		return true;
+	}
+
+	public void send(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData) {
+		byte[] data = new byte[msgSize];
+		get(buffer, offset, data, 0, msgSize);
+		doSend(data, endpointNumber, link, handle, matchData, false);
+	}
+
+	public void sendSynchronous(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData) {
+		byte[] data = new byte[msgSize];
+		get(buffer, offset, data, 0, msgSize);
+		doSend(data, endpointNumber, link, handle, matchData, true);
+	}
+
+	public void send(ByteBuffer header, int headerSize, ByteBuffer payload, int payloadSize,
+			int endpointNumber, int link, int handle, long matchData) {
+		byte[] data = new byte[headerSize + payloadSize];
+		get(header, 0, data, 0, headerSize);
+		get(payload, 0, data, headerSize, payloadSize);
+		doSend(data, endpointNumber, link, handle, matchData, false);
+	}
+
+	public void sendSynchronous(ByteBuffer header, int headerSize, ByteBuffer payload, int payloadSize,
+			int endpointNumber, int link, int handle, long matchData) {
+		byte[] data = new byte[headerSize + payloadSize];
+		get(header, 0, data, 0, headerSize);
+		get(payload, 0, data, headerSize, payloadSize);
+		doSend(data, endpointNumber, link, handle, matchData, true);
+	}
+
+	public void send(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData) {
+		doSend(gather(segments, lengths), endpointNumber, link, handle, matchData, false);
+	}
+
+	public void sendSynchronous(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData) {
+		doSend(gather(segments, lengths), endpointNumber, link, handle, matchData, true);
+	}
+
+	private static byte[] gather(ByteBuffer[] segments, int[] lengths) {
+		if (segments.length > MAX_SEGMENTS) {
+			throw new Error("Invalid number of segments");
+		}
+		int size = 0;
+		for (int i = 0; i < segments.length; i++) {
+			size += lengths[i];
+		}
+		byte[] data = new byte[size];
+		int offset = 0;
+		for (int i = 0; i < segments.length; i++) {
+			get(segments[i], 0, data, offset, lengths[i]);
+			offset += lengths[i];
+		}
+		return data;
+	}
+
+	private void doSend(byte[] data, int endpointNumber, int link, int handle, long matchData, boolean synchronous) {
+		Endpoint e = getEndpoint(endpointNumber);
+		Endpoint target = getTarget(link);
+		if (target == null) {
+			throw new Error("Link not connected");
+		}
+		Request request = getRequest(handle);
+		synchronized (request) {
+			request.state = Request.PENDING;
+			request.started++;
+			request.endpoint = e;
+			request.size = request.size2 = 0;
+		}
+
+		Request receiver;
+		synchronized (target) {
+			if (target.closed) {
+				receiver = null;
+			} else {
+				receiver = target.matchPosted(matchData);
+				if (receiver == null) {
+					target.unexpected.add(new Message(data, matchData,
+							synchronous ? request : null));
+					target.notifyAll();
+					if (!synchronous) {
+						sent(request, data.length, matchData);
+					}
+					return;
+				}
+			}
+		}
+		if (receiver == null) {
+			request.complete(0, STATUS_ENDPOINT_CLOSED, matchData);
+			return;
+		}
+		receiver.scatter(new Message(data, matchData, null));
+		sent(request, data.length, matchData);
+	}
+
+	/**
+	 * Completes a normal send, the data is copied away. Every other send is
+	 * completed late when the sends finish out of order.
+	 */
+	private void sent(final Request request, final int length, final long matchData) {
+		if (reorder == null || (reordered.getAndIncrement() & 1) != 0) {
+			request.complete(length, STATUS_SUCCESS, matchData);
+			return;
+		}
+		final int started;
+		synchronized (request) {
+			started = request.started;
+		}
+		reorder.schedule(new Runnable() {
+			public void run() {
+				synchronized (request) {
+					// the request may have been forgotten and reused meanwhile
+					if (request.started == started && request.state == Request.PENDING) {
+						request.complete(length, STATUS_SUCCESS, matchData);
+					}
+				}
+			}
+		}, REORDER_DELAY, TimeUnit.MICROSECONDS);
+	}
+
+	public void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData) throws MxException {
+		doRecv(buffer, offset, bufsize, null, 0, 0, endpointNumber, handle, matchData, Matching.MASK_ALL);
+	}
+
+	public void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData, long matchMask) throws MxException {
+		doRecv(buffer, offset, bufsize, null, 0, 0, endpointNumber, handle, matchData, matchMask);
+	}
+
+	public void recv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData) throws MxException {
+		doRecv(buffer, offset, bufsize, buffer2, offset2, bufsize2, endpointNumber, handle, matchData, Matching.MASK_ALL);
+	}
+
+	public void recv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData, long matchMask) throws MxException {
+		doRecv(buffer, offset, bufsize, buffer2, offset2, bufsize2, endpointNumber, handle, matchData, matchMask);
+	}
+
+	private void doRecv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData, long matchMask) throws MxException {
+		Endpoint e = getEndpoint(endpointNumber);
+		Request request = getRequest(handle);
+		synchronized (request) {
+			if (request.state != Request.IDLE) {
+				throw new MxException("Request handle is still in use");
+			}
+			request.state = Request.PENDING;
+			request.started++;
+			request.endpoint = e;
+			request.buffer = buffer;
+			request.offset = offset;
+			request.size = (buffer == null) ? 0 : bufsize;
+			request.buffer2 = buffer2;
+			request.offset2 = offset2;
+			request.size2 = (buffer2 == null) ? 0 : bufsize2;
+			request.matchData = matchData;
+			request.matchMask = matchMask;
+		}
+
+		Message m;
+		synchronized (e) {
+			m = e.findUnexpected(matchData, matchMask, true);
+			if (m == null) {
+				e.posted.add(request);
+				return;
+			}
+		}
+		request.scatter(m);
+		if (m.sender != null) {
+			m.sender.complete(m.data.length, STATUS_SUCCESS, m.matchInfo);
+		}
+	}
+
+	public int wait(int endpointNumber, int handle) throws MxException {
+		return wait(endpointNumber, handle, INFINITE);
+	}
+
+	public int wait(int endpointNumber, int handle, long timeout) throws MxException {
+		getEndpoint(endpointNumber);
+		Request r = getRequest(handle);
+		long deadline = (timeout == INFINITE) ? Long.MAX_VALUE
+				: System.currentTimeMillis() + timeout;
+		synchronized (r) {
+			r.woken = false;
+			while (r.state == Request.PENDING && !r.woken) {
+				long t = deadline - System.currentTimeMillis();
+				if (t <= 0) {
+					return -1;
+				}
+				try {
+					r.wait(t);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			if (r.state == Request.DONE) {
+				return r.consume();
+			}
+			if (r.state == Request.IDLE) {
+				throw new MxException("Invalid Handle");
+			}
+			return -1;
+		}
+	}
+
+	public int test(int endpointNumber, int handle) throws MxException {
+		getEndpoint(endpointNumber);
+		Request r = getRequest(handle);
+		synchronized (r) {
+			switch (r.state) {
+			case Request.DONE:
+				return r.consume();
+			case Request.PENDING:
+				return -1;
+			default:
+				throw new MxException("Invalid Handle");
+			}
+		}
+	}
+
+	public int test(int endpointNumber, int handle, int attempts) throws MxException {
+		// completion does not depend on polling here, so one attempt is as good as many
+		return test(endpointNumber, handle);
+	}
+
+	public int testAny(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException {
+		int first = -1;
+		for (int i = 0; i < count; i++) {
+			sizes[i] = (first == -1) ? test(endpointNumber, handles[i]) : -1;
+			if (sizes[i] >= 0) {
+				first = i;
+			}
+		}
+		return first;
+	}
+
+	public int testSome(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException {
+		getEndpoint(endpointNumber);
+		int finished = 0;
+		for (int i = 0; i < count; i++) {
+			try {
+				sizes[i] = test(endpointNumber, handles[i]);
+			} catch (MxException ex) {
+				// only the owner of the request sees the failure
+				if (logger.isDebugEnabled()) {
+					logger.debug("testSome(): request " + handles[i] + " failed: " + ex.getMessage());
+				}
+				sizes[i] = FAILED;
+				finished++;
+				continue;
+			}
+			if (sizes[i] >= 0) {
+				finished++;
+			}
+		}
+		return finished;
+	}
+
+	public int waitAny(int endpointNumber, int[] handles, int count, int[] sizes, long timeout) throws MxException {
+		int first = testAny(endpointNumber, handles, count, sizes);
+		if (first >= 0 || count == 0) {
+			return first;
+		}
+		// block on the oldest request, like the native implementation
+		sizes[0] = wait(endpointNumber, handles[0], timeout);
+		return (sizes[0] < 0) ? -1 : 0;
+	}
+
+	public int iprobe(int endpointNumber, long matchData, long matchMask) {
+		Endpoint e = getEndpoint(endpointNumber);
+		synchronized (e) {
+			Message m = e.findUnexpected(matchData, matchMask, false);
+			return (m == null) ? -1 : m.data.length;
+		}
+	}
+
+	public int probe(int endpointNumber, long timeout, long matchData, long matchMask) {
+		Message m = doProbe(getEndpoint(endpointNumber), timeout, matchData, matchMask);
+		return (m == null) ? -1 : m.data.length;
+	}
+
+	private Message doProbe(Endpoint e, long timeout, long matchData, long matchMask) {
+		long deadline = (timeout == INFINITE) ? Long.MAX_VALUE
+				: System.currentTimeMillis() + timeout;
+		synchronized (e) {
+			int wakeups = e.wakeups;
+			while (true) {
+				Message m = e.findUnexpected(matchData, matchMask, false);
+				if (m != null) {
+					return m;
+				}
+				if (e.closed || wakeups != e.wakeups) {
+					return null;
+				}
+				long t = deadline - System.currentTimeMillis();
+				if (t <= 0) {
+					return null;
+				}
+				try {
+					e.wait(t);
+				} catch (InterruptedException ex) {
+					// ignore
+				}
+			}
+		}
+	}
+
+	public boolean cancel(int endpointNumber, int handle) {
+		getEndpoint(endpointNumber);
+		Request r = getRequest(handle);
+		Endpoint e;
+		synchronized (r) {
+			e = r.endpoint;
+		}
+		if (e == null) {
+			return false;
+		}
+		synchronized (e) {
+			if (!e.posted.remove(r)) {
+				return false;
+			}
+			synchronized (r) {
+				r.reset();
+			}
+			return true;
+		}
+	}
+
+	public void forget(int endpointNumber, int handle) {
+		getEndpoint(endpointNumber);
+		Request r = getRequest(handle);
+		if (cancel(endpointNumber, handle)) {
+			return;
+		}
+		synchronized (r) {
+			if (r.state == Request.PENDING) {
+				// completes in the background, the handle can be used again
+				// meanwhile, so it gets a request of its own
+				r.forgotten = true;
+				requests[handle / handleBlockSize][handle % handleBlockSize] = new Request(handle);
+			} else {
+				r.reset();
+			}
+		}
+	}
+
+	public void wakeup(int endpointNumber) {
+		wakeup(getEndpoint(endpointNumber));
+	}
+
+	private void wakeup(Endpoint e) {
+		synchronized (e) {
+			e.wakeups++;
+			e.notifyAll();
+		}
+		ByteBuffer ring = e.ring;
+		if (ring != null) {
+			synchronized (ring) {
+				e.ringWakeups++;
+				ring.notifyAll();
+			}
+		}
+		int blocks = handleBlocksInUse;
+		for (int b = 0; b < blocks; b++) {
+			for (Request r : requests[b]) {
+				synchronized (r) {
+					if (r.endpoint == e && r.state == Request.PENDING) {
+						r.woken = true;
+						r.notifyAll();
+					}
+				}
+			}
+		}
+	}
+
+	public long waitForMessage(int endpointNumber, long timeout, long matchData, long matchMask) {
+		Message m = doProbe(getEndpoint(endpointNumber), timeout, matchData, matchMask);
+		return (m == null) ? Matching.NONE : m.matchInfo;
+	}
+
+	public long pollForMessage(int endpointNumber, long matchData, long matchMask) {
+		Endpoint e = getEndpoint(endpointNumber);
+		synchronized (e) {
+			Message m = e.findUnexpected(matchData, matchMask, false);
+			return (m == null) ? Matching.NONE : m.matchInfo;
+		}
+	}
+}
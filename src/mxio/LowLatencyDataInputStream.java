@@ -1,7 +1,10 @@
 package mxio;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,9 +15,73 @@ public class LowLatencyDataInputStream extends DataInputStream {
     .getLogger(LowLatencyDataInputStream.class);
 	
 	private	ArrayBlockingQueue<MxReceiveBuffer> queue;
+	/** shared memory channel from the sender, when it runs on the same host */
+	private ShmChannel channel;
 
+	/** 
+	 * The endpoints of the rails when the sender stripes its messages over 
+	 * multiple rails, the first one is endpointNumber. Null otherwise. 
+	 */
+	private int[] rails = null;
+	/** the posted buffers of each rail, the first one is queue */
+	private ArrayList<ArrayBlockingQueue<MxReceiveBuffer>> railQueues;
+	/** decides how long we poll for a message to arrive */
+	private final SpinPolicy policy = new SpinPolicy();
+	/** the sequence number of the next message */
+	private short nextSequenceNumber = 0;
+
+	/** the number of messages after which the size class of the slots can shrink */
+	private static final int SHRINK_WINDOW = 4 * Config.RECEIVE_QUEUE_SIZE;
+
+	/** 
+	 * The posted buffers of a stream that is not striped. The first one is
+	 * of the largest size class, so every message fits in a posted buffer, 
+	 * the others are of postClass. Null when the stream is striped.
+	 */
+	private MxReceiveBuffer[] slots;
+	/** decides how many slots are posted */
+	private ReceiveDepth receiveDepth = null;
+	/** the slots from limit on are not in use, it is at least the depth */
+	private int limit = 0;
+	/** the size of the message in each slot, -1 while it is not finished */
+	private int[] sizes;
+	/** the order in which the slots are posted */
+	private long[] postedAt;
+	private long posts = 0;
+	/** arguments of testSome() and waitAny() */
+	private int[] pending, pendingSlots, results;
+	/** received messages that overtook a message sent before them */
+	private ArrayList<MxReceiveBuffer> early;
+	/** the size class of the slots besides the first one */
+	private int postClass = 0;
+	/** the size class of the last message, and the largest one in this window */
+	private int lastClass = 0, largestClass = 0;
+	private int window = 0;
+
+	/** the longest we block on a slot, when messages can arrive in the shared queue too */
+	private static final long SHARED_TIMEOUT = 10;
+
+	/** 
+	 * The messages the SharedReceiveThread of the socket received for this
+	 * stream. Null when the socket does not share its receives.
+	 */
+	private LinkedBlockingQueue<MxReceiveBuffer> shared = null;
+	/** true while the slots are posted, always when the receives are not shared */
+	private volatile boolean dedicated = true;
+	/** the number of messages received while the slots are not posted */
+	private int busy = 0;
+	/** the number of early messages and the number of messages taken, for the SharedReceiveThread */
+	private volatile int backlog = 0, taken = 0;
+	/** true when the SharedReceiveThread could not receive a message of this stream */
+	private volatile boolean lost = false;
+
+	/**
+	 * @param rails The endpoints of the rails the sender stripes its messages
+	 * over, or null when it uses endpointNumber only
+	 */
 	protected LowLatencyDataInputStream(MxSocket socket, MxAddress source,
-			int endpointNumber, long matchData) throws IOException {
+			int endpointNumber, long matchData, ShmChannel channel, int[] rails) 
+	throws IOException {
 		super(socket, source, endpointNumber, matchData);
 
 		if (logger.isDebugEnabled()) {
@@ -23,67 +90,589 @@ public class LowLatencyDataInputStream extends DataInputStream {
 					+  " created.");
 		}
 		queue = new ArrayBlockingQueue<MxReceiveBuffer>(Config.RECEIVE_QUEUE_SIZE);
-
-		for(int i = 0; i < Config.RECEIVE_QUEUE_SIZE; i++) {
-			postBuffer();
+		early = new ArrayList<MxReceiveBuffer>();
+		if(Config.SHARED_RECEIVE) {
+			shared = new LinkedBlockingQueue<MxReceiveBuffer>();
+		}
+		this.channel = channel;
+		if(channel != null) {
+			// messages arrive in the channel, not at the endpoint
+			return;
 		}
 
+		if(rails == null || rails.length < 2) {
+			// a new stream is idle until it receives messages
+			dedicated = (shared == null);
+			receiveDepth = new ReceiveDepth(socket, dedicated ? 
+					Config.RECEIVE_QUEUE_SIZE : Config.DEDICATED_RECEIVES);
+			slots = new MxReceiveBuffer[Config.MAX_RECEIVE_DEPTH];
+			sizes = new int[slots.length];
+			postedAt = new long[slots.length];
+			pending = new int[slots.length];
+			pendingSlots = new int[slots.length];
+			results = new int[slots.length];
+			for(int i = 0; i < slots.length; i++) {
+				sizes[i] = -1;
+			}
+			if(dedicated) {
+				fillSlots();
+			} else {
+				receiveDepth.suspend();
+			}
+		} else {
+			for(int i = 0; i < Config.RECEIVE_QUEUE_SIZE; i++) {
+				postBuffer();
+			}
+			this.rails = rails;
+			railQueues = new ArrayList<ArrayBlockingQueue<MxReceiveBuffer>>(rails.length);
+			railQueues.add(queue);
+			for(int r = 1; r < rails.length; r++) {
+				ArrayBlockingQueue<MxReceiveBuffer> q = 
+					new ArrayBlockingQueue<MxReceiveBuffer>(Config.STRIPE_RECEIVE_QUEUE_SIZE);
+				railQueues.add(q);
+				for(int i = 0; i < Config.STRIPE_RECEIVE_QUEUE_SIZE; i++) {
+					postBuffer(rails[r], q);
+				}
+			}
+		}
 	}
 
 	@Override
 	protected MxReceiveBuffer fetchBuffer() throws IOException {
-		MxReceiveBuffer buffer = null;
+		if(channel != null) {
+			return fetchFromChannel();
+		}
+		if(rails != null) {
+			return fetchStriped();
+		}
+		return fetchFromSlots();
+	}
 
-		buffer = queue.poll();
-		
-		while(buffer == null) {
-			for(int i = 0; i < queue.remainingCapacity(); i++) {
-				postBuffer();
+	/**
+	 * @return true when the stream has receives of its own posted, they take
+	 * its unexpected messages when they are reposted
+	 */
+	boolean postsReceives() {
+		return dedicated;
+	}
+
+	/**
+	 * @return the depth of the receive queue, null when the stream is 
+	 * striped or uses a channel
+	 */
+	ReceiveDepth receiveDepth() {
+		return receiveDepth;
+	}
+
+	@Override
+	protected int creditWindow() {
+		if(channel != null) {
+			// the channel has flow control of its own
+			return 0;
+		}
+		if(receiveDepth != null) {
+			return receiveDepth.depth();
+		}
+		return super.creditWindow();
+	}
+
+	/**
+	 * @return the number of messages that were received for this stream, and
+	 * that its reader did not take yet
+	 */
+	int waiting() {
+		return shared == null ? 0 : shared.size() + backlog;
+	}
+
+	/**
+	 * @return the number of messages the reader took, it grows as long as 
+	 * the reader keeps up
+	 */
+	int taken() {
+		return taken;
+	}
+
+	/**
+	 * Called by the SharedReceiveThread with a message for this stream.
+	 */
+	void newMessage(MxReceiveBuffer buffer) {
+		shared.add(buffer);
+	}
+
+	/**
+	 * Called by the SharedReceiveThread when a message for this stream could
+	 * not be received. The reader gets the messages before it, then fails.
+	 */
+	void lost() {
+		lost = true;
+	}
+
+	/**
+	 * Receives the next message of a stream that is not striped. A small
+	 * message can finish before a large one that was sent before it, and 
+	 * when the receives are shared a message can arrive in the shared queue 
+	 * or in a slot, so the messages are put back in order with their 
+	 * sequence numbers.
+	 */
+	private MxReceiveBuffer fetchFromSlots() throws IOException {
+		if(closed) {
+			// the slots are cleaned up already
+			return null;
+		}
+		drainShared();
+		MxReceiveBuffer buffer = takeEarly();
+		if(buffer != null) {
+			return buffer;
+		}
+		int polls = 0;
+		long timeout = 1;
+		while(true) {
+			// messages sent before the close have arrived when we notice it
+			boolean last = senderClosed;
+			int tested = testSlots();
+			drainShared();
+			buffer = takeFinished();
+			if(buffer != null) {
+				if(polls < policy.budget()) {
+					policy.spun();
+				}
+				return buffer;
+			}
+			if(lost) {
+				throw new MxException("receive failed, message lost");
+			}
+			if(last && !sharedReceiving()) {
+				// a message can be handed over after the last drain
+				drainShared();
+				buffer = takeEarly();
+				if(buffer != null) {
+					return buffer;
+				}
+				closed = true;
+				cleanUp();
+				return null;
+			}
+			polls++;
+			if(polls < policy.budget()) {
+				policy.pause(polls);
+				continue;
+			}
+			if(polls == policy.budget()) {
+				policy.parked();
+			}
+			if(receiveDepth.idle(System.currentTimeMillis())) {
+				receiveDepth.shrink();
+				if(shared == null) {
+					cancelSlots();
+				} else {
+					if(dedicated) {
+						unpostSlots();
+					}
+					busy = 0;
+				}
+				// the canceled handles are gone, test again
+				continue;
+			}
+			if(tested > 0) {
+				// we block on the slot the next message most likely goes to. The
+				// timeout grows while nothing arrives, so a wrong guess costs at 
+				// most as much as the wait so far.
+				int index = JavaMx.waitAny(endpointNumber, pending, tested, results, timeout);
+				if(index >= 0) {
+					sizes[pendingSlots[index]] = results[index];
+				}
+				timeout = Math.min(2 * timeout, shared == null ? 1000 : SHARED_TIMEOUT);
+			} else if(shared != null && !slotsPosted()) {
+				// no slots are posted, the messages arrive in the shared queue
+				try {
+					MxReceiveBuffer b = shared.poll(timeout, TimeUnit.MILLISECONDS);
+					if(b != null) {
+						shared(b);
+					}
+				} catch (InterruptedException e) {
+					// ignore
+				}
+				timeout = Math.min(2 * timeout, 1000);
+			}
+		}
+	}
+
+	/**
+	 * Moves the messages in the shared queue to the early ones.
+	 */
+	private void drainShared() {
+		if(shared == null) {
+			return;
+		}
+		MxReceiveBuffer buffer = shared.poll();
+		while(buffer != null) {
+			shared(buffer);
+			buffer = shared.poll();
+		}
+	}
+
+	private void shared(MxReceiveBuffer buffer) {
+		if(slots != null) {
+			received(buffer.sizeClass());
+		}
+		early.add(buffer);
+	}
+
+	/**
+	 * @return true when receives are posted in the slots, the slots that
+	 * testSlots() found finished are posted again by takeFinished()
+	 */
+	private boolean slotsPosted() {
+		for(int i = 0; i < limit; i++) {
+			if(slots[i] != null) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return true when a message of this stream can be on its way through 
+	 * the SharedReceiveThread of the socket
+	 */
+	private boolean sharedReceiving() {
+		SharedReceiveThread thread = socket.sharedReceiveThread;
+		return shared != null && thread != null && thread.receiving(getPort());
+	}
+
+	/**
+	 * Posts the slots of a stream that became busy.
+	 */
+	private void postSlots() throws IOException {
+		if (logger.isDebugEnabled()) {
+			logger.debug("stream " + Integer.toHexString(getPort()) 
+					+ " is busy, posting its receives");
+		}
+		dedicated = true;
+		receiveDepth.resume();
+		fillSlots();
+	}
+
+	/**
+	 * Posts the empty slots up to the depth.
+	 */
+	private void fillSlots() throws IOException {
+		int depth = receiveDepth.depth();
+		for(int i = 0; i < depth; i++) {
+			if(slots[i] == null) {
+				postSlot(i);
+			}
+		}
+		limit = Math.max(limit, depth);
+	}
+
+	/**
+	 * Cancels the slots above the depth, after it shrank. A slot that a
+	 * message matched already is taken when it finishes.
+	 */
+	private void cancelSlots() {
+		for(int i = receiveDepth.depth(); i < limit; i++) {
+			MxReceiveBuffer buffer = slots[i];
+			if(buffer != null && sizes[i] < 0 && buffer.unpost()) {
+				MxReceiveBuffer.recycle(buffer);
+				slots[i] = null;
+			}
+		}
+		trimSlots();
+	}
+
+	private void trimSlots() {
+		while(limit > receiveDepth.depth() && slots[limit - 1] == null) {
+			limit--;
+		}
+	}
+
+	/**
+	 * Cancels the slots of a stream that became idle, its messages go to the
+	 * SharedReceiveThread from now on. A slot that a message matched already
+	 * is taken when it finishes.
+	 */
+	private void unpostSlots() {
+		if (logger.isDebugEnabled()) {
+			logger.debug("stream " + Integer.toHexString(getPort()) 
+					+ " is idle, canceling its receives");
+		}
+		dedicated = false;
+		receiveDepth.suspend();
+		for(int i = 0; i < limit; i++) {
+			MxReceiveBuffer buffer = slots[i];
+			if(buffer != null && sizes[i] < 0 && buffer.unpost()) {
+				MxReceiveBuffer.recycle(buffer);
+				slots[i] = null;
+			}
+		}
+	}
+
+	/**
+	 * Tests the unfinished slots with one call. The slot the next message 
+	 * most likely goes to comes first in pending[]: the oldest one of the 
+	 * size class of the last message or larger.
+	 * @return the number of slots that are still unfinished, in pending[]
+	 */
+	private int testSlots() throws MxException {
+		int count = 0;
+		int likely = -1;
+		for(int i = 0; i < limit; i++) {
+			if(slots[i] != null && sizes[i] < 0) {
+				pending[count] = slots[i].handle();
+				pendingSlots[count] = i;
+				if(slots[i].sizeClass() >= lastClass && (likely < 0 
+						|| postedAt[i] < postedAt[pendingSlots[likely]])) {
+					likely = count;
+				}
+				count++;
+			}
+		}
+		if(likely > 0) {
+			int handle = pending[0];
+			int slot = pendingSlots[0];
+			pending[0] = pending[likely];
+			pendingSlots[0] = pendingSlots[likely];
+			pending[likely] = handle;
+			pendingSlots[likely] = slot;
+		}
+		if(count > 0 && JavaMx.testSome(endpointNumber, pending, count, results) > 0) {
+			int unfinished = 0;
+			boolean failed = false;
+			for(int i = 0; i < count; i++) {
+				if(results[i] == MxTransport.FAILED) {
+					// the slot is posted again when it is needed
+					MxReceiveBuffer.recycle(slots[pendingSlots[i]]);
+					slots[pendingSlots[i]] = null;
+					failed = true;
+				} else if(results[i] >= 0) {
+					sizes[pendingSlots[i]] = results[i];
+				} else {
+					// the finished requests are gone, leave them out of a wait
+					pending[unfinished] = pending[i];
+					pendingSlots[unfinished] = pendingSlots[i];
+					unfinished++;
+				}
+			}
+			count = unfinished;
+			if(failed) {
+				throw new MxException("receive failed, message lost");
 			}
-			buffer = queue.poll();
 		}
+		return count;
+	}
 
+	/**
+	 * Takes the messages out of the finished slots and posts new buffers in
+	 * their place.
+	 * @return the next message, or null when it has not arrived yet
+	 */
+	private MxReceiveBuffer takeFinished() throws IOException {
+		int depth = receiveDepth.depth();
+		int posted = 0, finished = 0;
+		for(int i = 0; i < limit; i++) {
+			if(slots[i] != null) {
+				posted++;
+			}
+			if(sizes[i] >= 0) {
+				finished++;
+				MxReceiveBuffer buffer = slots[i];
+				buffer.received(sizes[i]);
+				received(SizeClass.of(sizes[i]));
+				// before posting, the message is not lost when that fails
+				early.add(buffer);
+				slots[i] = null;
+				sizes[i] = -1;
+				if(dedicated && i < depth) {
+					postSlot(i);
+				}
+			}
+		}
+		if(dedicated && finished == posted && posted >= depth 
+				&& receiveDepth.full()) {
+			// the reader does not keep up with the sender
+			fillSlots();
+		}
+		trimSlots();
+		return takeEarly();
+	}
 
-		while(!buffer.finish(1000, true)) {
-			if(senderClosed) {
-				do {
-					if(buffer.cancel() == false) {
-						buffer.finish(1, true); // should finish immediately
-						return buffer;
+	private MxReceiveBuffer takeEarly() throws IOException {
+		for(int i = 0; i < early.size(); i++) {
+			MxReceiveBuffer buffer = early.get(i);
+			if(buffer.sequenceNumber() == nextSequenceNumber) {
+				early.remove(i);
+				nextSequenceNumber++;
+				backlog = early.size();
+				taken++;
+				if(receiveDepth != null) {
+					receiveDepth.arrived();
+				}
+				if(!dedicated) {
+					// a stream that keeps receiving gets its own receives again
+					busy++;
+					if(busy >= Config.RECEIVE_QUEUE_SIZE) {
+						postSlots();
 					}
-					MxReceiveBuffer.recycle(buffer);
-					buffer = queue.poll();
-				} while (buffer != null);
+				}
+				return buffer;
+			}
+		}
+		backlog = early.size();
+		return null;
+	}
+
+	/**
+	 * Adapts the size class of the slots to the messages that arrive. It
+	 * grows as soon as a larger message arrives, and shrinks to the largest
+	 * message of the last window.
+	 */
+	private void received(int sizeClass) {
+		lastClass = sizeClass;
+		largestClass = Math.max(largestClass, sizeClass);
+		postClass = Math.max(postClass, sizeClass);
+		window++;
+		if(window == SHRINK_WINDOW) {
+			if(logger.isDebugEnabled() && largestClass < postClass) {
+				logger.debug("receive buffers shrink to " 
+						+ SizeClass.SIZES[largestClass] + " bytes");
+			}
+			postClass = largestClass;
+			largestClass = 0;
+			window = 0;
+		}
+	}
+
+	private MxReceiveBuffer fetchFromChannel() {
+		MxReceiveBuffer buffer = channel.poll();
+		int i = 0;
+		while(buffer == null) {
+			if(senderClosed || channel.writerClosed()) {
+				// messages written before the close are still in the channel
+				buffer = channel.poll();
+				if(buffer != null) {
+					return buffer;
+				}
 				closed = true;
 				cleanUp();
 				return null;
 			}
+			ShmChannel.idle(i++);
+			buffer = channel.poll();
 		}
-		// add a new buffer to the receive queue
-		postBuffer();
 		return buffer;
 	}
 
-	private void postBuffer() {
+	/**
+	 * Receives the next message of a striped stream. Every rail delivers its 
+	 * messages in order, so the next message is the first one of the rail 
+	 * it was sent over.
+	 */
+	private MxReceiveBuffer fetchStriped() throws IOException {
+		int i = 0;
+		while(true) {
+			// messages sent before the close have arrived when we notice it
+			boolean last = senderClosed && !sharedReceiving();
+			// the SharedReceiveThread takes the messages no posted buffer matched
+			drainShared();
+			MxReceiveBuffer next = takeEarly();
+			if(next != null) {
+				return next;
+			}
+			for(int r = 0; r < rails.length; r++) {
+				ArrayBlockingQueue<MxReceiveBuffer> q = railQueues.get(r);
+				MxReceiveBuffer buffer = q.peek();
+				if(buffer != null && buffer.tryFinish() 
+						&& buffer.sequenceNumber() == nextSequenceNumber) {
+					q.poll();
+					nextSequenceNumber++;
+					// add a new buffer to the receive queue of this rail
+					postBuffer(rails[r], q);
+					return buffer;
+				}
+			}
+			if(last) {
+				closed = true;
+				cleanUp();
+				return null;
+			}
+			ShmChannel.idle(i++);
+		}
+	}
+
+	private void postSlot(int slot) throws IOException {
+		int sizeClass = (slot == 0) ? SizeClass.LARGEST : postClass;
+		MxReceiveBuffer buffer = MxReceiveBuffer.get(sizeClass);
+		try {
+			buffer.post(endpointNumber, matchData, SizeClass.mask(sizeClass));
+		} catch (IOException e) {
+			MxReceiveBuffer.recycle(buffer);
+			throw e;
+		}
+		slots[slot] = buffer;
+		sizes[slot] = -1;
+		postedAt[slot] = posts++;
+	}
+
+	private void postBuffer() throws IOException {
+		postBuffer(endpointNumber, queue);
+	}
+
+	private void postBuffer(int endpointNumber, 
+			ArrayBlockingQueue<MxReceiveBuffer> queue) throws IOException {
 		MxReceiveBuffer buffer = MxReceiveBuffer.get();
 		try {
-			buffer.post(endpointNumber, matchData, Matching.MASK_ALL);
+			buffer.post(endpointNumber, matchData, SizeClass.mask(SizeClass.LARGEST));
 		} catch (IOException e) {
 			MxReceiveBuffer.recycle(buffer);
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-			System.exit(1);
+			throw e;
 		}
 		queue.add(buffer);
 	}
 
 	@Override
 	protected void cleanUp() {
+		if(channel != null) {
+			channel.close();
+		}
+		policy.retire();
+		if(rails != null) {
+			for(int r = 1; r < rails.length; r++) {
+				cancelAll(railQueues.get(r));
+			}
+		}
+		cancelAll(queue);
+		if(slots != null) {
+			for(int i = 0; i < slots.length; i++) {
+				MxReceiveBuffer buffer = slots[i];
+				if(buffer == null) {
+					continue;
+				}
+				if(sizes[i] < 0 && !buffer.cancel()) {
+					try {
+						buffer.finish(1, null);
+					} catch (IOException e) {
+						// TODO ignore
+					}
+				}
+				MxReceiveBuffer.recycle(buffer);
+				slots[i] = null;
+			}
+			receiveDepth.close();
+		}
+		drainShared();
+		for(MxReceiveBuffer buffer : early) {
+			MxReceiveBuffer.recycle(buffer);
+		}
+		early.clear();
+	}
+
+	private void cancelAll(ArrayBlockingQueue<MxReceiveBuffer> queue) {
 		MxReceiveBuffer buffer = queue.poll();
 		while(buffer != null) {
 			if(!buffer.cancel()) {
 				try {
-					buffer.finish(1, true);
+					buffer.finish(1, null);
 				} catch (IOException e) {
 					// TODO ignore
 				}
@@ -2,10 +2,13 @@ package mxio;
 
 final class Matching {
 	static final long PROTOCOL_DATA =                0x8000000000000000L;
+	static final long PROTOCOL_BULK =                0x9000000000000000L; // the array after a rendezvous announcement
 	static final long PROTOCOL_CONNECT =             0x4100000000000000L;
 	static final long PROTOCOL_CONNECT_REPLY =       0x4800000000000000L;
 	static final long PROTOCOL_DISCONNECT =          0x4300000000000000L; // WriteChannel disconnects
 	static final long PROTOCOL_CLOSE =               0x4400000000000000L; // ReadChannel closes
+	static final long PROTOCOL_CREDIT =              0x4500000000000000L; // ReadChannel grants credits, see Credits
+	static final long PROTOCOL_CREDIT_REQUEST =      0x4600000000000000L; // WriteChannel ran out of credits
 	static final long PROTOCOL_CONTROL_BIT =         0x4000000000000000L;
 	
 	
@@ -16,7 +19,7 @@ final class Matching {
 	static final long PROTOCOL_DATA_MASK =           0xF000000000000000L;
 	
 	static final long ENDPOINT_TRAFFIC =             0x4000000000000000L;
-	static final long ENDPOINT_THREAD_TRAFFIC_MASK = 0xF800000000000000L;
+	static final long ENDPOINT_THREAD_TRAFFIC_MASK = 0xF000000000000000L; // includes CONNECT_REPLY
 	
 	static final long MASK_ALL =                     0xFFFFFFFFFFFFFFFFL;
 	static final long NONE =                         0x0000000000000000L;
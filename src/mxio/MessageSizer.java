@@ -0,0 +1,113 @@
+package mxio;
+
+/**
+ * Chooses the sizes of the messages of an output stream. The first message
+ * after a flush is kept small, so the receiver can start working while the
+ * rest follows, and every next message is twice as large, up to the full
+ * buffer. The size of the first message is the one that pipelines a burst
+ * (the bytes written between two flushes) best: the square root of the
+ * burst size times the half-power point of the connection, the message size
+ * at which the fixed costs of a message equal the costs of its bytes. So
+ * bulk streams get large messages, ping-pong streams small ones.
+ *
+ * The half-power point follows from a linear fit of the completion times of
+ * the sends against their sizes. Only the sends a blocking wait saw finish 
+ * are measured, a send found finished by polling could have finished at any
+ * time since the previous poll. Once it is known, a partially filled buffer
+ * is sent at the end of a write when it holds twice the half-power point,
+ * larger messages do not gain much bandwidth.
+ *
+ * A sizer is used by the thread that writes the stream.
+ */
+final class MessageSizer {
+
+	/** the smallest message, payload only, it fits in the smallest size class */
+	static final int MIN_SEGMENT = SizeClass.SIZES[0] - Config.SIZEOF_HEADER;
+	/** the sizes before anything is measured */
+	private static final int INITIAL_SEGMENT = 8 * 1024;
+	private static final double INITIAL_HALF_POWER = 4 * 1024;
+
+	/** weight of a new sample in the averages */
+	private static final double WEIGHT = 1.0 / 16;
+	private static final double BURST_WEIGHT = 1.0 / 4;
+
+	/** averages of the sizes and completion times of the sends, for the fit */
+	private double size = 0, time = 0, sizeSquared = 0, sizeTime = 0;
+	private long samples = 0;
+
+	private double halfPower = INITIAL_HALF_POWER;
+	/** true when halfPower is measured */
+	private boolean measured = false;
+	private double burst = 0;
+
+	private int firstSegment = INITIAL_SEGMENT;
+	private int eagerThreshold = Config.BUFFER_SIZE;
+
+	/**
+	 * @return the size of message number sequenceNo after a flush, payload only
+	 */
+	int segment(int sequenceNo) {
+		if (sequenceNo >= 30) {
+			return Config.BUFFER_SIZE;
+		}
+		return (int) Math.min((long) firstSegment << sequenceNo, Config.BUFFER_SIZE);
+	}
+
+	/**
+	 * @return the number of payload bytes at which a buffer is sent at the end of a write
+	 */
+	int eagerThreshold() {
+		return eagerThreshold;
+	}
+
+	/**
+	 * Called when a send of size bytes finished nanos nanoseconds after it was posted.
+	 */
+	void sent(int size, long nanos) {
+		samples++;
+		this.size += (size - this.size) * WEIGHT;
+		time += (nanos - time) * WEIGHT;
+		sizeSquared += ((double) size * size - sizeSquared) * WEIGHT;
+		sizeTime += ((double) size * nanos - sizeTime) * WEIGHT;
+		if (samples < 16) {
+			return;
+		}
+		double variance = sizeSquared - this.size * this.size;
+		if (variance < 1024.0 * 1024.0) {
+			// all messages have about the same size, no slope to fit
+			return;
+		}
+		double perByte = (sizeTime - this.size * time) / variance;
+		double perMessage = time - perByte * this.size;
+		if (perByte <= 0 || perMessage <= 0) {
+			return;
+		}
+		halfPower = Math.max(MIN_SEGMENT, Math.min(perMessage / perByte,
+				Config.BUFFER_SIZE));
+		measured = true;
+		update();
+	}
+
+	/**
+	 * Called when the stream is flushed, after bytes bytes were written since the last flush.
+	 */
+	void flushed(long bytes) {
+		burst += (bytes - burst) * BURST_WEIGHT;
+		update();
+	}
+
+	private void update() {
+		firstSegment = (int) Math.max(MIN_SEGMENT, Math.min(
+				Math.sqrt(burst * halfPower), Config.BUFFER_SIZE));
+		if (measured) {
+			eagerThreshold = (int) Math.min(2 * halfPower, Config.BUFFER_SIZE);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "MessageSizer: first message " + firstSegment
+				+ ", eager send at " + eagerThreshold + ", half-power point "
+				+ (int) halfPower + ", burst " + (long) burst;
+	}
+}
@@ -29,7 +29,7 @@ public class MulticastDataOutputStream extends DataOutputStream {
 			throw new IOException("MulticastStream not connected to other Streams.");
 		}
 		
-		long result = buffer.remaining();
+		long result = buffer.remaining() + buffer.gathered;
 		CollectedWriteException cwe = null;
 		if(nrOfConnections == 1) {
 			connections[0].doSend(buffer);
@@ -83,6 +83,32 @@ public class MulticastDataOutputStream extends DataOutputStream {
 		}
 	}
 	
+	@Override
+	void doFlushAsync(FlushFuture future) throws CollectedWriteException {
+        if (logger.isDebugEnabled()) {
+        	logger.debug("doFlushAsync");
+		}
+		CollectedWriteException cwe = null;
+		for(int i = 0; i < nrOfConnections; i++) {
+			try {
+				connections[i].flushAsync(future);
+			} catch (IOException e) {
+				if(cwe == null) {
+					cwe = new CollectedWriteException();
+				}
+				cwe.add(connections[i], new ClosedChannelException());
+				try {
+					doRemove(connections[i]);
+				} catch (IOException e2) {
+					//ignore
+				}
+			}
+		}
+		if(cwe != null) {
+			throw cwe;
+		}
+	}
+	
 	@Override
 	void doClose() {
 		for(int i = 0; i < nrOfConnections; i++) {
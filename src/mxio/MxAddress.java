@@ -49,6 +49,20 @@ public class MxAddress implements Serializable, Comparable<MxAddress> {
 		return bytes;
 	}
 
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof MxAddress)) {
+			return false;
+		}
+		MxAddress other = (MxAddress) o;
+		return nicId == other.nicId && endpointId == other.endpointId;
+	}
+
+	@Override
+	public int hashCode() {
+		return (int) (nicId ^ (nicId >>> 32)) * 31 + endpointId;
+	}
+
 	@Override
 	public int compareTo(MxAddress o) {
 		long res = nicId - o.nicId;
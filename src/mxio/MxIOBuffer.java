@@ -7,9 +7,16 @@ import java.nio.ByteOrder;
 
 public class MxIOBuffer {
 	
+	/** 
+	 * The native copy routines live in the JavaMx library, so they are only 
+	 * used when the MX transport is loaded.
+	 */
+	private static final boolean NATIVE_COPY = 
+		JavaMx.transport instanceof NativeMxTransport;
+	
 	protected ByteBuffer buf;
 	
-	private MxIOBuffer(ByteBuffer buf) {
+	MxIOBuffer(ByteBuffer buf) {
 		this.buf = buf;
 	}
 	
@@ -242,7 +249,11 @@ public class MxIOBuffer {
 			throw new BufferUnderflowException();
 		}
 		int position = buf.position();
-		doGet(dst, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doGet(dst, offset, buf, position, size);
+		} else {
+			view(position).asCharBuffer().get(dst, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -254,7 +265,11 @@ public class MxIOBuffer {
 			throw new BufferUnderflowException();
 		}
 		int position = buf.position();
-		doGet(dst, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doGet(dst, offset, buf, position, size);
+		} else {
+			view(position).asShortBuffer().get(dst, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -266,7 +281,11 @@ public class MxIOBuffer {
 			throw new BufferUnderflowException();
 		}
 		int position = buf.position();
-		doGet(dst, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doGet(dst, offset, buf, position, size);
+		} else {
+			view(position).asIntBuffer().get(dst, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -278,7 +297,11 @@ public class MxIOBuffer {
 			throw new BufferUnderflowException();
 		}
 		int position = buf.position();
-		doGet(dst, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doGet(dst, offset, buf, position, size);
+		} else {
+			view(position).asLongBuffer().get(dst, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -290,7 +313,11 @@ public class MxIOBuffer {
 			throw new BufferUnderflowException();
 		}
 		int position = buf.position();
-		doGet(dst, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doGet(dst, offset, buf, position, size);
+		} else {
+			view(position).asFloatBuffer().get(dst, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -302,7 +329,11 @@ public class MxIOBuffer {
 			throw new BufferUnderflowException();
 		}
 		int position = buf.position();
-		doGet(dst, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doGet(dst, offset, buf, position, size);
+		} else {
+			view(position).asDoubleBuffer().get(dst, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -317,7 +348,11 @@ public class MxIOBuffer {
 			throw new BufferOverflowException();
 		}
 		int position = buf.position();
-		doPut(src, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doPut(src, offset, buf, position, size);
+		} else {
+			view(position).asCharBuffer().put(src, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -332,7 +367,11 @@ public class MxIOBuffer {
 			throw new BufferOverflowException();
 		}
 		int position = buf.position();
-		doPut(src, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doPut(src, offset, buf, position, size);
+		} else {
+			view(position).asShortBuffer().put(src, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -347,7 +386,11 @@ public class MxIOBuffer {
 			throw new BufferOverflowException();
 		}
 		int position = buf.position();
-		doPut(src, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doPut(src, offset, buf, position, size);
+		} else {
+			view(position).asIntBuffer().put(src, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -362,7 +405,11 @@ public class MxIOBuffer {
 			throw new BufferOverflowException();
 		}
 		int position = buf.position();
-		doPut(src, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doPut(src, offset, buf, position, size);
+		} else {
+			view(position).asLongBuffer().put(src, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -377,7 +424,11 @@ public class MxIOBuffer {
 			throw new BufferOverflowException();
 		}
 		int position = buf.position();
-		doPut(src, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doPut(src, offset, buf, position, size);
+		} else {
+			view(position).asFloatBuffer().put(src, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
@@ -392,11 +443,21 @@ public class MxIOBuffer {
 			throw new BufferOverflowException();
 		}
 		int position = buf.position();
-		doPut(src, offset, buf, position, size);
+		if(NATIVE_COPY) {
+			doPut(src, offset, buf, position, size);
+		} else {
+			view(position).asDoubleBuffer().put(src, off, len);
+		}
 		buf.position(position + size);
 		return this;
 	}
 	
+	private ByteBuffer view(int position) {
+		ByteBuffer result = buf.duplicate().order(buf.order());
+		result.position(position);
+		return result;
+	}
+
 	private native void doGet(char[] dst, int off, 
 			ByteBuffer src, int position, int size);
 	
@@ -1,95 +1,123 @@
 package mxio;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.util.concurrent.locks.ReentrantLock;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 final class MxReceiveBuffer implements Config {
 
-//	static java.util.concurrent.LinkedBlockingDeque<ReceiveBuffer> cache = new LinkedBlockingDeque<ReceiveBuffer>(BUFFER_CACHE_SIZE);
-	
-	static MxReceiveBuffer[] cache = new MxReceiveBuffer[BUFFER_CACHE_SIZE];
-	static int current = 0;
-	static ReentrantLock lock = new ReentrantLock();
-	
+	/** a pool per size class */
+	static final BufferPool<?>[] pools = new BufferPool<?>[SizeClass.SIZES.length];
+
+	static {
+		for (int c = 0; c < pools.length; c++) {
+			pools[c] = new BufferPool<MxReceiveBuffer>("ReceiveBuffer " 
+					+ SizeClass.SIZES[c], BUFFER_CACHE_SIZE) {
+				void dropped(MxReceiveBuffer buffer) {
+					buffer.destroy();
+				}
+			};
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BufferPool<MxReceiveBuffer> pool(int sizeClass) {
+		return (BufferPool<MxReceiveBuffer>) pools[sizeClass];
+	}
 	
 	private static final Logger logger = LoggerFactory
     .getLogger(MxReceiveBuffer.class);
 	
 	/**
-	 * Static method to get a sendbuffer out of the cache
+	 * Static method to get a receivebuffer of the largest size class out of the cache
 	 */
-	static MxReceiveBuffer get() {
-//		ReceiveBuffer result = cache.pollLast();
-		MxReceiveBuffer result = null;
-		lock.lock();
-		if(current != 0) {
-			result = cache[current-1];
-			current--;
-		}
-		lock.unlock();
-		
+	static MxReceiveBuffer get() throws MxException {
+		return get(SizeClass.LARGEST);
+	}
+
+	/**
+	 * Static method to get a receivebuffer of a size class out of the cache
+	 */
+	static MxReceiveBuffer get(int sizeClass) throws MxException {
+		MxReceiveBuffer result = pool(sizeClass).get();
 		if (result != null) {
-			if (logger.isInfoEnabled()) {
-//				logger.info("ReceiveBuffer: got empty buffer from cache");
-			}
 			result.clear();
 			return result;
 		}
                 
-               // System.out.println("XXXX: Receive cache miss");
-                
 		if (logger.isInfoEnabled()) {
 			logger.info("ReceiveBuffer: got new empty buffer");
 		}
-		return new MxReceiveBuffer();
+		return new MxReceiveBuffer(sizeClass);
 	}
 
 	/**
 	 * static method to put a buffer in the cache
 	 */
 	static void recycle(MxReceiveBuffer buffer) {
-		lock.lock();
-		if(current >= BUFFER_CACHE_SIZE) {
-			if (logger.isInfoEnabled()) {
-				logger.info("ReceiveBuffer: cache full"
-						+ " upon recycling buffer, throwing away");
-			}
-                        
-                    //    System.out.println("XXXX: Receive cache drop");
-                        
-			buffer.destroy();
-		} else {
-			cache[current] = buffer;
-			current++;
-			if (logger.isInfoEnabled()) {
-//				logger.info("ReceiveBuffer: recycled buffer");
-			}
+		if (buffer.channel != null) {
+			// a slot of a shared memory channel
+			buffer.channel.release(buffer);
+			return;
+		}
+		if (buffer.region != null) {
+			SizeClass.recycleRegion(buffer.region);
+			buffer.region = null;
 		}
-		lock.unlock();
+		pool(buffer.sizeClass).put(buffer);
 	} 
 
 	/**
 	 * Buffer used for holding data. It contains "currently in use" (by
 	 * the user) data, "not yet used" data (received but not given to user yet)
-	 * and "empty space"
+	 * and "empty space". Normally this is the staging buffer, for a scatter
+	 * receive it is the region the payload was received in.
 	 */
 	private MxIOBuffer buffer;
 
+	/** the buffer owned by this MxReceiveBuffer, header and payload are received in it */
+	private MxIOBuffer staging;
+	
+	/** true when the payload of the message is received outside the staging buffer */
+	private boolean scattered = false;
+	/** the pooled region the payload is received in, see postBulk() */
+	private ByteBuffer region = null;
+
 	private int port = 0;
+	private short sequenceNumber = 0;
+	private byte flags = 0;
 
 	private int myHandle = 0;
 	private int endpointNumber = 0;
 	
+	/** the channel this buffer is a slot of, if any */
+	private ShmChannel channel = null;
+	
 	int postStatus;
 	static final int IDLE = 0, POSTED = 1, FINISHED = 2;
 
-	MxReceiveBuffer() {
+	/** the size class of the staging buffer */
+	private final int sizeClass;
+
+	MxReceiveBuffer(int sizeClass) throws MxException {
 		myHandle =  JavaMx.handles.getHandle();
-		buffer = new MxIOBuffer(Config.SIZEOF_HEADER + Config.BUFFER_SIZE);
+		this.sizeClass = sizeClass;
+		staging = buffer = new MxIOBuffer(SizeClass.SIZES[sizeClass]);
+		buffer.clear();
+	}
+
+	/**
+	 * Creates a buffer for a slot of a shared memory channel. These buffers
+	 * are never posted, the channel fills them.
+	 */
+	MxReceiveBuffer(MxIOBuffer slot, ShmChannel channel) {
+		myHandle = -1;
+		sizeClass = SizeClass.LARGEST;
+		staging = buffer = slot;
+		this.channel = channel;
 		buffer.clear();
 	}
 
@@ -118,6 +146,55 @@ final class MxReceiveBuffer implements Config {
 		} 
 	}
 
+	/**
+	 * Posts the buffer for a message of which the payload is written directly
+	 * into a region of a caller-supplied buffer. Only the header is received in 
+	 * the staging buffer. After the message is received, the payload can be 
+	 * read from this MxReceiveBuffer as usual, and it is in the region of 
+	 * the target buffer.
+	 * @param target A direct buffer
+	 * @param offset The start of the region in target
+	 * @param size The size of the region in target
+	 */
+	void post(int endpointNumber, long matchData, long matchMask,
+			ByteBuffer target, int offset, int size) throws IOException {
+		if(postStatus != IDLE) {
+			if(postStatus == POSTED) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("Reposting a posted buffer: ignore");
+				}				
+				return;
+			} else {
+				throw new IOException("Buffer already received a message");
+			}
+		}
+		if(channel != null) {
+			throw new IOException("Channel buffers cannot be posted");
+		}
+
+		this.endpointNumber = endpointNumber;
+
+		ByteBuffer region = target.duplicate();
+		region.limit(offset + size).position(offset);
+		JavaMx.recv(staging.buf, 0, Config.SIZEOF_HEADER, target, offset, size,
+				endpointNumber, myHandle, matchData, matchMask);
+		buffer = new MxIOBuffer(region.slice());
+		scattered = true;
+		postStatus = POSTED;
+	}
+
+	/**
+	 * Posts the buffer for a message of which the payload of size bytes is 
+	 * received in a pooled staging region. The region goes back to its pool
+	 * when this buffer is recycled.
+	 */
+	void postBulk(int endpointNumber, long matchData, long matchMask, 
+			int size) throws IOException {
+		ByteBuffer target = SizeClass.getRegion(size);
+		post(endpointNumber, matchData, matchMask, target, 0, size);
+		region = target;
+	}
+
 	/**
 	 * @return true when message is canceled, false when message already has arrived and request still has to be finished
 	 *  
@@ -131,14 +208,54 @@ final class MxReceiveBuffer implements Config {
 		return true;
 	}
 
-	boolean finish(boolean poll) throws IOException {
-		return finish(0, poll);
+	/**
+	 * Cancels the receive, unlike cancel() it fails when a message matched it
+	 * already.
+	 * @return false when a message is received, or being received, in this 
+	 * buffer, it has to be finished as usual
+	 */
+	boolean unpost() {
+		if(postStatus != POSTED) {
+			return false;
+		}
+		if(!JavaMx.cancel(endpointNumber, myHandle)) {
+			return false;
+		}
+		postStatus = IDLE;
+		return true;
+	}
+
+	/**
+	 * Waits until the message has arrived.
+	 * @param policy decides how long to poll before blocking, null to block immediately
+	 */
+	boolean finish(SpinPolicy policy) throws IOException {
+		return finish(0, policy);
+	}
+
+	/**
+	 * Finishes the receive when the message has arrived, without waiting for it.
+	 * @return true when the message is received
+	 */
+	boolean tryFinish() throws IOException {
+		if(postStatus == FINISHED) {
+			return true;
+		}
+		if(postStatus != POSTED) {
+			throw new IOException("Buffer not posted yet");
+		}
+		int msgSize = JavaMx.test(endpointNumber, myHandle);
+		if(msgSize < 0) {
+			return false;
+		}
+		received(msgSize);
+		return true;
 	}
 
 //	long polls = 0;
 //	long ntime = 0;
 	
-	boolean finish(long timeout, boolean poll) throws IOException {
+	boolean finish(long timeout, SpinPolicy policy) throws IOException {
             
                 if(postStatus == FINISHED) {
                         if (logger.isDebugEnabled()) {
@@ -156,30 +273,22 @@ final class MxReceiveBuffer implements Config {
                 
                 int msgSize = -1;
                 
-		ByteOrder receivedOrder;
 		try {
 			
 			
-			if(poll) {
+			if(policy != null) {
 				msgSize = JavaMx.test(endpointNumber, myHandle);
-				int i = 1;
-				while(msgSize < 0 && i < Config.RPOLLS) {
-					Thread.yield();
+				int polls = 1;
+				while(msgSize < 0 && polls < policy.budget()) {
+					policy.pause(polls);
 					msgSize = JavaMx.test(endpointNumber, myHandle);
-					i++;
+					polls++;
+				}
+				if(msgSize >= 0) {
+					policy.spun();
+				} else {
+					policy.parked();
 				}
-                
-                                /*
-                                long t2 = System.nanoTime();
-                                
-                                
-                                if (msgSize < 0) { 
-                                    System.out.println("Still no message after " + Config.RPOLLS  + " polls " + (t2-time));
-                                } else { 
-                                    System.out.println("Got message after " + i + " polls " + (t2-time) + " " + msgSize);
-                                }*/
-                                
-				//msgSize = JavaMx.test(endpointNumber, myHandle, Config.RPOLLS);
 			}
 			if(msgSize < 0) {
 //				System.out.println("poll miss");
@@ -190,36 +299,53 @@ final class MxReceiveBuffer implements Config {
 				}
 			}
 
-			postStatus = FINISHED;			
-			buffer.position(0).limit(msgSize);
-
-			if (logger.isDebugEnabled()) {
-				logger.debug("Message of " + msgSize + " bytes received.");
-			}
 		} catch (MxException e) {
 			// FIXME Auto-generated catch block
 			e.printStackTrace();
 			throw e;
 		}
+		received(msgSize);
+
+                /*
+                long t3 = System.nanoTime();
+                      
+                System.out.println("Needed " + (t3-time) + "to receive message " + msgSize);
+                */
+		return true;
+	}
+
+	/**
+	 * Prepares the buffer for reading after a message of msgSize bytes 
+	 * (header included) has been written into it.
+	 */
+	void received(int msgSize) {
+		ByteOrder receivedOrder;
+
+		postStatus = FINISHED;			
+		staging.position(0).limit(scattered ? Config.SIZEOF_HEADER : msgSize);
+
+		if (logger.isDebugEnabled()) {
+			logger.debug("Message of " + msgSize + " bytes received.");
+		}
 
 		// get byte order out of first byte in header
-		if (buffer.get(Config.BYTEORDER_BYTE) == ((byte) 1)) {
+		if (staging.get(Config.BYTEORDER_BYTE) == ((byte) 1)) {
 			receivedOrder = ByteOrder.BIG_ENDIAN;
 		} else {
 			receivedOrder = ByteOrder.LITTLE_ENDIAN;
 		}
-		buffer.order(receivedOrder);
+		staging.order(receivedOrder);
 
-		port = buffer.getInt(Config.PORT_BYTE);
-	
-		buffer.position(Config.SIZEOF_HEADER);
+		port = staging.getInt(Config.PORT_BYTE);
+		sequenceNumber = staging.getShort(Config.SEQNO_BYTE);
+		flags = staging.get(Config.FLAGS_BYTE);
 
-                /*
-                long t3 = System.nanoTime();
-                      
-                System.out.println("Needed " + (t3-time) + "to receive message " + msgSize);
-                */
-		return true;
+		if (scattered) {
+			buffer.order(receivedOrder);
+			buffer.position(0).limit(msgSize - Config.SIZEOF_HEADER);
+		} else {
+			buffer.position(Config.SIZEOF_HEADER);
+		}
 	}
 
 	int remaining() {
@@ -338,22 +464,67 @@ final class MxReceiveBuffer implements Config {
 		}
 	}
 
+	/**
+	 * Copies as many bytes as possible into dst.
+	 * @return the number of bytes copied
+	 */
+	int read(ByteBuffer dst) {
+		int size = Math.min(buffer.remaining(), dst.remaining());
+		ByteBuffer part = buffer.buf.duplicate();
+		part.limit(part.position() + size);
+		dst.put(part);
+		buffer.position(buffer.position() + size);
+		return size;
+	}
+
+	/**
+	 * Skips the next size bytes, which were received in a region of the reader.
+	 */
+	void skip(int size) {
+		buffer.position(buffer.position() + size);
+	}
+
 	void clear() {
 		postStatus = IDLE;
+		buffer = staging;
+		scattered = false;
 		buffer.clear().flip(); // buffer contains no data
 		port = 0;
+		sequenceNumber = 0;
+		flags = 0;
 	}
 
 	int handle() {
 		return myHandle;
 	}
 
+	int sizeClass() {
+		return sizeClass;
+	}
+
 	int port() {
 		return port;
 	}
 
+	/**
+	 * @return the sequence number of the message, when it was sent over a striped stream
+	 */
+	short sequenceNumber() {
+		return sequenceNumber;
+	}
+
+	/**
+	 * @return true when the message announces a rendezvous, an array that 
+	 * follows in a message of its own
+	 */
+	boolean isRendezvous() {
+		return (flags & Config.FLAG_RENDEZVOUS) != 0;
+	}
+
 	private void destroy() {
-		JavaMx.handles.releaseHandle(myHandle);
+		if (channel == null) {
+			JavaMx.handles.releaseHandle(myHandle);
+		}
 	}
 
 }
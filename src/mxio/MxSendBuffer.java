@@ -1,45 +1,54 @@
 package mxio;
 
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 final class MxSendBuffer implements Config {
 
-	//	static LinkedBlockingDeque<SendBuffer> cache = new LinkedBlockingDeque<SendBuffer>(BUFFER_CACHE_SIZE);
-	static MxSendBuffer[] cache = new MxSendBuffer[BUFFER_CACHE_SIZE];
-	static int current = 0;
-	static ReentrantLock lock = new ReentrantLock();
+	/** a pool per size class */
+	static final BufferPool<?>[] pools = new BufferPool<?>[SizeClass.SIZES.length];
+
+	static {
+		for (int c = 0; c < pools.length; c++) {
+			pools[c] = new BufferPool<MxSendBuffer>("SendBuffer " 
+					+ SizeClass.SIZES[c], BUFFER_CACHE_SIZE) {
+				void dropped(MxSendBuffer buffer) {
+					// nothing to release
+				}
+			};
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static BufferPool<MxSendBuffer> pool(int sizeClass) {
+		return (BufferPool<MxSendBuffer>) pools[sizeClass];
+	}
 
 	private static final Logger logger = LoggerFactory
 	.getLogger(MxSendBuffer.class);
 
 	/**
-	 * Static method to get a sendbuffer out of the cache
+	 * Static method to get a sendbuffer of the largest size class out of the cache
 	 */
 	static MxSendBuffer get() {
-		MxSendBuffer result = null;
-		lock.lock();
-		if(current != 0) {
-			result = cache[current-1];
-			current--;
-		} 
-		lock.unlock();
-		//		SendBuffer result = cache.pollLast();
+		return get(SizeClass.LARGEST);
+	}
+
+	/**
+	 * Static method to get a sendbuffer of a size class out of the cache
+	 */
+	static MxSendBuffer get(int sizeClass) {
+		MxSendBuffer result = pool(sizeClass).get();
 		if (result != null) {
-			if (logger.isInfoEnabled()) {
-				logger.info("SendBuffer: got empty buffer from cache");
-			}
 			result.clear();
 			return result;
 		}
                 
-		//System.out.println("XXXX: Send cache miss");
-                
-		result = new MxSendBuffer();
+		result = new MxSendBuffer(sizeClass);
 		if (logger.isInfoEnabled()) {
 			logger.info("SendBuffer: got new empty buffer");
 		}
@@ -47,70 +56,24 @@ final class MxSendBuffer implements Config {
 	}
 
 	/**
-	 * static method to put a buffer in the cache
+	 * static method to put a buffer in the cache. The original of a 
+	 * replicated buffer goes back to the cache when it and all its copies
+	 * are recycled.
 	 */
 	static void recycle(MxSendBuffer buffer) {
-		if (buffer.parent == null) {
-			synchronized(buffer) {
-				if (buffer.copies > 0) {
-					buffer.copies--;
-					if (logger.isInfoEnabled()) {
-						logger.info("SendBuffer: Children of parent buffer still alive");
-					}
-					return;
-				} else if (buffer.copies < 0) {
-					throw new Error("recycled buffer more than once!");
-				} else {
-					lock.lock();	
-					if(current >= BUFFER_CACHE_SIZE) {
-                                            
-                                      //      System.out.println("XXXX: Send cache drop");
-                                                
-                                            
-						if (logger.isInfoEnabled()) {
-							logger.info("SendBuffer: cache full"
-									+ " upon recycling buffer, throwing away");
-						}
-					} else {
-						cache[current] = buffer;
-						current++;
-						if (logger.isInfoEnabled()) {
-							logger.info("SendBuffer: recycled buffer");
-						}
-					}
-					lock.unlock();
-				}
-			}
-		} else {
-			synchronized(buffer.parent) {
-				buffer.parent.copies--;
-				if (buffer.parent.copies == -1) {
-					buffer.parent.copies = 0;
-					lock.lock();
-					if(current >= BUFFER_CACHE_SIZE) {
-                                            
-                                       //     System.out.println("XXXX: Send cache drop");
-                                            
-                                            
-						if (logger.isInfoEnabled()) {
-							logger.info("SendBuffer: cache full"
-									+ " upon recycling parent of child buffer,"
-									+ " throwing away");
-						}
-					} else {
-						cache[current] = buffer.parent;
-						current++;
-						if (logger.isInfoEnabled()) {
-							logger.info("SendBuffer: recycled parent buffer");
-						}
-					}
-					lock.unlock();
-				}
-				if (buffer.parent.copies < -1) {
-					throw new Error("recycled parent buffer too often!");
-				}
+		MxSendBuffer original = (buffer.parent == null) ? buffer : buffer.parent;
+		int left = original.copies.decrementAndGet();
+		if (left >= 0) {
+			if (logger.isInfoEnabled()) {
+				logger.info("SendBuffer: other copies of the buffer still alive");
 			}
+			return;
 		}
+		if (left < -1) {
+			throw new Error("recycled buffer more than once!");
+		}
+		original.copies.set(0);
+		pool(original.sizeClass).put(original);
 	}
 
 	/**
@@ -122,7 +85,7 @@ final class MxSendBuffer implements Config {
 		for (int i = 0; i < copies; i++) {
 			result[i] = new MxSendBuffer(original);
 		}
-		original.copies += copies;
+		original.copies.addAndGet(copies);
 		if(logger.isInfoEnabled()) {
 			logger.info("" + copies + " Copies of the SendBuffer created");
 		}
@@ -131,7 +94,7 @@ final class MxSendBuffer implements Config {
 	}
 
 	// number of copies that exist of this buffer
-	private int copies = 0;
+	private final AtomicInteger copies = new AtomicInteger();
 
 	// original buffer this buffer is a copy of (if applicable)
 	MxSendBuffer parent = null;
@@ -139,10 +102,22 @@ final class MxSendBuffer implements Config {
 	MxIOBuffer payload;
 	MxIOBuffer header;
 
-	MxSendBuffer() {
+	/** buffers that are sent after the payload without copying them */
+	ByteBuffer[] segments = new ByteBuffer[Config.MAX_GATHER_SEGMENTS];
+	int segmentCount = 0;
+	/** number of bytes in the segments */
+	int gathered = 0;
+	/** the limit of the payload before the first segment was added */
+	private int gatherLimit;
+
+	/** the size class of the buffer, the payload and header together have the size of the class */
+	final int sizeClass;
+
+	MxSendBuffer(int sizeClass) {
 		ByteOrder order = ByteOrder.nativeOrder();
 
-		payload = new MxIOBuffer(Config.BUFFER_SIZE).order(
+		this.sizeClass = sizeClass;
+		payload = new MxIOBuffer(SizeClass.SIZES[sizeClass] - SIZEOF_HEADER).order(
 				order);
 		header = new MxIOBuffer(Config.SIZEOF_HEADER).order(
 				order);
@@ -163,7 +138,11 @@ final class MxSendBuffer implements Config {
 		ByteOrder order = ByteOrder.nativeOrder();
 
 		parent = original;
+		sizeClass = parent.sizeClass;
 		payload = parent.payload.duplicate();
+		segmentCount = parent.segmentCount;
+		gathered = parent.gathered;
+		System.arraycopy(parent.segments, 0, segments, 0, segmentCount);
 		header = new MxIOBuffer(Config.SIZEOF_HEADER).order(
 				order);
 		//		 put the byte order in the first byte of the header
@@ -183,8 +162,50 @@ final class MxSendBuffer implements Config {
 	 */
 	void clear() {
 		setPort(0);
+		setSequenceNumber((short) 0);
+		setFlags((byte) 0);
 		payload.clear();
 		header.clear();
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = null;
+		}
+		segmentCount = 0;
+		gathered = 0;
+	}
+
+	/**
+	 * @return the number of bytes that can still be added with gather()
+	 */
+	int gatherRoom() {
+		if (segmentCount == Config.MAX_GATHER_SEGMENTS) {
+			return 0;
+		}
+		if (segmentCount == 0) {
+			return payload.remaining();
+		}
+		return gatherLimit - payload.position() - gathered;
+	}
+
+	/**
+	 * Adds the next size bytes of a buffer to the message, without copying them.
+	 * The payload cannot be written to anymore after this, and the buffer must
+	 * not be modified until this buffer is recycled.
+	 * @return false when the buffer does not fit in this message
+	 */
+	boolean gather(ByteBuffer buffer, int size) {
+		if (size > gatherRoom()) {
+			return false;
+		}
+		if (segmentCount == 0) {
+			gatherLimit = payload.limit();
+			payload.limit(payload.position());
+		}
+		ByteBuffer segment = buffer.slice();
+		segment.limit(size);
+		segments[segmentCount] = segment;
+		segmentCount++;
+		gathered += size;
+		return true;
 	}
 
 	/**
@@ -207,6 +228,14 @@ final class MxSendBuffer implements Config {
 		return header.getInt(Config.PORT_BYTE);
 	}
 
+	void setSequenceNumber(short number) {
+		header.putShort(Config.SEQNO_BYTE, number);
+	}
+
+	void setFlags(byte flags) {
+		header.put(Config.FLAGS_BYTE, flags);
+	}
+
 	/**
 	 * set a mark on Byte Buffer
 	 */
@@ -237,7 +266,7 @@ final class MxSendBuffer implements Config {
 	}
 	
 	boolean isEmpty() {
-		return payload.position() == 0;
+		return payload.position() == 0 && segmentCount == 0;
 	}
 
 	boolean hasRemaining() {
@@ -248,6 +277,6 @@ final class MxSendBuffer implements Config {
 	 * returns the number of remaining bytes in the bytebuffers
 	 */
 	long msgSize() {
-		return payload.remaining() + header.capacity();
+		return payload.remaining() + gathered + header.capacity();
 	}
 }
@@ -3,31 +3,76 @@ package mxio;
 import ibis.util.ThreadPool;
 
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 public class MxSocket implements Runnable {
 
-	ReentrantLock connectLock = new ReentrantLock();
-	
 	private static final Logger logger = LoggerFactory
 	.getLogger(MxSocket.class);
 
 	private static final int IBIS_FILTER = 0xdada1313;
 	private static final long POLL_FOR_CLOSE_INTERVAL = 500;
 
-	protected static final int MAX_CONNECT_MSG_SIZE = 2048 + MxAddress.SIZE;
+	/** 
+	 * A connected link to another endpoint. A MX link can only be used by 
+	 * the endpoint that connected it, so there is a link id for every send 
+	 * endpoint of the rail the other endpoint is on. 
+	 */
+	private static final class Link {
+		/** the link ids by send endpoint index, -1 when not connected from that endpoint */
+		final int[] ids;
+		final MxAddress address;
+		/** the number of output streams that send over this link */
+		int users = 0;
+		long lastUsed;
+		/** the output streams that send over this link, by port */
+		final IntMap<DataOutputStreamImpl> outputStreams = new IntMap<DataOutputStreamImpl>();
+		
+		Link(MxAddress address, int sendEndpoints) {
+			this.address = address;
+			ids = new int[sendEndpoints];
+			for (int i = 0; i < sendEndpoints; i++) {
+				ids[i] = -1;
+			}
+		}
+
+		void disconnect() {
+			for (int i = 0; i < ids.length; i++) {
+				if (ids[i] != -1) {
+					JavaMx.disconnect(ids[i]);
+					JavaMx.links.releaseLink(ids[i]);
+					ids[i] = -1;
+				}
+			}
+		}
+	}
+
+	protected static final int MAX_CONNECT_MSG_SIZE = 2048 + MxAddress.SIZE
+			+ 1 + 4 + (Config.MAX_RAILS - 1) * MxAddress.SIZE 
+			+ 2 + ShmChannel.MAX_NAME_SIZE;
 	// TODO limit on CONNECT message size, document this
 
-	protected static final int MAX_CONNECT_REPLY_MSG_SIZE = MAX_CONNECT_MSG_SIZE - 5;
-	// listenBuf - int - byte;
+	protected static final int MAX_CONNECT_REPLY_MSG_SIZE = MAX_CONNECT_MSG_SIZE - 11;
+	// listenBuf - int - byte - byte - byte - int;
 
 	public static boolean available() {
 		return JavaMx.initialized;
@@ -35,23 +80,48 @@ public class MxSocket implements Runnable {
 
 	private MxAddress myAddress;
 
-	private ConcurrentSkipListMap<MxAddress, Integer> links;
-
-	/** LowLatency Streams get even numbers, Selectable streams get odd numbers **/
-	private ConcurrentHashMap<Integer, SelectableDataInputStream> selectableDataInputStreams;
-	private ConcurrentHashMap<Integer, LowLatencyDataInputStream> lowLatencyDataInputStreams;
-	private ConcurrentHashMap<String, DataOutputStreamImpl> dataOutputStreams;
-
-	private int nextsKey = 1;
-	private int nextllKey = 2;
+	/** 
+	 * The links to other endpoints, with the output streams that use them.
+	 * Guarded by this.
+	 */
+	private AddressMap<Link> links;
+
+	/** 
+	 * LowLatency Streams get even numbers, Selectable streams get odd numbers.
+	 * Guarded by the map itself.
+	 */
+	private IntMap<SelectableDataInputStream> selectableDataInputStreams;
+	private IntMap<LowLatencyDataInputStream> lowLatencyDataInputStreams;
+
+	private final PortAllocator selectablePorts = new PortAllocator(true);
+	private final PortAllocator lowLatencyPorts = new PortAllocator(false);
 	private MxListener listener = null;
 	private boolean closed = false, closing = false;
 	private int endpointNumber;
 	private int sendEndpointNumber;
+	/** The endpoints and addresses of the rails, the first rail is endpointNumber */
+	private int[] railEndpoints;
+	private MxAddress[] railAddresses;
+	/** The send endpoints by rail and index, the first one is sendEndpointNumber */
+	private int[][] sendEndpoints;
 	private ByteBuffer listenBuf, connectBuf;
 	private int listenHandle, connectHandle;
 
+	/** Handles the CONNECT requests, so the control thread does not wait for the listener */
+	private ThreadPoolExecutor acceptExecutor;
+
+	/** The connects that wait for a reply, by id */
+	private ConcurrentHashMap<Integer, PendingConnect> pendingConnects;
+	private final AtomicInteger nextConnectId = new AtomicInteger();
+
 	DeliveryThread deliveryThread = null;
+	/** receives the messages of idle low latency streams, when Config.SHARED_RECEIVE is set */
+	SharedReceiveThread sharedReceiveThread = null;
+	/** drives the sends of flushAsync(), started by the first one */
+	private ProgressEngine progressEngine = null;
+
+	/** the memory of the posted receives of the input streams, see ReceiveDepth */
+	private final AtomicLong receiveMemory = new AtomicLong();
 
 	public MxSocket(MxListener listener) throws MxException {
 		if (listener == null) {
@@ -62,12 +132,27 @@ public class MxSocket implements Runnable {
 		if (JavaMx.initialized == false) {
 			throw new MxException("MxSocket: could not initialize JavaMX");
 		}
-		endpointNumber = JavaMx.newEndpoint(IBIS_FILTER);
-		sendEndpointNumber = JavaMx.newEndpoint(IBIS_FILTER);
+		int rails = railCount();
+		// an output stream sends from the endpoint of the thread that connected
+		// it, so threads that write to different peers do not contend for one endpoint
+		int pool = Config.SEND_ENDPOINTS;
+		railEndpoints = new int[rails];
+		sendEndpoints = new int[rails][pool];
+		railAddresses = new MxAddress[rails];
+		for (int r = 0; r < rails; r++) {
+			int board = rails > 1 ? r : MxTransport.ANY_BOARD;
+			railEndpoints[r] = JavaMx.newEndpoint(IBIS_FILTER, board);
+			for (int i = 0; i < pool; i++) {
+				sendEndpoints[r][i] = JavaMx.newEndpoint(IBIS_FILTER, board);
+			}
+			railAddresses[r] = new MxAddress(JavaMx.getMyNicId(railEndpoints[r]), 
+					JavaMx.getMyEndpointId(railEndpoints[r]));
+		}
+		endpointNumber = railEndpoints[0];
+		sendEndpointNumber = sendEndpoints[0][0];
 		//		sendEndpointNumber = endpointNumber;
 
-		myAddress = new MxAddress(JavaMx.getMyNicId(endpointNumber), JavaMx
-				.getMyEndpointId(endpointNumber));
+		myAddress = railAddresses[0];
 
 		listenBuf = ByteBuffer.allocateDirect(MAX_CONNECT_MSG_SIZE).order(
 				ByteOrder.BIG_ENDIAN);
@@ -76,102 +161,506 @@ public class MxSocket implements Runnable {
 				ByteOrder.BIG_ENDIAN);
 		connectHandle = JavaMx.handles.getHandle();
 
-		links  = new ConcurrentSkipListMap<MxAddress, Integer>();
+		links  = new AddressMap<Link>();
 		
-		selectableDataInputStreams = new ConcurrentHashMap<Integer, SelectableDataInputStream>();
-		lowLatencyDataInputStreams = new ConcurrentHashMap<Integer, LowLatencyDataInputStream>();
-		dataOutputStreams = new ConcurrentHashMap<String, DataOutputStreamImpl>();
-
-		ThreadPool.createNew(this, "MxSocket " + endpointNumber + " - "
-				+ sendEndpointNumber);
+		selectableDataInputStreams = new IntMap<SelectableDataInputStream>();
+		lowLatencyDataInputStreams = new IntMap<LowLatencyDataInputStream>();
+		pendingConnects = new ConcurrentHashMap<Integer, PendingConnect>();
+
+		final String name = "MxSocket " + endpointNumber + " - "
+				+ sendEndpointNumber;
+		// when all workers are busy and the queue is full, the control thread 
+		// handles the request itself, which slows down the senders. Once the
+		// socket closes, the requests are rejected.
+		acceptExecutor = new ThreadPoolExecutor(Config.ACCEPT_THREADS, 
+				Config.ACCEPT_THREADS, 0, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(Config.ACCEPT_QUEUE_SIZE),
+				new ThreadFactory() {
+					private int n = 0;
+					
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + " accept " + n++);
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						if(executor.isShutdown()) {
+							((AcceptTask) r).reject();
+						} else {
+							r.run();
+						}
+					}
+				});
+
+		ThreadPool.createNew(this, name);
 	}
 
+	/**
+	 * Connects to another MxSocket.
+	 * @param target The address of the other socket.
+	 * @param descriptor The descriptor that is passed to the listener of the other socket.
+	 * @param timeout The timeout in milliseconds, 0 means no timeout.
+	 * @return The connection, or null when the connection could not be set up in time.
+	 */
 	public Connection connect(MxAddress target, byte[] descriptor, long timeout) 
 	throws MxException {
-		try {
-			connectLock.lock();
+		return startConnect(target, descriptor, timeout).await(timeout);
+	}
+
+	/**
+	 * Starts connecting to another MxSocket. Any number of connects can be in
+	 * progress at the same time.
+	 * @param target The address of the other socket.
+	 * @param descriptor The descriptor that is passed to the listener of the other socket.
+	 * @param timeout The timeout in milliseconds, 0 means no timeout.
+	 * @return A future that gives the connection, or null when the connection 
+	 * could not be set up in time. 
+	 */
+	public Future<Connection> connectAsync(MxAddress target, byte[] descriptor, 
+			long timeout) throws MxException {
+		return startConnect(target, descriptor, timeout);
+	}
 
+	/**
+	 * Connects to a number of MxSockets at once.
+	 * @param targets The addresses of the other sockets.
+	 * @param descriptors The descriptor for each target.
+	 * @param timeout The timeout in milliseconds for all connects together, 0 means no timeout.
+	 * @return The connections, in the order of the targets. An element is 
+	 * null when that connection could not be set up in time.
+	 */
+	public Connection[] connectAll(MxAddress[] targets, byte[][] descriptors, 
+			long timeout) throws MxException {
 		long deadline = Long.MAX_VALUE;
 		if(timeout > 0) {
 			deadline = System.currentTimeMillis() + timeout;
 		}
-		// TODO catch exceptions, forward them
-		// FIXME timeout
-		int msgSize;
+		PendingConnect[] pending = new PendingConnect[targets.length];
+		for (int i = 0; i < targets.length; i++) {
+			try {
+				pending[i] = startConnect(targets[i], descriptors[i], timeout);
+			} catch (MxException e) {
+				// abandon the connects that were started already
+				for (int j = 0; j < i; j++) {
+					if(!pending[j].cancel(false)) {
+						close(pending[j].result);
+					}
+				}
+				throw e;
+			}
+		}
+		Connection[] result = new Connection[targets.length];
+		MxException exception = null;
+		for (int i = 0; i < targets.length; i++) {
+			long t = 0;
+			if(deadline != Long.MAX_VALUE) {
+				// at least 1 ms, 0 would mean no timeout
+				t = Math.max(deadline - System.currentTimeMillis(), 1);
+			}
+			try {
+				result[i] = pending[i].await(t);
+			} catch (MxException e) {
+				exception = e;
+			}
+		}
+		if(exception != null) {
+			// do not leak the connections that were set up
+			for (Connection c : result) {
+				close(c);
+			}
+			throw exception;
+		}
+		return result;
+	}
 
-		connectBuf.clear();
+	/**
+	 * Closes the output stream of a connection that is not handed out.
+	 */
+	private static void close(Connection c) {
+		if(c != null && c.getDataOutputStream() != null) {
+			try {
+				c.getDataOutputStream().close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+
+	private PendingConnect startConnect(MxAddress target, byte[] descriptor,
+			long timeout) throws MxException {
+		PendingConnect p = new PendingConnect(target, timeout);
 		try {
-			connectBuf.put(myAddress.toBytes());
-			connectBuf.put(descriptor);
-		} catch (BufferOverflowException e) {
-			throw new MxException("descriptor too long.");
+			p.start(descriptor);
+		} catch (MxException e) {
+			p.finish(null);
+			throw e;
 		}
+		return p;
+	}
 
-		int link = lookup(target);
-		
-		if(link == -1) {
-			return null;
+	/**
+	 * A CONNECT request that is in progress. The request and its reply use 
+	 * the id of the request in the port bits of the matching data, so the
+	 * control thread can hand the reply to the right request.
+	 */
+	private final class PendingConnect implements Future<Connection> {
+		final int id;
+		final MxAddress target;
+		final long deadline;
+		final ByteBuffer buf;
+		final int handle;
+		/** the send endpoint of the output stream, and its index in the pool */
+		final int sendIndex, sendEndpoint;
+
+		private ShmChannel channel = null;
+		private boolean channelUsed = false;
+		private int link = -1;
+		/** the targets of the links acquired for rails r > 0, null where none is held */
+		private MxAddress[] railLinks = null;
+		private boolean linkUsed = false;
+
+		/** true when the CONNECT message is sent, and when it has been delivered */
+		private boolean posted = false, sent = false;
+		private boolean done = false, cancelled = false;
+		private Connection result = null;
+		private MxException exception = null;
+
+		PendingConnect(MxAddress target, long timeout) throws MxException {
+			this.target = target;
+			if(timeout > 0) {
+				deadline = System.currentTimeMillis() + timeout;
+			} else {
+				deadline = Long.MAX_VALUE;
+			}
+			buf = ByteBuffer.allocateDirect(MAX_CONNECT_MSG_SIZE).order(
+					ByteOrder.BIG_ENDIAN);
+			handle = JavaMx.handles.getHandle();
+			// we run in the thread that connects
+			sendIndex = (int) (Thread.currentThread().getId() % sendEndpoints[0].length);
+			sendEndpoint = sendEndpoints[0][sendIndex];
+			int id;
+			do {
+				id = nextConnectId.incrementAndGet() & Integer.MAX_VALUE;
+			} while (id == 0 || pendingConnects.putIfAbsent(id, this) != null);
+			this.id = id;
 		}
-		
-		// send request
-		connectBuf.flip();
-		JavaMx.sendSynchronous(connectBuf, connectBuf.position(), connectBuf
-				.remaining(), sendEndpointNumber, link, connectHandle,
-				Matching.PROTOCOL_CONNECT);
-		try {
-			msgSize = JavaMx.test(sendEndpointNumber, connectHandle, 100);
-			while (msgSize < 0) {
-				long t;
-				if(deadline == Long.MAX_VALUE) {
-					t = Long.MAX_VALUE;
-				} else {
-					 t = deadline - System.currentTimeMillis();
+
+		synchronized void start(byte[] descriptor) throws MxException {
+			if(target.nicId == myAddress.nicId && ShmChannel.available()) {
+				// the receiver runs on this host
+				try {
+					channel = ShmChannel.create(Config.RECEIVE_QUEUE_SIZE);
+				} catch (IOException e) {
+					if(logger.isDebugEnabled()) {
+						logger.debug("connect(): no shared memory channel - " + e.getMessage());
+					}
 				}
-				
-				if(t > 0) {
-					msgSize = JavaMx.wait(sendEndpointNumber, connectHandle, t);
+			}
+
+			buf.clear();
+			try {
+				buf.put(myAddress.toBytes());
+				buf.put((byte) railAddresses.length);
+				// the receiver posts buffers of its own size, they have to fit our messages
+				buf.putInt(Config.BUFFER_SIZE);
+				if(channel == null) {
+					buf.putShort((short) 0);
 				} else {
-					JavaMx.forget(sendEndpointNumber, connectHandle);
-					return null;
+					byte[] name = channel.getName().getBytes("UTF-8");
+					buf.putShort((short) name.length);
+					buf.put(name);
 				}
+				buf.put(descriptor);
+			} catch (BufferOverflowException e) {
+				throw new MxException("descriptor too long.");
+			} catch (UnsupportedEncodingException e) {
+				throw new MxException("UTF-8 not supported.");
 			}
-		} catch (MxException e) {
-			if(logger.isDebugEnabled()) {
-				logger.debug("connect(): exception - " + e.getCause());
+
+			// keep the link while the output stream uses it
+			link = acquireLink(target, 0, sendIndex);
+			if(link == -1) {
+				finish(null);
+				return;
 			}
-			return null;
+
+			// send request
+			buf.flip();
+			JavaMx.sendSynchronous(buf, buf.position(), buf.remaining(), 
+					sendEndpoint, link, handle, 
+					Matching.construct(Matching.PROTOCOL_CONNECT, id));
+			posted = true;
 		}
 
-		// read reply
-		connectBuf.clear();
-		JavaMx.recv(connectBuf, connectBuf.position(), connectBuf.remaining(),
-				endpointNumber, connectHandle, Matching.PROTOCOL_CONNECT_REPLY);
-		msgSize = JavaMx.wait(endpointNumber, connectHandle); // TODO we should always get a reply?
-		if (msgSize < 0) {
-			throw new MxException("error");
+		/**
+		 * Called by the control thread, fails the request when the CONNECT 
+		 * message could not be delivered or when the deadline has passed.
+		 */
+		synchronized void check(long now) {
+			if(done || !posted) {
+				return;
+			}
+			if(!sent) {
+				try {
+					sent = JavaMx.test(sendEndpoint, handle) >= 0;
+				} catch (MxException e) {
+					if(logger.isDebugEnabled()) {
+						logger.debug("connect(): exception - " + e.getMessage());
+					}
+					// the request is finished
+					sent = true;
+					finish(null);
+					return;
+				}
+			}
+			if(now >= deadline) {
+				finish(null);
+			}
+		}
+
+		/**
+		 * Called by the control thread when the reply has arrived.
+		 */
+		synchronized void replyArrived(long matchData) {
+			if(done) {
+				discardMessage(matchData);
+				return;
+			}
+			try {
+				if(!sent) {
+					// the receiver has the request, so this will not take long
+					if(JavaMx.wait(sendEndpoint, handle, 1000) < 0) {
+						throw new MxException("CONNECT message not delivered");
+					}
+					sent = true;
+				}
+				buf.clear();
+				JavaMx.recv(buf, buf.position(), buf.remaining(),
+						endpointNumber, handle, matchData);
+				int msgSize = JavaMx.wait(endpointNumber, handle);
+				if (msgSize < 0) {
+					throw new MxException("error");
+				}
+				buf.limit(msgSize);
+				finish(readReply());
+			} catch (MxException e) {
+				exception = e;
+				finish(null);
+			} catch (RuntimeException e) {
+				// the output stream could not be created, finish() releases its links
+				exception = new MxException("could not create the output stream: " + e);
+				finish(null);
+			}
+		}
+
+		private Connection readReply() throws MxException {
+			byte reply = buf.get();
+			byte[] replymsg;
+			switch (reply) {
+			case Connection.ACCEPT:
+				long matchData = Matching.construct(Matching.PROTOCOL_DATA,
+						buf.getInt());
+				channelUsed = buf.get() != 0 && channel != null;
+				int credits = buf.getInt();
+				int rails = buf.get();
+				MxAddress[] targets = new MxAddress[rails];
+				int[] links = new int[rails];
+				int[] endpoints = new int[rails];
+				targets[0] = target;
+				links[0] = link;
+				endpoints[0] = sendEndpoint;
+				for (int r = 1; r < rails; r++) {
+					targets[r] = MxAddress.fromByteBuffer(buf);
+				}
+				railLinks = new MxAddress[rails];
+				for (int r = 1; r < rails; r++) {
+					links[r] = targets[r] == null ? -1 : acquireLink(targets[r], r, sendIndex);
+					if(links[r] != -1) {
+						// released by finish() when the stream is not created
+						railLinks[r] = targets[r];
+					} else {
+						// the receiver copes with fewer rails than it offered
+						rails = r;
+						break;
+					}
+					endpoints[r] = sendEndpoints[r][sendIndex];
+				}
+				if(rails < targets.length) {
+					MxAddress[] a = new MxAddress[rails];
+					System.arraycopy(targets, 0, a, 0, rails);
+					targets = a;
+					int[] l = new int[rails];
+					System.arraycopy(links, 0, l, 0, rails);
+					links = l;
+					int[] e = new int[rails];
+					System.arraycopy(endpoints, 0, e, 0, rails);
+					endpoints = e;
+				}
+				DataOutputStreamImpl os = new DataOutputStreamImpl(MxSocket.this, 
+						endpoints, links, matchData, targets, 
+						channelUsed ? channel : null, credits);
+				linkUsed = true;
+				addDataOutputStream(os);
+				replymsg = new byte[buf.remaining()];
+				buf.get(replymsg);
+				return new Connection(os, reply, replymsg);
+			case Connection.REJECT:
+				replymsg = new byte[buf.remaining()];
+				buf.get(replymsg);
+				return new Connection(null, reply, replymsg);
+			default:
+				throw new MxException("invalid reply");
+			}
+		}
+
+		/**
+		 * Completes the request and cleans up.
+		 */
+		synchronized void finish(Connection result) {
+			if(done) {
+				return;
+			}
+			done = true;
+			this.result = result;
+			pendingConnects.remove(id);
+			if(posted && !sent) {
+				JavaMx.forget(sendEndpoint, handle);
+			}
+			JavaMx.handles.releaseHandle(handle);
+			if(!linkUsed) {
+				if(link != -1) {
+					releaseLink(target);
+				}
+				if(railLinks != null) {
+					for (MxAddress a : railLinks) {
+						if(a != null) {
+							releaseLink(a);
+						}
+					}
+				}
+			}
+			if(channel != null) {
+				// the receiver has mapped the file by now, or never will
+				channel.unlink();
+				if(!channelUsed) {
+					channel.close();
+				}
+			}
+			notifyAll();
+		}
+
+		/**
+		 * Waits for the request to finish, gives up after timeout milliseconds.
+		 * @param timeout The timeout in milliseconds, 0 means no timeout
+		 * @return the connection, or null when it could not be set up in time
+		 */
+		synchronized Connection await(long timeout) throws MxException {
+			long deadline = Long.MAX_VALUE;
+			if(timeout > 0) {
+				deadline = System.currentTimeMillis() + timeout;
+			}
+			boolean interrupted = false;
+			while(!done) {
+				long t = 0;
+				if(deadline != Long.MAX_VALUE) {
+					t = deadline - System.currentTimeMillis();
+					if(t <= 0) {
+						finish(null);
+						break;
+					}
+				}
+				try {
+					wait(t);
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if(exception != null) {
+				throw exception;
+			}
+			return result;
 		}
-		connectBuf.limit(msgSize);
-		byte reply = connectBuf.get();
-		byte[] replymsg;
-		switch (reply) {
-		case Connection.ACCEPT:
-			long matchData = Matching.construct(Matching.PROTOCOL_DATA,
-					connectBuf.getInt());
-			DataOutputStreamImpl os = new DataOutputStreamImpl(this, sendEndpointNumber, link,
-					matchData, target);
-			addDataOutputStream(os);
-			replymsg = new byte[connectBuf.remaining()];
-			connectBuf.get(replymsg);
-			return new Connection(os, reply, replymsg);
-		case Connection.REJECT:
-			replymsg = new byte[connectBuf.remaining()];
-			connectBuf.get(replymsg);
-			return new Connection(null, reply, replymsg);
-		default:
-			throw new MxException("invalid reply");
-		}
-		} finally {
-			connectLock.unlock();
+
+		public synchronized boolean cancel(boolean mayInterruptIfRunning) {
+			if(done) {
+				return false;
+			}
+			cancelled = true;
+			finish(null);
+			return true;
+		}
+
+		public synchronized boolean isCancelled() {
+			return cancelled;
+		}
+
+		public synchronized boolean isDone() {
+			return done;
+		}
+
+		public synchronized Connection get() throws InterruptedException, 
+		ExecutionException {
+			while(!done) {
+				wait();
+			}
+			return getResult();
+		}
+
+		public synchronized Connection get(long timeout, TimeUnit unit) 
+		throws InterruptedException, ExecutionException, TimeoutException {
+			long deadline = System.nanoTime() + unit.toNanos(timeout);
+			while(!done) {
+				long t = deadline - System.nanoTime();
+				if(t <= 0) {
+					throw new TimeoutException();
+				}
+				TimeUnit.NANOSECONDS.timedWait(this, t);
+			}
+			return getResult();
+		}
+
+		private Connection getResult() throws ExecutionException {
+			if(cancelled) {
+				throw new CancellationException();
+			}
+			if(exception != null) {
+				throw new ExecutionException(exception);
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Receives and drops a control message nobody waits for anymore.
+	 */
+	private void discardMessage(long matchData) {
+		try {
+			listenBuf.clear();
+			JavaMx.recv(listenBuf, listenBuf.position(), listenBuf.remaining(),
+					endpointNumber, listenHandle, matchData);
+			JavaMx.wait(endpointNumber, listenHandle);
+		} catch (MxException e) {
+			// should not go wrong, the message is already waiting for us
+			logger.warn("could not discard message: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Fails the connects that are past their deadline, or of which the 
+	 * CONNECT message could not be delivered.
+	 */
+	private void checkPendingConnects() {
+		if(pendingConnects.isEmpty()) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		for (PendingConnect p : pendingConnects.values()) {
+			p.check(now);
 		}
 	}
 
@@ -183,8 +672,10 @@ public class MxSocket implements Runnable {
 					POLL_FOR_CLOSE_INTERVAL, Matching.ENDPOINT_TRAFFIC,
 					Matching.ENDPOINT_THREAD_TRAFFIC_MASK);
 
+			checkPendingConnects();
 			if (matching == Matching.NONE) {
 				// no message arrived, timeout
+				disconnectIdleLinks();
 				continue;
 			}
 			long protocol = Matching.getProtocol(matching);
@@ -201,6 +692,26 @@ public class MxSocket implements Runnable {
 				}
 				// remote ReceivePort closes
 				receiverClosedConnection(matching);
+			} else if (protocol == Matching.PROTOCOL_CREDIT) {
+				// remote ReceivePort took messages
+				creditsArrived(matching);
+			} else if (protocol == Matching.PROTOCOL_CREDIT_REQUEST) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("CREDIT_REQUEST message received");
+				}
+				// remote SendPort waits for credits
+				creditsRequested(matching);
+			} else if (protocol == Matching.PROTOCOL_CONNECT_REPLY) {
+				if (logger.isDebugEnabled()) {
+					logger.debug("CONNECT_REPLY message received");
+				}
+				PendingConnect p = pendingConnects.get(Matching.getPort(matching));
+				if (p == null) {
+					// the connect timed out already
+					discardMessage(matching);
+				} else {
+					p.replyArrived(matching);
+				}
 			} else if (protocol == Matching.PROTOCOL_CONNECT) {
 				if (logger.isDebugEnabled()) {
 					logger.debug("CONNECT message received");
@@ -230,32 +741,66 @@ public class MxSocket implements Runnable {
 	}
 
 	private void receiverClosedConnection(long matchData) {
+		DataOutputStreamImpl os = receiveFromReceiver(matchData);
+		if (os != null) {
+			os.receiverClosedConnection();
+		}
+	}
+
+	private void creditsArrived(long matchData) {
+		DataOutputStreamImpl os = receiveFromReceiver(matchData);
+		if (os != null) {
+			os.grantCredits(listenBuf.getLong());
+		}
+	}
+
+	/**
+	 * Receives a message of the receiver of an output stream, it starts with
+	 * the address of the receiver. The rest of the message is left in 
+	 * listenBuf.
+	 * @return the output stream, null when it is unknown
+	 */
+	private DataOutputStreamImpl receiveFromReceiver(long matchData) {
 		listenBuf.clear();
 		try {
 			JavaMx.recv(listenBuf, listenBuf.position(), listenBuf.remaining(),
 					endpointNumber, listenHandle, matchData);
 			int size = JavaMx.wait(endpointNumber, listenHandle);
 			if (size < 0) {
-				return; // error
+				return null; // error
 			}
 			listenBuf.limit(listenBuf.position() + size);
 		} catch (MxException e) {
 			// TODO Auto-generated catch block
 			// should not go wrong, the message is already waiting for us
 			e.printStackTrace();
-			return;
+			return null;
 		}
-		MxAddress sender = MxAddress.fromByteBuffer(listenBuf);
-		DataOutputStreamImpl os = getDataOutputStream(DataOutputStreamImpl.createString(sender,
-				Matching.getPort(matchData)));
+		// the address of the receiver, as written by MxAddress.toBytes()
+		if(listenBuf.getChar() != 'm' || listenBuf.getChar() != 'x') {
+			return null;
+		}
+		long nicId = listenBuf.getLong();
+		int endpointId = listenBuf.getInt();
+		return getDataOutputStream(nicId, endpointId, Matching.getPort(matchData));
+	}
 
-		if (os != null) {
-			os.receiverClosedConnection();
+	private void creditsRequested(long matchData) {
+		try {
+			JavaMx.recv(null, 0, 0, endpointNumber, listenHandle, matchData);
+			JavaMx.wait(endpointNumber, listenHandle);
+		} catch (MxException e) {
+			// should not go wrong, the message is already waiting for us
+			logger.warn("could not receive credit request: " + e.getMessage());
+			return;
+		}
+		DataInputStream is = getDataInputStream(Matching.getPort(matchData));
+		if (is != null) {
+			is.creditsRequested();
 		}
 	}
 
 	private void senderClosedConnection(long matchData) {
-		DataInputStream is;
 		try {
 			JavaMx.recv(null, 0, 0, endpointNumber, listenHandle, matchData);
 			JavaMx.wait(endpointNumber, listenHandle);
@@ -264,12 +809,7 @@ public class MxSocket implements Runnable {
 			// should not go wrong, the message is already waiting for us
 			e.printStackTrace();
 		}
-		int port = Matching.getPort(matchData);
-		if(port %2 == 0) {
-			is = lowLatencyDataInputStreams.get(port);	
-		} else {
-			is = selectableDataInputStreams.get(port);
-		}
+		DataInputStream is = getDataInputStream(Matching.getPort(matchData));
 
 		if (is == null) {
 			return; // bogus message, discard it
@@ -279,16 +819,77 @@ public class MxSocket implements Runnable {
 
 
 
+	/**
+	 * Receives a CONNECT request and hands it to the accept workers.
+	 */
 	private void listen(long matchData) throws IOException {
-		// TODO catch exceptions
-		ConnectionRequest request = null;
+		// every request gets its own buffer and handle, they are used for the reply as well
+		ByteBuffer buf = ByteBuffer.allocateDirect(MAX_CONNECT_MSG_SIZE).order(
+				ByteOrder.BIG_ENDIAN);
+		int handle = JavaMx.handles.getHandle();
+		ConnectionRequest request;
+		try {
+			request = readRequest(matchData, buf, handle);
+		} catch (IOException e) {
+			JavaMx.handles.releaseHandle(handle);
+			throw e;
+		}
+		if (request == null) {
+			JavaMx.handles.releaseHandle(handle);
+			return;
+		}
 
-		listenBuf.clear();
+		acceptExecutor.execute(new AcceptTask(request, handle));
+	}
+
+	/**
+	 * A connection request for the accept workers, the handle of the request
+	 * is released when it is handled.
+	 */
+	private final class AcceptTask implements Runnable {
+		private final ConnectionRequest request;
+		private final int handle;
+
+		AcceptTask(ConnectionRequest request, int handle) {
+			this.request = request;
+			this.handle = handle;
+		}
+
+		public void run() {
+			try {
+				handleRequest(request);
+			} catch (Throwable e) {
+				logger.warn("error while handling a connection request", e);
+			} finally {
+				JavaMx.handles.releaseHandle(handle);
+			}
+		}
+
+		/**
+		 * Rejects the request without asking the listener, the socket closes.
+		 */
+		void reject() {
+			try {
+				request.reject();
+				sendReject(request);
+			} catch (MxException e) {
+				if(logger.isDebugEnabled()) {
+					logger.debug("could not reject a connection request: " + e.getMessage());
+				}
+			} finally {
+				JavaMx.handles.releaseHandle(handle);
+			}
+		}
+	}
+
+	private ConnectionRequest readRequest(long matchData, ByteBuffer buf, 
+			int handle) throws IOException {
+		buf.clear();
 		int msgSize = 0;
 		try {
-			JavaMx.recv(listenBuf, listenBuf.position(), listenBuf.remaining(),
-					endpointNumber, listenHandle, matchData);
-			msgSize = JavaMx.wait(endpointNumber, listenHandle);
+			JavaMx.recv(buf, buf.position(), buf.remaining(),
+					endpointNumber, handle, matchData);
+			msgSize = JavaMx.wait(endpointNumber, handle);
 		} catch (MxException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -298,16 +899,42 @@ public class MxSocket implements Runnable {
 			// TODO error
 			throw new MxException("error");
 		}
-		listenBuf.limit(msgSize);
-		MxAddress source = MxAddress.fromByteBuffer(listenBuf);
+		buf.limit(msgSize);
+		MxAddress source = MxAddress.fromByteBuffer(buf);
 		if (source == null) {
-			return;
+			return null;
+		}
+		int rails = buf.get();
+		int bufferSize = buf.getInt();
+		String channelName = null;
+		int nameSize = buf.getShort();
+		if(nameSize > 0) {
+			byte[] name = new byte[nameSize];
+			buf.get(name);
+			channelName = new String(name, "UTF-8");
 		}
-		byte[] descriptor = new byte[listenBuf.remaining()];
-		listenBuf.get(descriptor);
-		request = new ConnectionRequest(this, source, descriptor);
+		byte[] descriptor = new byte[buf.remaining()];
+		buf.get(descriptor);
+		return new ConnectionRequest(this, source, descriptor, channelName, rails,
+				bufferSize, Matching.setProtocol(matchData, Matching.PROTOCOL_CONNECT_REPLY),
+				buf, handle);
+	}
 
-		listener.newConnection(request);
+	/**
+	 * Lets the listener accept or reject a request, runs in an accept worker.
+	 */
+	private void handleRequest(ConnectionRequest request) throws MxException {
+		if(request.getBufferSize() != Config.BUFFER_SIZE) {
+			// our receive buffers would truncate its messages, or the other way around
+			if(logger.isDebugEnabled()) {
+				logger.debug("listen(): buffer size " + request.getBufferSize()
+						+ " of " + request.getSourceAddress() + " differs from ours, "
+						+ Config.BUFFER_SIZE + ", check mxio.buffersize");
+			}
+			request.reject();
+		} else {
+			listener.newConnection(request);
+		}
 		// TODO read request
 		switch (request.status) {
 		case ConnectionRequest.ACCEPTED:
@@ -326,63 +953,100 @@ public class MxSocket implements Runnable {
 			if(logger.isDebugEnabled()) {
 				logger.debug("listen(): REJECT");
 			}
-			int link = lookup(source);
-			if(link == -1) {
-				return;
-			}
-			listenBuf.clear();
-			listenBuf.put(Connection.REJECT);
-			listenBuf.put(request.replyMessage, 0, request.msgSize);
-			listenBuf.flip();
-			JavaMx.send(listenBuf, listenBuf.position(), listenBuf
-					.remaining(), sendEndpointNumber, link, listenHandle,
-					Matching.PROTOCOL_CONNECT_REPLY);
-			msgSize = JavaMx.wait(sendEndpointNumber, listenHandle, 1000);
-			if (msgSize < 0) {
-				// timeout
-				JavaMx.cancel(sendEndpointNumber, listenHandle); // TODO
-			}
-			listenBuf.clear();
+			sendReject(request);
 			return;
 		}
 	}
 
+	/**
+	 * Sends the REJECT reply to a request.
+	 */
+	private void sendReject(ConnectionRequest request) throws MxException {
+		int link = lookup(request.getSourceAddress());
+		if(link == -1) {
+			return;
+		}
+		ByteBuffer buf = request.buffer();
+		int handle = request.handle();
+		buf.clear();
+		buf.put(Connection.REJECT);
+		buf.put(request.replyMessage, 0, request.msgSize);
+		buf.flip();
+		JavaMx.send(buf, buf.position(), buf.remaining(), 
+				sendEndpointNumber, link, handle,
+				request.getReplyMatchData());
+		int msgSize = JavaMx.wait(sendEndpointNumber, handle, 1000);
+		if (msgSize < 0) {
+			// timeout
+			JavaMx.cancel(sendEndpointNumber, handle); // TODO
+		}
+	}
+
 	protected DataInputStream accept(ConnectionRequest request) throws MxException {
 
 		long matchData;
+		ShmChannel channel = null;
+		int rails = 1;
 		try {
 			boolean selectable = request.selectable();
-			matchData = addConnection(request.getSourceAddress(), selectable);
-			if(selectable && deliveryThread == null) {
-				deliveryThread = new DeliveryThread(this, Config.DELIVERY_THREAD_BUFFERS);
-				ThreadPool.createNew(this.deliveryThread, "MxSocket " + endpointNumber + " - "
-						+ sendEndpointNumber + " deliveryThread");
+			if(!selectable && request.getChannelName() != null
+					&& request.getSourceAddress().nicId == myAddress.nicId) {
+				// the sender runs on this host, bypass the NIC
+				try {
+					channel = ShmChannel.open(request.getChannelName());
+				} catch (IOException e) {
+					if(logger.isDebugEnabled()) {
+						logger.debug("accept(): no shared memory channel - " + e.getMessage());
+					}
+				}
+			}
+			if(!selectable && channel == null) {
+				// stripe the large messages over the rails we both have
+				rails = Math.min(request.getRails(), railAddresses.length);
+			}
+			matchData = addConnection(request.getSourceAddress(), selectable, 
+					channel, rails);
+			if(selectable) {
+				startDeliveryThread();
+			} else if(channel == null && Config.SHARED_RECEIVE) {
+				startSharedReceiveThread();
 			}
 		} catch (IOException e) {
 			// TODO handle this
+			if(channel != null) {
+				channel.close();
+			}
 			request.reject();
 			return null;
 		}
 
-		// TODO check listenBuf
-
 		int link = lookup(request.getSourceAddress());
 		if(link == -1) {
 			request.reject();
 			return null;
 		}
 
-		listenBuf.clear();
-		listenBuf.put(Connection.ACCEPT);
-		listenBuf.putInt(Matching.getPort(matchData));
-		listenBuf.put(request.replyMessage, 0, request.msgSize);
-		listenBuf.flip();
-		JavaMx.send(listenBuf, listenBuf.position(), listenBuf
-				.remaining(), sendEndpointNumber, link, listenHandle,
-				Matching.PROTOCOL_CONNECT_REPLY);
+		ByteBuffer buf = request.buffer();
+		int handle = request.handle();
+		buf.clear();
+		buf.put(Connection.ACCEPT);
+		buf.putInt(Matching.getPort(matchData));
+		buf.put(channel == null ? (byte) 0 : (byte) 1);
+		// the credits of the sender, none when the stream has no flow control
+		DataInputStream is = getDataInputStream(Matching.getPort(matchData));
+		buf.putInt(is != null ? is.startCredits() : 0);
+		buf.put((byte) rails);
+		for (int r = 1; r < rails; r++) {
+			buf.put(railAddresses[r].toBytes());
+		}
+		buf.put(request.replyMessage, 0, request.msgSize);
+		buf.flip();
+		JavaMx.send(buf, buf.position(), buf.remaining(), 
+				sendEndpointNumber, link, handle,
+				request.getReplyMatchData());
 		int msgSize = -1;
 		try {
-			msgSize = JavaMx.wait(sendEndpointNumber, listenHandle, 1000);
+			msgSize = JavaMx.wait(sendEndpointNumber, handle, 1000);
 		} catch (MxException e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
@@ -395,7 +1059,7 @@ public class MxSocket implements Runnable {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
 			}
-			JavaMx.cancel(sendEndpointNumber, listenHandle); // TODO
+			JavaMx.cancel(sendEndpointNumber, handle); // TODO
 			//error
 			request.reject();
 			return null;
@@ -403,57 +1067,82 @@ public class MxSocket implements Runnable {
 		return getDataInputStream(Matching.getPort(matchData));
 	}
 
-	protected long addConnection(MxAddress source, boolean selectableChannel)
-	throws IOException {
+	private synchronized void startDeliveryThread() {
+		if(deliveryThread == null) {
+			deliveryThread = new DeliveryThread(this, Config.DELIVERY_THREAD_BUFFERS);
+			ThreadPool.createNew(this.deliveryThread, "MxSocket " + endpointNumber + " - "
+					+ sendEndpointNumber + " deliveryThread");
+		}
+	}
+
+	/**
+	 * @return the engine that drives the sends of flushAsync(), it is 
+	 * started the first time
+	 */
+	synchronized ProgressEngine progressEngine() {
+		if(progressEngine == null) {
+			progressEngine = new ProgressEngine();
+			ThreadPool.createNew(progressEngine, "MxSocket " + endpointNumber + " - "
+					+ sendEndpointNumber + " progressEngine");
+		}
+		return progressEngine;
+	}
+
+	private synchronized void startSharedReceiveThread() {
+		if(sharedReceiveThread == null) {
+			sharedReceiveThread = new SharedReceiveThread(this);
+			ThreadPool.createNew(this.sharedReceiveThread, "MxSocket " + endpointNumber + " - "
+					+ sendEndpointNumber + " sharedReceiveThread");
+		}
+	}
+
+	/**
+	 * @param rails The number of rails the sender stripes its messages over,
+	 * only for low latency streams
+	 */
+	protected long addConnection(MxAddress source, boolean selectableChannel,
+			ShmChannel channel, int rails) throws IOException {
 		if(selectableChannel) {
-			boolean found = false;
-			for (long i = 1; i < Integer.MAX_VALUE/2; i++) {
-				nextsKey = (nextsKey % Integer.MAX_VALUE) + 2; // 0 will not be used
-				if (!selectableDataInputStreams.containsKey(nextsKey)) {
-					found = true;
-					break;
-				}
-			}
-			if(!found) {
-				throw new IOException("maximum number of connections reached");
-			}
+			int port = selectablePorts.allocate();
 
 			long matchData;
 			SelectableDataInputStream is;
 
 			try {
-				matchData = Matching.construct(Matching.PROTOCOL_DATA, nextsKey);
+				matchData = Matching.construct(Matching.PROTOCOL_DATA, port);
 				is = new SelectableDataInputStream(this, source, endpointNumber(), matchData);
 
-				selectableDataInputStreams.put(nextsKey, is);
+				synchronized(selectableDataInputStreams) {
+					selectableDataInputStreams.put(port, is);
+				}
 				return matchData;
 			} catch (IOException e) {
+				selectablePorts.release(port);
 				throw new MxException("Could not create a connection:" + e.getMessage());
 			}
 
 		} else {
-			boolean found = false;
-			for (long i = 0; i < Integer.MAX_VALUE/2; i++) {
-				nextllKey = (nextllKey % Integer.MAX_VALUE) + 2; // 0 will not be used
-				if (!lowLatencyDataInputStreams.containsKey(nextllKey)) {
-					found = true;
-					break;
-				}
-			}
-			if(!found) {
-				throw new IOException("maximum number of connections reached");
-			}
+			int port = lowLatencyPorts.allocate();
 
 			long matchData;
 			LowLatencyDataInputStream is;
 
 			try {
-				matchData = Matching.construct(Matching.PROTOCOL_DATA, nextllKey);
-				is = new LowLatencyDataInputStream(this, source, endpointNumber(), matchData);
+				matchData = Matching.construct(Matching.PROTOCOL_DATA, port);
+				int[] endpoints = null;
+				if(rails > 1) {
+					endpoints = new int[rails];
+					System.arraycopy(railEndpoints, 0, endpoints, 0, rails);
+				}
+				is = new LowLatencyDataInputStream(this, source, endpointNumber(), 
+						matchData, channel, endpoints);
 
-				lowLatencyDataInputStreams.put(nextllKey, is);
+				synchronized(lowLatencyDataInputStreams) {
+					lowLatencyDataInputStreams.put(port, is);
+				}
 				return matchData;
 			} catch (IOException e) {
+				lowLatencyPorts.release(port);
 				throw new MxException("Could not create a connection:" + e.getMessage());
 			}
 		}
@@ -461,9 +1150,13 @@ public class MxSocket implements Runnable {
 
 	protected DataInputStream getDataInputStream(int port) {
 		if(port % 2 == 0) {
-			return lowLatencyDataInputStreams.get(port);	
+			synchronized(lowLatencyDataInputStreams) {
+				return lowLatencyDataInputStreams.get(port);
+			}
 		} else {
-			return selectableDataInputStreams.get(port);
+			synchronized(selectableDataInputStreams) {
+				return selectableDataInputStreams.get(port);
+			}
 		}
 	}
 
@@ -471,31 +1164,157 @@ public class MxSocket implements Runnable {
 		if(port % 2 == 0) {
 			return null;	
 		} else {
-			return selectableDataInputStreams.get(port);
+			synchronized(selectableDataInputStreams) {
+				return selectableDataInputStreams.get(port);
+			}
 		}
 	}
 
+	protected LowLatencyDataInputStream getLowLatencyDataInputStream(int port) {
+		if(port % 2 == 1) {
+			return null;	
+		} else {
+			synchronized(lowLatencyDataInputStreams) {
+				return lowLatencyDataInputStreams.get(port);
+			}
+		}
+	}
+
+	/**
+	 * @return the ports of the low latency input streams at this moment
+	 */
+	int[] lowLatencyStreamPorts() {
+		synchronized(lowLatencyDataInputStreams) {
+			int n = 0;
+			for(int i = 0; i < lowLatencyDataInputStreams.capacity(); i++) {
+				if(lowLatencyDataInputStreams.valueAt(i) != null) {
+					n++;
+				}
+			}
+			int[] result = new int[n];
+			n = 0;
+			for(int i = 0; i < lowLatencyDataInputStreams.capacity(); i++) {
+				LowLatencyDataInputStream is = lowLatencyDataInputStreams.valueAt(i);
+				if(is != null) {
+					result[n++] = is.getPort();
+				}
+			}
+			return result;
+		}
+	}
+
+	/**
+	 * Reserves memory for posted receives.
+	 * @param force when true, the memory is reserved even when it exceeds the budget
+	 * @return false when the memory does not fit in Config.RECEIVE_MEMORY
+	 */
+	boolean reserveReceiveMemory(long bytes, boolean force) {
+		while(true) {
+			long used = receiveMemory.get();
+			if(!force && used + bytes > Config.RECEIVE_MEMORY) {
+				return false;
+			}
+			if(receiveMemory.compareAndSet(used, used + bytes)) {
+				return true;
+			}
+		}
+	}
+
+	void releaseReceiveMemory(long bytes) {
+		receiveMemory.addAndGet(-bytes);
+	}
+
+	/**
+	 * @return the receive queue depths of the input streams and the delivery
+	 * thread, and the memory of their posted receives
+	 */
+	public String receiveStatistics() {
+		StringBuilder result = new StringBuilder("MxSocket " + endpointNumber 
+				+ " receives: " + receiveMemory.get() + " of " 
+				+ Config.RECEIVE_MEMORY + " bytes");
+		synchronized(lowLatencyDataInputStreams) {
+			for(int i = 0; i < lowLatencyDataInputStreams.capacity(); i++) {
+				LowLatencyDataInputStream is = lowLatencyDataInputStreams.valueAt(i);
+				if(is != null && is.receiveDepth() != null) {
+					result.append("\n  stream " + Integer.toHexString(is.getPort()) 
+							+ ": " + is.receiveDepth());
+				}
+			}
+		}
+		DeliveryThread delivery = deliveryThread;
+		if(delivery != null) {
+			result.append("\n  delivery thread: " + delivery.receiveDepth());
+		}
+		return result.toString();
+	}
+
+	/**
+	 * Removes a closed input stream, its port can be used again.
+	 */
 	protected DataInputStream removeDataInputStream(int port) {
+		DataInputStream result;
 		if(port % 2 == 0) {
-			return lowLatencyDataInputStreams.remove(port);	
+			synchronized(lowLatencyDataInputStreams) {
+				result = lowLatencyDataInputStreams.remove(port);
+			}
+			if(result != null) {
+				lowLatencyPorts.release(port);
+			}
 		} else {
-			return selectableDataInputStreams.remove(port);
+			synchronized(selectableDataInputStreams) {
+				result = selectableDataInputStreams.remove(port);
+			}
+			if(result != null) {
+				selectablePorts.release(port);
+			}
 		}
+		return result;
 	}
 
-	public synchronized void close() {
+	public void close() {
+		// outside the lock, finishing a connect releases its link
+		for (PendingConnect p : pendingConnects.values()) {
+			p.finish(null);
+		}
+		doClose();
+	}
+
+	private synchronized void doClose() {
 		closing = true;
+		if (logger.isDebugEnabled()) {
+			logger.debug(receiveStatistics());
+		}
+		acceptExecutor.shutdown();
 		if(deliveryThread != null) {
 			deliveryThread.close();
 		}
+		if(sharedReceiveThread != null) {
+			sharedReceiveThread.close();
+		}
+		if(progressEngine != null) {
+			progressEngine.close();
+		}
 
 		// TODO check for channelManagers and listen thread to finish??
 		JavaMx.handles.releaseHandle(listenHandle);
 		JavaMx.handles.releaseHandle(connectHandle);
 		closed = true;
-		for(Integer link : links.values()) {
-			JavaMx.disconnect(link);
-			JavaMx.links.releaseLink(link);
+		for(int i = 0; i < links.capacity(); i++) {
+			Link link = links.valueAt(i);
+			if(link != null) {
+				link.disconnect();
+			}
+		}
+		links.clear();
+		if (logger.isDebugEnabled()) {
+			logger.debug(JavaMx.handles.toString());
+			logger.debug(JavaMx.links.toString());
+			for (BufferPool<?> pool : MxSendBuffer.pools) {
+				logger.debug(pool.toString());
+			}
+			for (BufferPool<?> pool : MxReceiveBuffer.pools) {
+				logger.debug(pool.toString());
+			}
 		}
 	}
 
@@ -503,16 +1322,52 @@ public class MxSocket implements Runnable {
 		return endpointNumber;
 	}
 
-	protected void addDataOutputStream(DataOutputStreamImpl os) {
-		dataOutputStreams.put(os.toString(), os);
+	/**
+	 * @return the endpoint the control messages are sent from
+	 */
+	int sendEndpointNumber() {
+		return sendEndpointNumber;
+	}
+
+	/**
+	 * @return the number of rails to use, from Config.RAILS and the boards of this host. 
+	 * Large messages of low latency streams are striped over the rails.
+	 */
+	private static int railCount() {
+		int boards = JavaMx.getBoardCount();
+		int rails = Config.RAILS;
+		if (rails <= 0 || rails > boards) {
+			rails = boards;
+		}
+		return Math.max(1, Math.min(rails, Config.MAX_RAILS));
 	}
 
-	protected DataOutputStreamImpl removeDataOutputStream(String identifier) {
-		return dataOutputStreams.remove(identifier);
+	/*
+	 * The output streams are stored with the link they use, the stream keeps 
+	 * the link until it is closed.
+	 */
+	protected synchronized void addDataOutputStream(DataOutputStreamImpl os) {
+		Link link = links.get(os.getTarget());
+		if(link != null) {
+			link.outputStreams.put(os.getPort(), os);
+		}
 	}
 
-	protected DataOutputStreamImpl getDataOutputStream(String identifier) {
-		return dataOutputStreams.get(identifier);
+	protected synchronized DataOutputStreamImpl removeDataOutputStream(DataOutputStreamImpl os) {
+		Link link = links.get(os.getTarget());
+		if(link == null) {
+			return null;
+		}
+		return link.outputStreams.remove(os.getPort());
+	}
+
+	protected synchronized DataOutputStreamImpl getDataOutputStream(long nicId, 
+			int endpointId, int port) {
+		Link link = links.get(nicId, endpointId);
+		if(link == null) {
+			return null;
+		}
+		return link.outputStreams.get(port);
 	}
 
 	// My InputStream closes, notify the sender
@@ -544,24 +1399,111 @@ public class MxSocket implements Runnable {
 		return myAddress;
 	}
 
+	/**
+	 * Gets the link to an endpoint, connects to the endpoint when there is 
+	 * no link yet, or when it was disconnected because it was idle.
+	 * @return the link, or -1 when we cannot connect to the endpoint
+	 */
 	synchronized int lookup(MxAddress address) {
-		Integer link = links.get(address);
+		Link link = lookupLink(address, 0, 0);
 		if (link == null) {
+			return -1;
+		}
+		return link.ids[0];
+	}
+
+	/**
+	 * Looks up a link and keeps it connected until releaseLink() is called.
+	 * @param rail The rail the address is on
+	 * @param index The send endpoint of the rail that uses the link
+	 * @return the link, or -1 when we cannot connect to the endpoint
+	 */
+	synchronized int acquireLink(MxAddress address, int rail, int index) {
+		Link link = lookupLink(address, rail, index);
+		if (link == null) {
+			return -1;
+		}
+		link.users++;
+		return link.ids[index];
+	}
+
+	/**
+	 * Releases a link acquired with acquireLink().
+	 */
+	synchronized void releaseLink(MxAddress address) {
+		Link link = links.get(address);
+		if (link == null) {
+			return;
+		}
+		link.users--;
+		link.lastUsed = System.currentTimeMillis();
+	}
+
+	private Link lookupLink(MxAddress address, int rail, int index) {
+		if (closed) {
+			return null;
+		}
+		Link link = links.get(address);
+		if (link == null) {
+			link = new Link(address, sendEndpoints[rail].length);
+			links.put(address, link);
+		}
+		if (link.ids[index] == -1) {
+			int id;
+			try {
+				id = JavaMx.links.getLink();
+			} catch (MxException e) {
+				logger.warn("lookup(): " + e.getMessage());
+				return null;
+			}
 			try {
-				link = JavaMx.links.getLink();
-				if (JavaMx.connect(sendEndpointNumber, link, address.nicId, address.endpointId,
+				if (JavaMx.connect(sendEndpoints[rail][index], id, address.nicId, address.endpointId,
 						IBIS_FILTER) == false) {
 					// has the other side died??
-					JavaMx.links.releaseLink(link);
-					return -1;
+					JavaMx.links.releaseLink(id);
+					return null;
 				}
 			} catch (MxException e1) {
 				// has the other side died??
-				JavaMx.links.releaseLink(link);
-				return -1;
+				JavaMx.links.releaseLink(id);
+				return null;
 			}
-			links.put(address, link);
+			link.ids[index] = id;
 		}
+		link.lastUsed = System.currentTimeMillis();
 		return link;
 	}
+
+	/**
+	 * Disconnects the links that are not used by an output stream and that 
+	 * were not looked up for Config.LINK_IDLE_TIMEOUT milliseconds. 
+	 */
+	private synchronized void disconnectIdleLinks() {
+		if (Config.LINK_IDLE_TIMEOUT <= 0 || closed) {
+			return;
+		}
+		long deadline = System.currentTimeMillis() - Config.LINK_IDLE_TIMEOUT;
+		ArrayList<Link> idle = null;
+		for (int i = 0; i < links.capacity(); i++) {
+			Link link = links.valueAt(i);
+			if (link == null || link.lastUsed > deadline || link.users > 0) {
+				continue;
+			}
+			if (idle == null) {
+				idle = new ArrayList<Link>();
+			}
+			idle.add(link);
+		}
+		if (idle == null) {
+			return;
+		}
+		// removing entries moves others around, so remove them afterwards
+		for (Link link : idle) {
+			if (logger.isDebugEnabled()) {
+				logger.debug("disconnecting idle link to " + link.address);
+			}
+			links.remove(link.address);
+			link.disconnect();
+		}
+	}
 }
@@ -0,0 +1,372 @@
+package mxio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The operations JavaMx needs from the underlying message layer. The default
+ * implementation binds to the MX library, but any implementation that follows
+ * the MX matching semantics (64-bit match data with masks, an unexpected
+ * message queue, eager and synchronous send completion) can be plugged in.
+ */
+interface MxTransport {
+
+	/** The maximum number of buffers in a gather send */
+	static final int MAX_SEGMENTS = 32;
+
+	/** Lets the transport choose the board of a new endpoint */
+	static final int ANY_BOARD = -1;
+
+	/** The size testSome() reports for a request that failed, the request is finished */
+	static final int FAILED = -2;
+
+	/**
+	 * Initializes the transport.
+	 * @return True when successful.
+	 */
+	boolean init() throws MxException;
+
+	/**
+	 * Stops the transport.
+	 * @return always true?
+	 */
+	boolean deInit();
+
+	/**
+	 * Initializes the storage for request handles.
+	 * @param blockSize The size of the memory blocks used
+	 * @param maxBlocks The maximum number of blocks
+	 * @return True when successful.
+	 */
+	boolean initHandles(int blockSize, int maxBlocks);
+
+	/**
+	 * Adds a block of blockSize request handles.
+	 * @return True when successful, false when the maximum number of blocks is reached.
+	 */
+	boolean addHandleBlock();
+
+	/**
+	 * Initializes the storage for links.
+	 * @param blockSize The size of the memory blocks used
+	 * @param maxBlocks The maximum number of blocks
+	 * @return True when successful.
+	 */
+	boolean initLinks(int blockSize, int maxBlocks);
+
+	/**
+	 * Adds a block of blockSize links.
+	 * @return True when successful, false when the maximum number of blocks is reached.
+	 */
+	boolean addLinkBlock();
+
+	/**
+	 * @return The number of boards (NICs) in this host.
+	 */
+	int getBoardCount();
+
+	/**
+	 * Opens a new endpoint.
+	 * @param filter The filter that is used for this endpoint.
+	 * @param board The board the endpoint is opened on, or ANY_BOARD.
+	 * @return The endpoint identifier.
+	 */
+	int newEndpoint(int filter, int board);
+
+	/**
+	 * Closes an endpoint.
+	 * @param endpointNumber the endpoint number of the endpoint that will be closed.
+	 */
+	void closeEndpoint(int endpointNumber);
+
+	/**
+	 * Lets the transport report the completion of every request of an 
+	 * endpoint in a CompletionRing, instead of keeping it for test() and 
+	 * wait(). Those must not be called for the endpoint anymore after this.
+	 * @param endpointNumber The endpoint.
+	 * @param ring A direct buffer with the layout described in CompletionRing.
+	 * @return True when successful, false when the transport does not support this.
+	 */
+	boolean attachCompletionRing(int endpointNumber, ByteBuffer ring);
+
+	/**
+	 * Blocks until the transport writes a record to the completion ring of
+	 * the endpoint, or the timeout expires, or wakeup() is called for the 
+	 * endpoint. Returns immediately when there are records the caller did
+	 * not see yet.
+	 * @param endpointNumber The endpoint.
+	 * @param seen The number of records the caller has read from the ring.
+	 * @param timeout The timeout in milliseconds, 0 means no timeout.
+	 */
+	void waitForCompletion(int endpointNumber, long seen, long timeout);
+
+	/**
+	 * @param endpointNumber The endpoint.
+	 * @return The NIC ID of the NIC the endpoint located at.
+	 */
+	long getMyNicId(int endpointNumber);
+
+	/**
+	 * @param endpointId The JavaMx endpoint ID.
+	 * @return The endpoint number that is used in the mx library. This can be different from the identifier used in JavaMx.
+	 */
+	int getMyEndpointId(int endpointNumber);
+
+	/**
+	 * Gets the NIC identifier of a host by its name.
+	 * @param name The name to resolve.
+	 * @return The NIC identifier.
+	 */
+	long getNicId(String name);
+
+	/**
+	 * Sets up a connection for writing to a remote endpoint. Connections are one-way in JavaMx.
+	 * @param endpointNumber The local endpoint.
+	 * @param link The identifier of the link data structure which can be used for this connection.
+	 * @param targetNicId The NIC ID of the receiver side.
+	 * @param targetEndpoint The (native) endpoint id of the receiver side.
+	 * @param filter The filter which should be used for this connection.
+	 * @return True when successful, false if something went wrong.
+	 */
+	boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter) throws MxException;
+
+	/**
+	 * Sets up a connection for writing to a remote endpoint. Connections are one-way in JavaMx.
+	 * @param endpointNumber The local endpoint.
+	 * @param link The identifier of the link data structure which can be used for this connection.
+	 * @param targetNicId The NIC ID of the receiver side.
+	 * @param targetEndpoint The (native) endpoint id of the receiver side.
+	 * @param filter The filter which should be used for this connection.
+	 * @param timeout The timeout in milliseconds.
+	 * @return true when successful, false when a timeout occurs, or on any other error.
+	 */
+	boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter, long timeout) throws MxException;
+
+	/**
+	 * Closes the connection.
+	 * @param link The link datastructure of the connection that can be closed.
+	 * @return true when succesful, false if the link does not exist (anymore).
+	 */
+	boolean disconnect(int link);
+
+	/**
+	 * Initiates an unreliable message transfer over a link. This request is successful when the message transfer is initiated successfully.
+	 * @param buffer A buffer containing the message
+	 * @param offset The offset of the message in the buffer.
+	 * @param msgSize The size of the message in bytes.
+	 * @param endpointNumber The endpoint that will be used to send the message.
+	 * @param link The link over which the message will be sent.
+	 * @param handle The request handle that can be used for this operation.
+	 * @param matchData The matching data.
+	 */
+	void send(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData);
+
+	/**
+	 * Initiates a reliable message transfer over a link. This request is succesful when the message is received correctly.
+	 * @param buffer A buffer containing the message.
+	 * @param offset The offset of the message in the buffer.
+	 * @param msgSize The size of the message in bytes.
+	 * @param endpointNumber The endpoint that will be used to send the message.
+	 * @param link The link over which the message will be sent.
+	 * @param handle The handle that can be used for this request.
+	 * @param matchData The matching data.
+	 */
+	void sendSynchronous(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData);
+
+	/* the same, but with 2 buffers */
+	void send(
+			ByteBuffer header, int headerSize,
+			ByteBuffer payload, int payloadSize,
+			int endpointNumber, int link, int handle, long matchData
+	);
+
+	void sendSynchronous(
+			ByteBuffer header, int headerSize,
+			ByteBuffer payload, int payloadSize,
+			int endpointNumber, int link, int handle, long matchData
+	);
+
+	/**
+	 * Initiates an unreliable transfer of a number of buffers as one message.
+	 * The buffers must stay untouched until the request is finished.
+	 * @param segments The buffers, each starting at index 0 (use ByteBuffer.slice() to send a part of a buffer). At most MAX_SEGMENTS.
+	 * @param lengths The number of bytes to send from each buffer.
+	 * @param endpointNumber The endpoint that will be used to send the message.
+	 * @param link The link over which the message will be sent.
+	 * @param handle The request handle that can be used for this operation.
+	 * @param matchData The matching data.
+	 */
+	void send(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData);
+
+	/**
+	 * Initiates a reliable transfer of a number of buffers as one message.
+	 * The buffers must stay untouched until the request is finished.
+	 * @param segments The buffers, each starting at index 0 (use ByteBuffer.slice() to send a part of a buffer). At most MAX_SEGMENTS.
+	 * @param lengths The number of bytes to send from each buffer.
+	 * @param endpointNumber The endpoint that will be used to send the message.
+	 * @param link The link over which the message will be sent.
+	 * @param handle The request handle that can be used for this operation.
+	 * @param matchData The matching data.
+	 */
+	void sendSynchronous(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData);
+
+	/**
+	 * Receives a message from an endpoint. Only message with correct matching data will be received.
+	 * @param buffer The buffer in to which the message will be written.
+	 * @param offset The offset in the buffer where the message will be written at.
+	 * @param bufsize The maximum number of bytes that can be written to the buffer.
+	 * @param endpointNumber The local endpoint at which the message must arrive.
+	 * @param handle The handle that can be used for this request.
+	 * @param matchData The matching data. Only messages with exactly this matching data will be received by this request.
+	 * @throws MxException
+	 */
+	void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData) throws MxException;
+
+	/**
+	 * Receives a message from an endpoint. Only message with correct matching data will be received.
+	 * @param buffer The buffer in to which the message will be written.
+	 * @param offset The offset in the buffer where the message will be written at.
+	 * @param bufsize The maximum number of bytes that can be written to the buffer.
+	 * @param endpointNumber The local endpoint at which the message must arrive.
+	 * @param handle The handle that can be used for this request.
+	 * @param matchData The matching data. Only messages with matching data that equals this field after masking with the mask will be received by this request.
+	 * @param matchMask The mask applied to the matching data of the message.
+	 * @throws MxException
+	 */
+	void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData, long matchMask) throws MxException;
+
+	void recv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData) throws MxException;
+
+	void recv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData, long matchMask) throws MxException;
+
+	/**
+	 * Waits for a request to finish.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handle The handle of the request to wait for.
+	 * @return The message size, or -1 when not successful.
+	 * @throws MxException
+	 */
+	int wait(int endpointNumber, int handle) throws MxException;
+
+	/**
+	 * Waits for a request to finish.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handle The handle of the request to wait for.
+	 * @param timeout The timeout in milliseconds.
+	 * @return The message size, or -1 when not successful.
+	 * @throws MxException
+	 */
+	int wait(int endpointNumber, int handle, long timeout) throws MxException;
+
+	/**
+	 * Tests whether a request is finished.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handle The handle of the request to test for.
+	 * @return The message size, or -1 when not successful.
+	 * @throws MxException
+	 */
+	int test(int endpointNumber, int handle) throws MxException;
+
+	/**
+	 * Tests whether a request is finished.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handle The handle of the request to test for.
+	 * @param attempts The number of times the request is tested.
+	 * @return The message size, or -1 when not successful.
+	 * @throws MxException
+	 */
+	int test(int endpointNumber, int handle, int attempts) throws MxException;
+
+	/**
+	 * Tests whether any of a number of requests is finished.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handles The handles of the requests to test for.
+	 * @param count The number of handles to test, starting at index 0.
+	 * @param sizes Receives the message size of the finished request at the same index, -1 for the others.
+	 * @return The index of the finished request, or -1 when no request is finished.
+	 * @throws MxException
+	 */
+	int testAny(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException;
+
+	/**
+	 * Tests all of a number of requests in one call.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handles The handles of the requests to test for.
+	 * @param count The number of handles to test, starting at index 0.
+	 * @param sizes Receives the message sizes of the finished requests at the same index, -1 for the others.
+	 * A request that failed is finished with size FAILED, so only its owner sees the failure.
+	 * @return The number of finished requests, the failed ones included.
+	 * @throws MxException
+	 */
+	int testSome(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException;
+
+	/**
+	 * Waits for any of a number of requests to finish. When none is finished
+	 * yet, this blocks on the first handle, so pass the oldest request first.
+	 * @param endpointNumber The local endpoint number.
+	 * @param handles The handles of the requests to wait for.
+	 * @param count The number of handles, starting at index 0.
+	 * @param sizes Receives the message size of the finished request at the same index, -1 for the others.
+	 * @param timeout The timeout in milliseconds.
+	 * @return The index of the finished request, or -1 on a timeout.
+	 * @throws MxException
+	 */
+	int waitAny(int endpointNumber, int[] handles, int count, int[] sizes, long timeout) throws MxException;
+
+	/**
+	 * Probes for a new message that is ready to be received. This call returns immediately.
+	 * @param endpointNumber The local endpoint number.
+	 * @param matchData The matching data. Only messages with matching data that equals this field after masking with the mask will be probed for by this request.
+	 * @param matchMask The mask applied to the matching data of the message.
+	 * @return the size of the message that can be received, or -1 when there is no message
+	 */
+	int iprobe(int endpointNumber, long matchData, long matchMask);
+
+	/**
+	 * Probes for a new message that is ready to be received. Blocks until the timeout expires.
+	 * @param endpointNumber The local endpoint number.
+	 * @param timeout The timeout in milliseconds, 0 means no timeout.
+	 * @param matchData The matching data. Only messages with matching data that equals this field after masking with the mask will be probed for by this request.
+	 * @param matchMask The mask applied to the matching data of the message.
+	 * @return the size of the message that can be received, or -1 when there is no message
+	 */
+	int probe(int endpointNumber, long timeout, long matchData, long matchMask);
+
+	/**
+	 * Cancels a receive pending request and clean up its resources. Beware: Cannot be used for send() requests.
+	 * @param endpointNumber The number of the endpoint we are working on.
+	 * @param handle The handle of a request that has to be canceled.
+	 * @return True when the request is canceled, false when it was too late to cancel the request.
+	 * In that case, the request still has to be completed by calling test() or wait()
+	 */
+	boolean cancel(int endpointNumber, int handle);
+
+	/**
+	 * Forget a pending request and clean up its resources. Probably works on all kinds of requests
+	 * @param endpointNumber The number of the endpoint we are working on.
+	 * @param handle The handle of a request that has to be canceled.
+	 */
+	void forget(int endpointNumber, int handle);
+
+	/**
+	 * Wake up all threads that are blocked on the endpoint.
+	 * @param endpointNumber The endpoint for which all threads will be waked up.
+	 */
+	void wakeup(int endpointNumber);
+
+	/**
+	 * Waits for a message to arrive
+	 * @param endpointNumber the endpoint to work on
+	 * @return the matching information of the next message, or 0 (Matching.MATCH_NONE) when no message has arrived
+	 */
+	long waitForMessage(int endpointNumber, long timeout, long matchData, long matchMask);
+
+	/**
+	 * @param endpointNumber the endpoint to work on
+	 * @return the matching information of the next message, or 0 (Matching.MATCH_NONE) when no message has arrived
+	 */
+	long pollForMessage(int endpointNumber, long matchData, long matchMask);
+}
@@ -0,0 +1,113 @@
+package mxio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The MxTransport that binds to the MX library (libmyriexpress) via JNI.
+ * See MxTransport for the documentation of the methods.
+ */
+final class NativeMxTransport implements MxTransport {
+
+	/**
+	 * Loads the native libraries.
+	 * @throws UnsatisfiedLinkError when the libraries are not available on this machine
+	 */
+	NativeMxTransport() {
+		System.loadLibrary("myriexpress");
+		System.loadLibrary("javamx");
+	}
+
+	public native boolean init() throws MxException;
+
+	public native boolean deInit();
+
+	public native boolean initHandles(int blockSize, int maxBlocks);
+
+	public native boolean addHandleBlock();
+
+	public native boolean initLinks(int blockSize, int maxBlocks);
+
+	public native boolean addLinkBlock();
+
+	public native int getBoardCount();
+
+	public native int newEndpoint(int filter, int board);
+
+	public native void closeEndpoint(int endpointNumber);
+
+	public native boolean attachCompletionRing(int endpointNumber, ByteBuffer ring);
+
+	public native void waitForCompletion(int endpointNumber, long seen, long timeout);
+
+	public native long getMyNicId(int endpointNumber);
+
+	public native int getMyEndpointId(int endpointNumber);
+
+	public native long getNicId(String name);
+
+	public native boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter) throws MxException;
+
+	public native boolean connect(int endpointNumber, int link, long targetNicId, int targetEndpoint, int filter, long timeout) throws MxException;
+
+	public native boolean disconnect(int link);
+
+	public native void send(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData);
+
+	public native void sendSynchronous(ByteBuffer buffer, int offset, int msgSize, int endpointNumber, int link, int handle, long matchData);
+
+	public native void send(
+			ByteBuffer header, int headerSize,
+			ByteBuffer payload, int payloadSize,
+			int endpointNumber, int link, int handle, long matchData
+	);
+
+	public native void sendSynchronous(
+			ByteBuffer header, int headerSize,
+			ByteBuffer payload, int payloadSize,
+			int endpointNumber, int link, int handle, long matchData
+	);
+
+	public native void send(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData);
+
+	public native void sendSynchronous(ByteBuffer[] segments, int[] lengths, int endpointNumber, int link, int handle, long matchData);
+
+	public native void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData) throws MxException;
+
+	public native void recv(ByteBuffer buffer, int offset, int bufsize, int endpointNumber, int handle, long matchData, long matchMask) throws MxException;
+
+	public native void recv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData) throws MxException;
+
+	public native void recv(ByteBuffer buffer, int offset, int bufsize,
+			ByteBuffer buffer2, int offset2, int bufsize2, int endpointNumber,
+			int handle, long matchData, long matchMask) throws MxException;
+
+	public native int wait(int endpointNumber, int handle) throws MxException;
+
+	public native int wait(int endpointNumber, int handle, long timeout) throws MxException;
+
+	public native int test(int endpointNumber, int handle) throws MxException;
+
+	public native int test(int endpointNumber, int handle, int attempts) throws MxException;
+
+	public native int testAny(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException;
+
+	public native int testSome(int endpointNumber, int[] handles, int count, int[] sizes) throws MxException;
+
+	public native int waitAny(int endpointNumber, int[] handles, int count, int[] sizes, long timeout) throws MxException;
+
+	public native int iprobe(int endpointNumber, long matchData, long matchMask);
+
+	public native int probe(int endpointNumber, long timeout, long matchData, long matchMask);
+
+	public native boolean cancel(int endpointNumber, int handle);
+
+	public native void forget(int endpointNumber, int handle);
+
+	public native void wakeup(int endpointNumber);
+
+	public native long waitForMessage(int endpointNumber, long timeout, long matchData, long matchMask);
+
+	public native long pollForMessage(int endpointNumber, long matchData, long matchMask);
+}
@@ -0,0 +1,110 @@
+package mxio;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Hands out the port numbers of the input streams of a MxSocket in constant
+ * time. A port consists of a generation counter, an index and a parity bit:
+ * [generation][index][parity]. The parity bit separates the selectable (odd)
+ * from the low-latency (even) ports. When a port is released, the generation
+ * of its index is incremented, so messages that are still on their way to the
+ * old port do not match the stream that gets the index next.
+ */
+final class PortAllocator {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(PortAllocator.class);
+
+	static final int INDEX_BITS = 16;
+	/** the maximum number of ports in use at the same time */
+	static final int MAX_PORTS = 1 << INDEX_BITS;
+
+	/* keep the ports positive */
+	private static final int GENERATION_BITS = 31 - INDEX_BITS - 1;
+	private static final int GENERATION_MASK = (1 << GENERATION_BITS) - 1;
+
+	private static final int INITIAL_SIZE = 64;
+
+	private final int parity;
+
+	private int size = 0;
+	private int[] generations = new int[0];
+	private boolean[] inUse = new boolean[0];
+	/** stack of the indices that are not in use */
+	private int[] free = new int[0];
+	private int freeCount = 0;
+	private int portsInUse = 0;
+
+	/**
+	 * @param odd true for odd port numbers, false for even port numbers
+	 */
+	PortAllocator(boolean odd) {
+		parity = odd ? 1 : 0;
+	}
+
+	/**
+	 * @return a port that is not in use, never 0
+	 * @throws IOException when the maximum number of ports is in use
+	 */
+	synchronized int allocate() throws IOException {
+		if(freeCount == 0) {
+			if(size == MAX_PORTS) {
+				throw new IOException("maximum number of connections reached");
+			}
+			grow();
+		}
+		int index = free[--freeCount];
+		inUse[index] = true;
+		portsInUse++;
+		return port(index, generations[index]);
+	}
+
+	/**
+	 * Releases a port handed out by allocate().
+	 */
+	synchronized void release(int port) {
+		int index = (port >>> 1) & (MAX_PORTS - 1);
+		if(index >= size || !inUse[index]
+				|| port(index, generations[index]) != port) {
+			throw new Error("port " + port + " is released but not in use");
+		}
+		inUse[index] = false;
+		portsInUse--;
+		// generation 0 is skipped, so port 0 is never handed out
+		int generation = (generations[index] + 1) & GENERATION_MASK;
+		generations[index] = (generation == 0) ? 1 : generation;
+		free[freeCount++] = index;
+		if(logger.isDebugEnabled()) {
+			logger.debug("port " + port + " released");
+		}
+	}
+
+	synchronized int portsInUse() {
+		return portsInUse;
+	}
+
+	private int port(int index, int generation) {
+		return (generation << (INDEX_BITS + 1)) | (index << 1) | parity;
+	}
+
+	private void grow() {
+		int newSize = Math.min(Math.max(size * 2, INITIAL_SIZE), MAX_PORTS);
+		int[] temp = new int[newSize];
+		System.arraycopy(generations, 0, temp, 0, size);
+		generations = temp;
+		boolean[] tempInUse = new boolean[newSize];
+		System.arraycopy(inUse, 0, tempInUse, 0, size);
+		inUse = tempInUse;
+		// the free list is empty, hand out the lowest new indices first
+		free = new int[newSize];
+		for (int i = 0; i < newSize - size; i++) {
+			free[i] = newSize - 1 - i;
+			generations[newSize - 1 - i] = 1;
+		}
+		freeCount = newSize - size;
+		size = newSize;
+	}
+}
@@ -0,0 +1,98 @@
+package mxio;
+
+import java.util.ArrayList;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drives the sends of the output streams of a MxSocket that were flushed
+ * with flushAsync(), so their writers can go on computing. It retires the
+ * finished sends and completes the flushes they finish. A stream of which
+ * the writer is using the flush queues is skipped that round, the writer
+ * retires the sends it waits for itself.
+ *
+ * The engine polls while flushes are pending, and backs off like the reader
+ * of a shared memory channel. It sleeps when there are none.
+ */
+final class ProgressEngine implements Runnable {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(ProgressEngine.class);
+
+	private static final long POLL_FOR_CLOSE_INTERVAL = 500;
+
+	/** the streams with pending flushes, guarded by this */
+	private final ArrayList<DataOutputStreamImpl> streams =
+		new ArrayList<DataOutputStreamImpl>();
+
+	private volatile boolean open = true;
+
+	private long rounds = 0, completed = 0;
+
+	ProgressEngine() {
+		if(logger.isDebugEnabled()) {
+			logger.debug("ProgressEngine created");
+		}
+	}
+
+	/**
+	 * Called by a stream that has pending flushes.
+	 */
+	synchronized void add(DataOutputStreamImpl stream) {
+		if(!streams.contains(stream)) {
+			streams.add(stream);
+			notifyAll();
+		}
+	}
+
+	synchronized void close() {
+		open = false;
+		notifyAll();
+	}
+
+	public void run() {
+		ArrayList<DataOutputStreamImpl> active = new ArrayList<DataOutputStreamImpl>();
+		int i = 0;
+		while(open) {
+			synchronized(this) {
+				while(open && streams.isEmpty()) {
+					i = 0;
+					try {
+						wait(POLL_FOR_CLOSE_INTERVAL);
+					} catch (InterruptedException e) {
+						// ignore
+					}
+				}
+				active.clear();
+				active.addAll(streams);
+			}
+			rounds++;
+			for(DataOutputStreamImpl stream : active) {
+				if(!stream.progress()) {
+					remove(stream);
+					// the next flush of a pipelined writer is on its way
+					i = 0;
+				}
+			}
+			ShmChannel.idle(i++);
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug(toString());
+		}
+	}
+
+	private synchronized void remove(DataOutputStreamImpl stream) {
+		// a flush can be added after progress() returned
+		if(stream.pendingFlushes() == 0) {
+			streams.remove(stream);
+			completed++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		return "ProgressEngine: " + rounds + " rounds, streams without pending flushes "
+				+ completed + " times";
+	}
+}
@@ -0,0 +1,137 @@
+package mxio;
+
+/**
+ * Decides how many receives a LowLatencyInputStream or a DeliveryThread
+ * keeps posted. The depth doubles every time the reader finds all posted
+ * receives finished: it keeps up with the messages, and a deeper queue lets
+ * the sender run further ahead. The depth is halved for every IDLE_TIME the
+ * reader waits without a message arriving, the receives above the new depth
+ * are canceled and their buffers recycled.
+ *
+ * The depth stays between Config.MIN_RECEIVE_DEPTH and
+ * Config.MAX_RECEIVE_DEPTH, and the receives of a MxSocket together stay
+ * within Config.RECEIVE_MEMORY: a queue only grows when its socket has the
+ * memory for it. Every receive is counted at the full buffer size. The
+ * initial depth is always granted.
+ *
+ * A depth is changed by the thread that receives, other threads only read
+ * it for the statistics.
+ */
+final class ReceiveDepth {
+
+	/** a reader that waits this long for a message is idle */
+	static final long IDLE_TIME = 1000;
+
+	private static final long RECEIVE_BYTES = Config.START_BUFFER_SIZE;
+
+	private final MxSocket socket;
+
+	private volatile int depth;
+	/** true while the receives are not posted at all, their memory is released */
+	private boolean suspended = false;
+	private long idleSince = 0;
+
+	private volatile int grows = 0, shrinks = 0;
+
+	ReceiveDepth(MxSocket socket, int initial) {
+		this.socket = socket;
+		depth = Math.max(Config.MIN_RECEIVE_DEPTH,
+				Math.min(initial, Config.MAX_RECEIVE_DEPTH));
+		socket.reserveReceiveMemory(depth * RECEIVE_BYTES, true);
+	}
+
+	int depth() {
+		return depth;
+	}
+
+	/**
+	 * Called when all posted receives were found finished.
+	 * @return true when the depth grew
+	 */
+	boolean full() {
+		if(depth >= Config.MAX_RECEIVE_DEPTH) {
+			return false;
+		}
+		int next = Math.min(2 * depth, Config.MAX_RECEIVE_DEPTH);
+		if(!socket.reserveReceiveMemory((next - depth) * RECEIVE_BYTES, false)) {
+			return false;
+		}
+		depth = next;
+		grows++;
+		return true;
+	}
+
+	/**
+	 * Called when a message arrived.
+	 */
+	void arrived() {
+		idleSince = 0;
+	}
+
+	/**
+	 * Called before the reader blocks for a message.
+	 * @return true when the reader waited IDLE_TIME since a message arrived
+	 * or since the last time this returned true
+	 */
+	boolean idle(long now) {
+		if(idleSince == 0) {
+			idleSince = now;
+			return false;
+		}
+		if(now - idleSince < IDLE_TIME) {
+			return false;
+		}
+		idleSince = now;
+		return true;
+	}
+
+	/**
+	 * Halves the depth of an idle reader.
+	 * @return true when the depth shrank
+	 */
+	boolean shrink() {
+		if(depth <= Config.MIN_RECEIVE_DEPTH) {
+			return false;
+		}
+		int next = Math.max(depth / 2, Config.MIN_RECEIVE_DEPTH);
+		if(!suspended) {
+			socket.releaseReceiveMemory((depth - next) * RECEIVE_BYTES);
+		}
+		depth = next;
+		shrinks++;
+		return true;
+	}
+
+	/**
+	 * Called when all receives are canceled, until resume().
+	 */
+	void suspend() {
+		if(!suspended) {
+			suspended = true;
+			socket.releaseReceiveMemory(depth * RECEIVE_BYTES);
+		}
+	}
+
+	/**
+	 * Called when the receives are posted again, at the current depth.
+	 */
+	void resume() {
+		if(suspended) {
+			suspended = false;
+			socket.reserveReceiveMemory(depth * RECEIVE_BYTES, true);
+		}
+	}
+
+	/**
+	 * Releases the memory of the receives, when the reader closes.
+	 */
+	void close() {
+		suspend();
+	}
+
+	@Override
+	public String toString() {
+		return "depth " + (suspended ? 0 : depth) + ", grew " + grows
+				+ " times, shrank " + shrinks + " times";
+	}
+}
@@ -30,6 +30,12 @@ public class SelectableDataInputStream extends DataInputStream {
 		queue = new LinkedBlockingQueue<MxReceiveBuffer>();
 	}
 		
+	@Override
+	protected int creditWindow() {
+		// the delivery thread queues the messages of all selectable streams, see Credits
+		return 0;
+	}
+
 	protected void newMessage(MxReceiveBuffer buf) {
 		while(true) {
 			try {
@@ -144,7 +150,7 @@ public class SelectableDataInputStream extends DataInputStream {
 		while(buffer != null) {
 			if(!buffer.cancel()) {
 				try {
-					buffer.finish(1, true);
+					buffer.finish(1, null);
 				} catch (IOException e) {
 					// TODO ignore
 				}
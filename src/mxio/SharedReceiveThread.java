@@ -0,0 +1,247 @@
+package mxio;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Receives the messages of the low latency streams of a MxSocket that no
+ * posted receive of their stream matched, when the socket shares its
+ * receives (Config.SHARED_RECEIVE). An idle stream posts no receives at
+ * all, its messages wait in the unexpected queue of the endpoint until this
+ * thread receives them in a pooled buffer of their size class and hands them
+ * to the stream. A busy stream posts Config.DEDICATED_RECEIVES receives of
+ * its own, which match its messages before they become unexpected. So the
+ * memory of the posted receives grows with the busy streams, not with all
+ * streams.
+ *
+ * The unexpected messages of a busy stream are left to its own receives, 
+ * when they are reposted they take the messages out of the unexpected 
+ * queue. When the reader of the stream has not taken a message within 
+ * STALL_TIME, this thread takes its messages after all. Neither does this
+ * thread take messages of a stream that has Config.RECEIVE_QUEUE_SIZE of
+ * them waiting already, whether it stalled or not, its reader becomes busy
+ * when it reads them. So a slow reader does not pile up buffers here. While
+ * the oldest message is left, the messages of the other streams behind it 
+ * are probed per port, so one stream does not hold up the others.
+ *
+ * This thread does not post wildcard receives: MX matches a message with
+ * the oldest posted receive it fits in, so those would take the messages of
+ * the busy streams too.
+ */
+final class SharedReceiveThread implements Runnable, Config {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(SharedReceiveThread.class);
+
+	/** the data messages of the low latency streams, which have even ports */
+	private static final long DATA = Matching.construct(Matching.PROTOCOL_DATA, 0);
+	private static final long MASK = Matching.construct(Matching.PROTOCOL_MASK,
+			Matching.getPort(Matching.SELECTABLEPORTS_MASK));
+	private static final long PORT_MASK = Matching.PROTOCOL_MASK | Matching.PORT_MASK;
+
+	private static final long POLL_FOR_CLOSE_INTERVAL = 500;
+	/** the time we wait for a probed message, before we look whether its stream took it */
+	private static final long MATCH_TIMEOUT = 1;
+	/** the time the messages of a busy stream are left to its own receives */
+	private static final long STALL_TIME = 1000;
+
+	private final MxSocket socket;
+	private final int endpointNumber;
+
+	/** the port of the message that is being received, -1 when there is none */
+	private volatile int current = -1;
+
+	/** the busy stream of which the oldest message waits, since when, and how many messages its reader had taken then */
+	private int waitingPort = -1;
+	private long waitingSince;
+	private int waitingTaken;
+	private boolean stalled = false;
+
+	private long received = 0, dropped = 0, missed = 0, stalls = 0;
+
+	volatile boolean open = true;
+
+	SharedReceiveThread(MxSocket socket) {
+		this.socket = socket;
+		this.endpointNumber = socket.endpointNumber();
+		if(logger.isDebugEnabled()) {
+			logger.debug("SharedReceiveThread created");
+		}
+	}
+
+	void close() {
+		open = false;
+	}
+
+	public void run() {
+		int i = 0;
+		while(open) {
+			long matching = JavaMx.waitForMessage(endpointNumber,
+					POLL_FOR_CLOSE_INTERVAL, DATA, MASK);
+			if(matching == Matching.NONE) {
+				continue;
+			}
+			int port = Matching.getPort(matching);
+			LowLatencyDataInputStream target = socket.getLowLatencyDataInputStream(port);
+			if(target != null && target.waiting() >= RECEIVE_QUEUE_SIZE) {
+				// the reader is behind, it takes the message when it catches up
+				matching = other(port);
+			} else if(target != null && target.postsReceives()) {
+				if(!stalled(port, target.taken())) {
+					// the reader of the stream takes it
+					matching = other(port);
+				}
+			} else {
+				// a stalled stream stays stalled while its messages come first
+				waitingPort = -1;
+			}
+			if(matching == Matching.NONE) {
+				ShmChannel.idle(i++);
+				continue;
+			}
+			port = Matching.getPort(matching);
+			target = socket.getLowLatencyDataInputStream(port);
+			boolean taken;
+			current = port;
+			try {
+				taken = receive(matching, port, target);
+			} finally {
+				current = -1;
+			}
+			if(taken) {
+				i = 0;
+			} else {
+				ShmChannel.idle(i++);
+			}
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug(toString());
+		}
+	}
+
+	/**
+	 * The oldest unexpected message is left at the skipped port, the messages
+	 * of the other streams behind it are served anyway.
+	 * @return the matching of the oldest unexpected message of an idle stream
+	 * that keeps up, other than the one at skipped, or Matching.NONE
+	 */
+	private long other(int skipped) {
+		int[] ports = socket.lowLatencyStreamPorts();
+		for(int port : ports) {
+			if(port == skipped) {
+				continue;
+			}
+			LowLatencyDataInputStream target = socket.getLowLatencyDataInputStream(port);
+			if(target == null || target.postsReceives()
+					|| target.waiting() >= RECEIVE_QUEUE_SIZE) {
+				continue;
+			}
+			long matching = JavaMx.pollForMessage(endpointNumber,
+					Matching.construct(Matching.PROTOCOL_DATA, port), PORT_MASK);
+			if(matching != Matching.NONE) {
+				return matching;
+			}
+		}
+		return Matching.NONE;
+	}
+
+	/**
+	 * @return true when the reader of the busy stream at port has not taken a
+	 * message for longer than STALL_TIME, while its messages waited
+	 */
+	private boolean stalled(int port, int taken) {
+		long now = System.currentTimeMillis();
+		if(port != waitingPort || taken != waitingTaken) {
+			waitingPort = port;
+			waitingSince = now;
+			waitingTaken = taken;
+			stalled = false;
+			return false;
+		}
+		if(!stalled && now - waitingSince >= STALL_TIME) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("stream " + Integer.toHexString(port) + " stalled");
+			}
+			stalled = true;
+			stalls++;
+		}
+		return stalled;
+	}
+
+	/**
+	 * @return false when the message stays unexpected, there is no handle
+	 * left to receive it
+	 */
+	private boolean receive(long matching, int port, 
+			LowLatencyDataInputStream target) {
+		// a receive of exactly this port and size class takes the oldest
+		// unexpected message of the stream that fits in it
+		MxReceiveBuffer buffer;
+		try {
+			buffer = MxReceiveBuffer.get(SizeClass.ofMatch(matching));
+		} catch (MxException e) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("could not receive a message: " + e.getMessage());
+			}
+			return false;
+		}
+		try {
+			buffer.post(endpointNumber, matching, Matching.MASK_ALL);
+			if(!buffer.finish(MATCH_TIMEOUT, null)) {
+				if(buffer.unpost()) {
+					// the stream posted a receive that took the message
+					missed++;
+					MxReceiveBuffer.recycle(buffer);
+					return true;
+				}
+				buffer.finish(null);
+			}
+		} catch (IOException e) {
+			// the message is gone, the reader of the stream fails when it 
+			// gets to it
+			logger.warn("Message for stream " + Integer.toHexString(port) 
+					+ " lost: " + e.getMessage());
+			dropped++;
+			MxReceiveBuffer.recycle(buffer);
+			if(target != null) {
+				target.lost();
+			}
+			return true;
+		}
+		received++;
+		if(target == null) {
+			if(logger.isDebugEnabled()) {
+				logger.debug("Buffer dropped: unknown receiver: " + port);
+			}
+			dropped++;
+			MxReceiveBuffer.recycle(buffer);
+			return true;
+		}
+		target.newMessage(buffer);
+		return true;
+	}
+
+	/**
+	 * @return true when a message to the low latency stream at port can be on
+	 * its way through this thread. Messages that are not, are in the shared
+	 * queue of the stream already.
+	 */
+	boolean receiving(int port) {
+		// the order matters: a message stops being unexpected after current is set,
+		// and current is reset after the message is handed to the stream
+		if(JavaMx.pollForMessage(endpointNumber,
+				Matching.construct(Matching.PROTOCOL_DATA, port), PORT_MASK) != Matching.NONE) {
+			return true;
+		}
+		return current == port;
+	}
+
+	@Override
+	public String toString() {
+		return "SharedReceiveThread: " + received + " messages received, "
+				+ dropped + " dropped, " + missed + " taken by their stream, "
+				+ stalls + " stalled streams";
+	}
+}
@@ -0,0 +1,286 @@
+package mxio;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A one-way shared memory channel between two processes on the same host.
+ * The channel is a ring of message slots in a memory-mapped file. The writer
+ * copies a MxSendBuffer into a free slot, the reader hands out the slots
+ * themselves as MxReceiveBuffers, so a message is copied only once. Slots are
+ * released in the order they were handed out.
+ *
+ * The layout of the file is: head counter, tail counter, writer closed flag
+ * and reader closed flag, each on its own cache line, followed by the slots.
+ * The line of the writer closed flag also holds the slot size, the reader
+ * refuses a channel of which the slots do not fit its Config.BUFFER_SIZE. A
+ * slot contains the message size, followed by the message (mxio header and
+ * payload).
+ *
+ * Channel files are only created and opened in the configured directory, and
+ * only the user that created them can read or write them.
+ */
+final class ShmChannel {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(ShmChannel.class);
+
+	/** System property to disable the shared memory channels */
+	static final String ENABLED_PROPERTY = "mxio.shm";
+	/** System property for the directory the channel files are created in */
+	static final String DIRECTORY_PROPERTY = "mxio.shm.dir";
+
+	static final int MAX_NAME_SIZE = 256;
+
+	private static final int HEAD = 0;
+	private static final int TAIL = 64;
+	private static final int WRITER_CLOSED = 128;
+	private static final int LAYOUT = 132;
+	private static final int READER_CLOSED = 192;
+	private static final int DATA = 256;
+
+	private static final int SLOT_PREFIX = 8;
+	private static final int MESSAGE_SIZE = Config.SIZEOF_HEADER + Config.BUFFER_SIZE;
+	private static final int SLOT_SIZE = (SLOT_PREFIX + MESSAGE_SIZE + 63) & ~63;
+
+	private static final String PREFIX = "mxio-";
+	private static final String SUFFIX = ".ring";
+
+	private static final long PARK_NANOS = 50 * 1000;
+
+	private static final File directory = new File(System.getProperty(
+			DIRECTORY_PROPERTY, "/dev/shm"));
+	private static final boolean enabled = !"false".equals(System
+			.getProperty(ENABLED_PROPERTY));
+
+	/**
+	 * @return true when channels can be created on this host
+	 */
+	static boolean available() {
+		return enabled && directory.isDirectory() && directory.canWrite();
+	}
+
+	/**
+	 * Creates a new channel file, for the writing side of a connection.
+	 * @param slots The number of messages that fit in the channel
+	 */
+	static ShmChannel create(int slots) throws IOException {
+		// createTempFile() fails rather than reuse an existing file
+		File file = File.createTempFile(PREFIX, SUFFIX, directory);
+		file.deleteOnExit();
+		try {
+			if(!(file.setReadable(false, false) && file.setWritable(false, false)
+					&& file.setReadable(true, true) && file.setWritable(true, true))) {
+				throw new IOException("cannot restrict access to " + file);
+			}
+			if(file.length() != 0) {
+				throw new IOException("channel file in use: " + file);
+			}
+			return new ShmChannel(file, DATA + slots * SLOT_SIZE, true);
+		} catch (IOException e) {
+			file.delete();
+			throw e;
+		}
+	}
+
+	/**
+	 * Opens an existing channel file, for the reading side of a connection.
+	 * The name comes from the connect request of the writer, it has to be a
+	 * channel file in the directory of this process.
+	 */
+	static ShmChannel open(String name) throws IOException {
+		File file = new File(name).getCanonicalFile();
+		String fileName = file.getName();
+		if(!directory.getCanonicalFile().equals(file.getParentFile())
+				|| !fileName.startsWith(PREFIX) || !fileName.endsWith(SUFFIX)) {
+			throw new IOException("not a channel: " + name);
+		}
+		if(!file.isFile()) {
+			throw new IOException("no such channel: " + name);
+		}
+		return new ShmChannel(file, file.length(), false);
+	}
+
+	/**
+	 * Waits a little while polling for progress of the other side.
+	 * @param iteration The number of times we waited already
+	 */
+	static void idle(int iteration) {
+		if(iteration < Config.RPOLLS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(PARK_NANOS);
+		}
+	}
+
+	private final File file;
+	private final MappedByteBuffer map;
+	private final int slots;
+	private final boolean writer;
+
+	/** next slot to write or to hand out */
+	private long next = 0;
+	/** writer only: slots released by the reader, as far as we know */
+	private long released = 0;
+
+	/** reader only: the slots, as receive buffers */
+	private MxReceiveBuffer[] views;
+	private boolean closed = false;
+
+	private volatile int fence;
+
+	private ShmChannel(File file, long size, boolean writer) throws IOException {
+		this.file = file;
+		this.writer = writer;
+		if(size < DATA + SLOT_SIZE || size > Integer.MAX_VALUE) {
+			throw new IOException("invalid channel size: " + size);
+		}
+		this.slots = (int) ((size - DATA) / SLOT_SIZE);
+
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if(writer) {
+				raf.setLength(size);
+			}
+			map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+		} finally {
+			raf.close();
+		}
+		map.order(ByteOrder.nativeOrder());
+
+		if(writer) {
+			map.putInt(LAYOUT, SLOT_SIZE);
+			fence();
+		} else {
+			fence();
+			if(map.getInt(LAYOUT) != SLOT_SIZE) {
+				throw new IOException("slot size " + map.getInt(LAYOUT)
+						+ " of channel " + file + " does not match ours: "
+						+ SLOT_SIZE + ", check mxio.buffersize");
+			}
+			views = new MxReceiveBuffer[slots];
+			for (int i = 0; i < slots; i++) {
+				map.limit(DATA + i * SLOT_SIZE + SLOT_PREFIX + MESSAGE_SIZE);
+				map.position(DATA + i * SLOT_SIZE + SLOT_PREFIX);
+				views[i] = new MxReceiveBuffer(new MxIOBuffer(map.slice()), this);
+			}
+			map.clear();
+		}
+		if(logger.isDebugEnabled()) {
+			logger.debug("Channel " + file + " mapped, " + slots + " slots");
+		}
+	}
+
+	/**
+	 * There is no portable way to order accesses to memory that is shared with
+	 * another process, so use a volatile write followed by a volatile read as a
+	 * full fence. Accesses to the mapped buffer cannot move across it. Each
+	 * channel has a field of its own, the channels do not share a cache line.
+	 */
+	private void fence() {
+		fence = 0;
+		if(fence != 0) {
+			throw new Error("cannot happen");
+		}
+	}
+
+	String getName() {
+		return file.getPath();
+	}
+
+	/**
+	 * Removes the channel file. The channel stays usable for the processes
+	 * that have mapped it.
+	 */
+	void unlink() {
+		file.delete();
+	}
+
+	/**
+	 * Writes a message to the channel, waits for a free slot when the channel
+	 * is full.
+	 * @throws IOException when the reader closed the channel
+	 */
+	void put(MxSendBuffer buffer) throws IOException {
+		int i = 0;
+		while(next - released == slots) {
+			fence();
+			released = map.getLong(HEAD);
+			if(next - released < slots) {
+				break;
+			}
+			if(closed || map.getInt(READER_CLOSED) != 0) {
+				throw new IOException("Stream is closed by receiver");
+			}
+			idle(i++);
+		}
+
+		int slot = DATA + (int) (next % slots) * SLOT_SIZE;
+		ByteBuffer header = buffer.header.buf.duplicate();
+		ByteBuffer payload = buffer.payload.buf.duplicate();
+		header.clear();
+
+		map.putInt(slot, header.remaining() + payload.remaining() + buffer.gathered);
+		map.position(slot + SLOT_PREFIX);
+		map.put(header);
+		map.put(payload);
+		for (int s = 0; s < buffer.segmentCount; s++) {
+			map.put(buffer.segments[s].duplicate());
+		}
+		map.clear();
+
+		next++;
+		fence();
+		map.putLong(TAIL, next);
+	}
+
+	/**
+	 * @return the next message, or null when the channel is empty
+	 */
+	MxReceiveBuffer poll() {
+		fence();
+		if(map.getLong(TAIL) == next) {
+			return null;
+		}
+		fence();
+		int index = (int) (next % slots);
+		MxReceiveBuffer result = views[index];
+		result.received(map.getInt(DATA + index * SLOT_SIZE));
+		next++;
+		return result;
+	}
+
+	/**
+	 * Gives the oldest slot that was handed out by poll() back to the writer.
+	 */
+	void release(MxReceiveBuffer buffer) {
+		fence();
+		map.putLong(HEAD, map.getLong(HEAD) + 1);
+	}
+
+	/**
+	 * @return true when the writer has closed the channel
+	 */
+	boolean writerClosed() {
+		fence();
+		return map.getInt(WRITER_CLOSED) != 0;
+	}
+
+	void close() {
+		if(closed) {
+			return;
+		}
+		closed = true;
+		map.putInt(writer ? WRITER_CLOSED : READER_CLOSED, 1);
+		fence();
+	}
+}
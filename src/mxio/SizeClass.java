@@ -0,0 +1,108 @@
+package mxio;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The size classes of the stream buffers. A message is sent in the smallest
+ * buffer it fits in, and its class is put in the matching data, so a posted
+ * receive buffer only matches the messages that fit in it. The class bits
+ * are a thermometer code: class k sets the lowest k bits, and a receive of
+ * class c requires the bits from c on to be clear.
+ *
+ * Besides the classes of the stream buffers there are regions of
+ * REGION_SIZE bytes, in which the arrays that follow a rendezvous are staged.
+ */
+final class SizeClass {
+
+	/** the sizes of the classes, header included, the largest one is Config.START_BUFFER_SIZE */
+	static final int[] SIZES = sizes();
+	static final int LARGEST = SIZES.length - 1;
+
+	private static final int SHIFT = 48;
+
+	/** the size of a pooled staging region */
+	static final int REGION_SIZE = 1024 * 1024;
+	/** the number of staging regions that are kept for reuse */
+	static final int REGION_CACHE_SIZE = 8;
+
+	private static final BufferPool<ByteBuffer> regions = new BufferPool<ByteBuffer>(
+			"Region", REGION_CACHE_SIZE, 2) {
+		void dropped(ByteBuffer region) {
+			// garbage
+		}
+	};
+
+	private SizeClass() {
+	}
+
+	private static int[] sizes() {
+		int[] candidates = { 256, 4 * 1024 };
+		int count = 0;
+		while (count < candidates.length
+				&& candidates[count] < Config.START_BUFFER_SIZE) {
+			count++;
+		}
+		int[] result = new int[count + 1];
+		System.arraycopy(candidates, 0, result, 0, count);
+		result[count] = Config.START_BUFFER_SIZE;
+		return result;
+	}
+
+	/**
+	 * @return the smallest class a message of size bytes (header included) fits in
+	 */
+	static int of(int size) {
+		for (int c = 0; c < LARGEST; c++) {
+			if (size <= SIZES[c]) {
+				return c;
+			}
+		}
+		return LARGEST;
+	}
+
+	/**
+	 * @return the matching bits of a message of a class
+	 */
+	static long matchBits(int sizeClass) {
+		return ((1L << sizeClass) - 1) << SHIFT;
+	}
+
+	/**
+	 * @return the class of a message with the matching data matchData
+	 */
+	static int ofMatch(long matchData) {
+		return Long.bitCount((matchData >>> SHIFT) & ((1L << LARGEST) - 1));
+	}
+
+	/**
+	 * @return the matching mask of a receive of a class: the messages of this
+	 * class and the smaller ones match
+	 */
+	static long mask(int sizeClass) {
+		return Matching.MASK_ALL & ~(((1L << sizeClass) - 1) << SHIFT);
+	}
+
+	/**
+	 * @return a direct region of at least size bytes
+	 */
+	static ByteBuffer getRegion(int size) {
+		if (size > REGION_SIZE) {
+			return ByteBuffer.allocateDirect(size);
+		}
+		ByteBuffer result = regions.get();
+		if (result == null) {
+			result = ByteBuffer.allocateDirect(REGION_SIZE);
+		}
+		result.clear();
+		return result;
+	}
+
+	/**
+	 * Returns a region to the pool, when it has the size of a pooled region.
+	 */
+	static void recycleRegion(ByteBuffer region) {
+		if (region.capacity() == REGION_SIZE) {
+			regions.put(region);
+		}
+	}
+}
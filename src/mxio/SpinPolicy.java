@@ -0,0 +1,145 @@
+package mxio;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides how many times a thread polls for the completion of a request
+ * before it blocks in a native wait. Every stream has its own policy, which
+ * learns from the completions it has seen: the poll budget grows by an eighth
+ * every time a request finished while polling, and it is halved every time a
+ * request needed a blocking wait. So the budget stays high when requests
+ * finish quickly, and drops when polling is a waste of time. The first polls
+ * spin, later ones yield the processor.
+ *
+ * The bounds of the budget depend on the profile, which is selected with
+ * Config.WAIT_PROFILE: "latency" spins long and hard, "throughput" blocks
+ * early and leaves the processor to other threads, "balanced" is the
+ * default.
+ *
+ * A policy is used by one thread at a time.
+ */
+final class SpinPolicy {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(SpinPolicy.class);
+
+	static final int LATENCY = 0, BALANCED = 1, THROUGHPUT = 2;
+
+	/** minimum budget, maximum budget and polls before yielding, by profile */
+	private static final int[][] PROFILES = {
+		{ 500, 50000, 1000 },
+		{ 50, 3000, 50 },
+		{ 0, 300, 0 },
+	};
+
+	static final int profile = profile(Config.WAIT_PROFILE);
+
+	/** counters of the policies that are retired */
+	private static final AtomicLong totalSpins = new AtomicLong();
+	private static final AtomicLong totalParks = new AtomicLong();
+
+	private static int profile(String name) {
+		if (name.equals("balanced")) {
+			return BALANCED;
+		} else if (name.equals("latency")) {
+			return LATENCY;
+		} else if (name.equals("throughput")) {
+			return THROUGHPUT;
+		}
+		logger.warn("unknown wait profile: " + name
+				+ ", using balanced");
+		return BALANCED;
+	}
+
+	private final int minPolls, maxPolls, spinPolls;
+
+	private int budget;
+
+	private long spins = 0, parks = 0;
+
+	SpinPolicy() {
+		this(profile);
+	}
+
+	SpinPolicy(int profile) {
+		minPolls = PROFILES[profile][0];
+		maxPolls = PROFILES[profile][1];
+		spinPolls = PROFILES[profile][2];
+		budget = maxPolls;
+	}
+
+	/**
+	 * @return the number of times to poll before blocking
+	 */
+	int budget() {
+		return budget;
+	}
+
+	/**
+	 * Waits a little while before poll number polls.
+	 */
+	void pause(int polls) {
+		if (polls >= spinPolls) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Called when a request finished while polling.
+	 */
+	void spun() {
+		spins++;
+		budget = Math.min(maxPolls, budget + (budget >> 3) + 1);
+	}
+
+	/**
+	 * Called when a request did not finish within the budget.
+	 */
+	void parked() {
+		parks++;
+		budget = Math.max(minPolls, budget >> 1);
+	}
+
+	long spins() {
+		return spins;
+	}
+
+	long parks() {
+		return parks;
+	}
+
+	/**
+	 * Adds the counters of this policy to the totals, when its stream closes.
+	 */
+	void retire() {
+		totalSpins.addAndGet(spins);
+		totalParks.addAndGet(parks);
+		if (logger.isDebugEnabled()) {
+			logger.debug("retired " + this);
+		}
+		spins = parks = 0;
+	}
+
+	/**
+	 * @return the number of requests of closed streams that finished while polling
+	 */
+	static long totalSpins() {
+		return totalSpins.get();
+	}
+
+	/**
+	 * @return the number of requests of closed streams that needed a blocking wait
+	 */
+	static long totalParks() {
+		return totalParks.get();
+	}
+
+	@Override
+	public String toString() {
+		return "SpinPolicy: " + spins + " spins, " + parks + " parks, budget "
+				+ budget;
+	}
+}
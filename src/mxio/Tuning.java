@@ -0,0 +1,199 @@
+package mxio;
+
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The settings of mxio that can be tuned per job without rebuilding it.
+ * The value of a setting is taken from, in this order: the system property
+ * "mxio.NAME", the ibis property "ibis.ipl.impl.mx.NAME" (see configure()),
+ * the preset profile selected with the "profile" setting, and the default
+ * in Config.
+ *
+ * The settings are read once, when Config is initialized, so configure()
+ * has to be called before the first MxSocket is created. All processes of
+ * a job should use the same buffer size.
+ */
+public final class Tuning {
+
+	private static final Logger logger = LoggerFactory
+	.getLogger(Tuning.class);
+
+	static final String SYSTEM_PREFIX = "mxio.";
+	public static final String IBIS_PREFIX = "ibis.ipl.impl.mx.";
+
+	/** the preset profile: low-latency, bulk-throughput or many-connections */
+	static final String PROFILE = "profile";
+
+	static final String BUFFER_SIZE = "buffersize";
+	static final String RECEIVE_QUEUE_SIZE = "receivequeuesize";
+	static final String SHARED_RECEIVE = "sharedreceive";
+	static final String DEDICATED_RECEIVES = "dedicatedreceives";
+	static final String MIN_RECEIVE_DEPTH = "minreceivedepth";
+	static final String MAX_RECEIVE_DEPTH = "maxreceivedepth";
+	static final String RECEIVE_MEMORY = "receivememory";
+	static final String FLUSH_QUEUE_SIZE = "flushqueuesize";
+	static final String DELIVERY_THREAD_BUFFERS = "deliverybuffers";
+	static final String BUFFER_CACHE_SIZE = "buffercache";
+	static final String POLLS = "polls";
+	static final String WAIT_PROFILE = "waitprofile";
+	static final String GATHER_THRESHOLD = "gatherthreshold";
+	static final String RENDEZVOUS_THRESHOLD = "rendezvousthreshold";
+	static final String ACCEPT_THREADS = "acceptthreads";
+	static final String ACCEPT_QUEUE_SIZE = "acceptqueuesize";
+	static final String LINK_IDLE_TIMEOUT = "linkidletimeout";
+	static final String RAILS = "rails";
+	static final String SEND_ENDPOINTS = "sendendpoints";
+	static final String STRIPE_THRESHOLD = "stripethreshold";
+	static final String STRIPE_RECEIVE_QUEUE_SIZE = "stripereceivequeuesize";
+
+	private static final String[] NAMES = { PROFILE, BUFFER_SIZE,
+		RECEIVE_QUEUE_SIZE, SHARED_RECEIVE, DEDICATED_RECEIVES, 
+		MIN_RECEIVE_DEPTH, MAX_RECEIVE_DEPTH, RECEIVE_MEMORY,
+		FLUSH_QUEUE_SIZE,
+		DELIVERY_THREAD_BUFFERS, BUFFER_CACHE_SIZE, POLLS, WAIT_PROFILE,
+		GATHER_THRESHOLD, RENDEZVOUS_THRESHOLD, ACCEPT_THREADS, ACCEPT_QUEUE_SIZE,
+		LINK_IDLE_TIMEOUT, RAILS, SEND_ENDPOINTS, STRIPE_THRESHOLD,
+		STRIPE_RECEIVE_QUEUE_SIZE };
+
+	/** the preset profiles, as pairs of setting names and values */
+	private static final String[][] LOW_LATENCY = {
+		{ RECEIVE_QUEUE_SIZE, "32" },
+		{ FLUSH_QUEUE_SIZE, "2" },
+		{ WAIT_PROFILE, "latency" },
+	};
+	private static final String[][] BULK_THROUGHPUT = {
+		{ BUFFER_SIZE, "65536" },
+		{ RECEIVE_QUEUE_SIZE, "32" },
+		{ FLUSH_QUEUE_SIZE, "8" },
+		{ WAIT_PROFILE, "throughput" },
+	};
+	private static final String[][] MANY_CONNECTIONS = {
+		{ RECEIVE_QUEUE_SIZE, "4" },
+		{ SHARED_RECEIVE, "true" },
+		{ FLUSH_QUEUE_SIZE, "2" },
+		{ DELIVERY_THREAD_BUFFERS, "64" },
+		{ BUFFER_CACHE_SIZE, "512" },
+		{ LINK_IDLE_TIMEOUT, "10000" },
+		{ WAIT_PROFILE, "throughput" },
+	};
+
+	private static final Properties ibisProperties = new Properties();
+	private static String[][] profile = null;
+	private static boolean inUse = false;
+
+	private Tuning() {
+	}
+
+	/**
+	 * @return the names of the ibis properties of the settings
+	 */
+	public static String[] ibisPropertyNames() {
+		String[] result = new String[NAMES.length];
+		for (int i = 0; i < NAMES.length; i++) {
+			result[i] = IBIS_PREFIX + NAMES[i];
+		}
+		return result;
+	}
+
+	/**
+	 * Adds the settings in a set of ibis properties, the ones that start
+	 * with IBIS_PREFIX. System properties still take precedence.
+	 */
+	public static synchronized void configure(Properties properties) {
+		if (inUse) {
+			logger.warn("the settings are in use already, "
+					+ "ibis properties are ignored");
+			return;
+		}
+		for (String name : NAMES) {
+			String value = properties.getProperty(IBIS_PREFIX + name);
+			if (value != null) {
+				ibisProperties.setProperty(IBIS_PREFIX + name, value);
+			}
+		}
+	}
+
+	private static synchronized String get(String name) {
+		inUse = true;
+		String value = System.getProperty(SYSTEM_PREFIX + name);
+		if (value == null) {
+			value = ibisProperties.getProperty(IBIS_PREFIX + name);
+		}
+		if (value == null && !name.equals(PROFILE)) {
+			for (String[] setting : profile()) {
+				if (setting[0].equals(name)) {
+					value = setting[1];
+				}
+			}
+		}
+		return value;
+	}
+
+	private static String[][] profile() {
+		if (profile == null) {
+			String name = get(PROFILE);
+			if (name == null) {
+				profile = new String[0][];
+			} else if (name.equals("low-latency")) {
+				profile = LOW_LATENCY;
+			} else if (name.equals("bulk-throughput")) {
+				profile = BULK_THROUGHPUT;
+			} else if (name.equals("many-connections")) {
+				profile = MANY_CONNECTIONS;
+			} else {
+				logger.warn("unknown profile: " + name);
+				profile = new String[0][];
+			}
+		}
+		return profile;
+	}
+
+	static String getString(String name, String defaultValue) {
+		String value = get(name);
+		return value == null ? defaultValue : value;
+	}
+
+	static int getInt(String name, int defaultValue) {
+		String value = get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	static long getLong(String name, long defaultValue) {
+		String value = get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.warn("invalid value for " + name + ": " + value);
+			return defaultValue;
+		}
+	}
+
+	static boolean getBoolean(String name, boolean defaultValue) {
+		String value = get(name);
+		if (value == null) {
+			return defaultValue;
+		}
+		value = value.trim();
+		if (value.equalsIgnoreCase("true")) {
+			return true;
+		} else if (value.equalsIgnoreCase("false")) {
+			return false;
+		}
+		logger.warn("invalid value for " + name + ": " + value);
+		return defaultValue;
+	}
+}
@@ -6,8 +6,8 @@ jint hmBlockSize;
 jint hmBlocksInUse;
 mx_request_t **handles;
 
-/* HandleManager.init() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_00024HandleManager_init
+/* NativeMxTransport.initHandles() */
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_initHandles
   (JNIEnv *env, jobject jobj, jint blockSize, jint maxBlocks) {
 	hmBlocks = maxBlocks;
 	hmBlockSize = blockSize;
@@ -19,8 +19,8 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_00024HandleManager_init
 	return JNI_TRUE;
 }
 
-/* HandleManager.addBlock() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_00024HandleManager_addBlock
+/* NativeMxTransport.addHandleBlock() */
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_addHandleBlock
   (JNIEnv *env, jobject jobj) {
 	if(hmBlocksInUse >= hmBlocks) {
 		return JNI_FALSE;
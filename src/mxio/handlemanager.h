@@ -3,7 +3,7 @@
 #define HANDLEMANAGER
 
 #include <stdlib.h>
-#include "mxio_JavaMx_HandleManager.h"
+#include "mxio_NativeMxTransport.h"
 #include "myriexpress.h"
 
 mx_request_t *getRequest(jint handle);
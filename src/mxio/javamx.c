@@ -1,15 +1,58 @@
 /* javamx.c */
 #include "linkmanager.h"
 #include "handlemanager.h"
-#include "mxio_JavaMx.h"
+#include "mxio_NativeMxTransport.h"
 
 #include <stdlib.h>
-#include "myriexpress.h"
+#include <stdint.h>
+#include <pthread.h>
+#include <sched.h>
+#include <errno.h>
+#include <time.h>
+#include "myriexpress.h"
 #include "mx_extensions.h"
 
 
-#define MAX_ENDPOINTS 8
+/* a MxSocket uses a receive endpoint and a pool of send endpoints per rail, 
+ * see mxio.Config.MAX_RAILS and mxio.Config.MAX_SEND_ENDPOINTS */
+#define MAX_ENDPOINTS 32
+/* maximum number of buffers in a gather send, see MxTransport.MAX_SEGMENTS */
+#define MAX_SEGMENTS 32
 mx_endpoint_t endpoints[MAX_ENDPOINTS];   //[MX_MAX_ENDPOINTS];  //TODO use this
+
+/* the handle is passed as the context of every request, so the completion
+ * thread can find out which handle finished */
+#define HANDLE_CONTEXT(handle) ((void *)(intptr_t)(handle))
+
+/* layout of a completion ring, see CompletionRing.java */
+#define RING_HEAD 0
+#define RING_TAIL 64
+#define RING_RECORDS 128
+#define RING_RECORD_SIZE 32
+#define RING_PEEK_TIMEOUT 100
+
+/* the size testSome() reports for a request that failed, MxTransport.FAILED */
+#define REQUEST_FAILED -2
+
+/* the completion thread tests the requests that mx_peek() returns, while 
+ * Java may forget or cancel them: both happen while holding the lock, and 
+ * forgetting or canceling a request increases the generation, so the thread 
+ * knows a request it peeked may be gone. Threads that wait for a record block 
+ * on 'completed', see waitForCompletion(). */
+typedef struct {
+	char *buffer;
+	int64_t capacity;
+	int endpointId;
+	volatile int running;
+	pthread_t thread;
+	pthread_mutex_t lock;
+	pthread_cond_t completed;
+	volatile int64_t generation;
+	int wakeups;
+	int waiters;
+} completion_ring_t;
+
+completion_ring_t *rings[MAX_ENDPOINTS];
 //mx_endpoint_t myEndpoint = NULL;
 int initialized = 0;
 jclass MxException;
@@ -41,8 +84,8 @@ handler(void * context,
 
 
 /* init() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_init
-  (JNIEnv *env, jclass jcl) {
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_init
+  (JNIEnv *env, jobject jobj) {
 	mx_return_t rc;
 	jclass localRef;
 
@@ -85,8 +128,8 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_init
 }
 
 /* deInit() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_deInit
-  (JNIEnv *env, jclass jcl) {
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_deInit
+  (JNIEnv *env, jobject jobj) {
 	//TODO check whether all endpoints are closed? Or close them ourselves? Or do nothing?
 
 	/* Finalize the MX library */
@@ -96,9 +139,23 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_deInit
 	return JNI_TRUE;
 }
 
+/* getBoardCount() */
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_getBoardCount
+  (JNIEnv *env, jobject jobj) {
+	mx_return_t rc;
+	uint32_t count;
+
+	rc = mx_get_info(NULL, MX_NIC_COUNT, NULL, 0, &count, sizeof(count));
+	if(rc != MX_SUCCESS) {
+		throwException(env, mx_strerror(rc));
+		return 0;
+	}
+	return (jint)count;
+}
+
 /* newEndpoint() */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_newEndpoint
-  (JNIEnv *env, jclass jcl, jint filter) {
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_newEndpoint
+  (JNIEnv *env, jobject jobj, jint filter, jint board) {
 	mx_return_t rc;
 	int result;
 	int i;
@@ -114,7 +171,8 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_newEndpoint
 		return (jint)result;
 	}
 	/* open an endpoint */
-	rc = mx_open_endpoint(MX_ANY_NIC, MX_ANY_ENDPOINT, filter, 0, 0, &(endpoints[result]));
+	/* board -1 is mxio.MxTransport.ANY_BOARD */
+	rc = mx_open_endpoint(board < 0 ? MX_ANY_NIC : (uint32_t)board, MX_ANY_ENDPOINT, filter, 0, 0, &(endpoints[result]));
 	if(rc != MX_SUCCESS) {
 		endpoints[result] = NULL;
 		throwException(env, mx_strerror(rc));
@@ -133,14 +191,32 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_newEndpoint
 }
 
 /* closeEndpoint() */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_closeEndpoint
-  (JNIEnv *env, jclass jcl, jint endpointId) {
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_closeEndpoint
+  (JNIEnv *env, jobject jobj, jint endpointId) {
 	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
 		//unknown endpointId, so this one is not open...
 		throwException(env, "Invalid endpoint");
 		return;
 	}
 
+	if(rings[endpointId] != NULL) {
+		/* stop the completion thread, and release the threads that wait */
+		completion_ring_t *ring = rings[endpointId];
+		ring->running = 0;
+		mx_wakeup(endpoints[endpointId]);
+		pthread_join(ring->thread, NULL);
+		rings[endpointId] = NULL;
+		pthread_mutex_lock(&ring->lock);
+		pthread_cond_broadcast(&ring->completed);
+		while(ring->waiters > 0) {
+			pthread_cond_wait(&ring->completed, &ring->lock);
+		}
+		pthread_mutex_unlock(&ring->lock);
+		pthread_cond_destroy(&ring->completed);
+		pthread_mutex_destroy(&ring->lock);
+		free(ring);
+	}
+
 	/* close endpoint */
 	mx_wakeup(endpoints[endpointId]); // notify all threads that are blocked on this endpoint
 	mx_close_endpoint(endpoints[endpointId]);
@@ -148,9 +224,146 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_closeEndpoint
 	return;
 }
 
+/* completes the requests of an endpoint and writes them to its ring */
+static void *completionThread(void *arg) {
+	completion_ring_t *ring = (completion_ring_t *)arg;
+	mx_endpoint_t endpoint = endpoints[ring->endpointId];
+	volatile int64_t *head = (volatile int64_t *)(ring->buffer + RING_HEAD);
+	volatile int64_t *tail = (volatile int64_t *)(ring->buffer + RING_TAIL);
+	mx_request_t request;
+	mx_status_t status;
+	mx_return_t rc;
+	uint32_t result;
+	int64_t generation;
+	char *record;
+
+	while(ring->running) {
+		generation = ring->generation;
+		if(mx_peek(endpoint, RING_PEEK_TIMEOUT, &request, &result) != MX_SUCCESS || result == 0) {
+			continue;
+		}
+		pthread_mutex_lock(&ring->lock);
+		if(ring->generation != generation) {
+			// a request was forgotten or canceled meanwhile, it may be this one
+			pthread_mutex_unlock(&ring->lock);
+			continue;
+		}
+		rc = mx_test(endpoint, &request, &status, &result);
+		pthread_mutex_unlock(&ring->lock);
+		if(rc != MX_SUCCESS || result == 0) {
+			continue;
+		}
+		while(*tail - *head >= ring->capacity) {
+			// ring full, wait for Java to catch up
+			if(!ring->running) {
+				return NULL;
+			}
+			sched_yield();
+			__sync_synchronize();
+		}
+		record = ring->buffer + RING_RECORDS + (*tail % ring->capacity) * RING_RECORD_SIZE;
+		*(jint *)(record + 0) = (jint)(intptr_t)status.context;
+		*(jint *)(record + 4) = (jint)status.code;
+		*(jint *)(record + 8) = (jint)status.xfer_length;
+		*(jlong *)(record + 16) = (jlong)status.match_info;
+		__sync_synchronize();
+		*tail = *tail + 1;
+		pthread_mutex_lock(&ring->lock);
+		pthread_cond_broadcast(&ring->completed);
+		pthread_mutex_unlock(&ring->lock);
+	}
+	return NULL;
+}
+
+/* attachCompletionRing() */
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_attachCompletionRing
+  (JNIEnv *env, jobject jobj, jint endpointId, jobject buffer) {
+	completion_ring_t *ring;
+	jlong size;
+
+	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
+		// not a valid endpoint
+		throwException(env, "Invalid Endpoint");
+		return JNI_FALSE;
+	}
+	if(rings[endpointId] != NULL) {
+		return JNI_FALSE;
+	}
+	size = (*env)->GetDirectBufferCapacity(env, buffer);
+	if(size < RING_RECORDS + RING_RECORD_SIZE) {
+		return JNI_FALSE;
+	}
+
+	ring = (completion_ring_t *) malloc(sizeof(completion_ring_t));
+	if(ring == NULL) {
+		return JNI_FALSE;
+	}
+	ring->buffer = (char *)(*env)->GetDirectBufferAddress(env, buffer);
+	ring->capacity = (size - RING_RECORDS) / RING_RECORD_SIZE;
+	ring->endpointId = endpointId;
+	ring->running = 1;
+	ring->generation = 0;
+	ring->wakeups = 0;
+	ring->waiters = 0;
+	pthread_mutex_init(&ring->lock, NULL);
+	pthread_cond_init(&ring->completed, NULL);
+	if(ring->buffer == NULL || pthread_create(&(ring->thread), NULL, completionThread, ring) != 0) {
+		pthread_cond_destroy(&ring->completed);
+		pthread_mutex_destroy(&ring->lock);
+		free(ring);
+		return JNI_FALSE;
+	}
+	rings[endpointId] = ring;
+	return JNI_TRUE;
+}
+
+/* waitForCompletion() */
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_waitForCompletion
+  (JNIEnv *env, jobject jobj, jint endpointId, jlong seen, jlong timeout) {
+	completion_ring_t *ring;
+	volatile int64_t *tail;
+	struct timespec deadline;
+	int wakeups;
+
+	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
+		// not a valid endpoint
+		throwException(env, "Invalid Endpoint");
+		return;
+	}
+	ring = rings[endpointId];
+	if(ring == NULL) {
+		return;
+	}
+	tail = (volatile int64_t *)(ring->buffer + RING_TAIL);
+	clock_gettime(CLOCK_REALTIME, &deadline);
+	deadline.tv_sec += timeout / 1000;
+	deadline.tv_nsec += (timeout % 1000) * 1000000;
+	if(deadline.tv_nsec >= 1000000000) {
+		deadline.tv_sec++;
+		deadline.tv_nsec -= 1000000000;
+	}
+
+	pthread_mutex_lock(&ring->lock);
+	ring->waiters++;
+	wakeups = ring->wakeups;
+	while(*tail == seen && ring->wakeups == wakeups && ring->running) {
+		if(timeout == 0) {
+			pthread_cond_wait(&ring->completed, &ring->lock);
+		} else if(pthread_cond_timedwait(&ring->completed, &ring->lock, &deadline) == ETIMEDOUT) {
+			break;
+		}
+	}
+	ring->waiters--;
+	if(!ring->running) {
+		// closeEndpoint() waits for the last one to leave
+		pthread_cond_broadcast(&ring->completed);
+	}
+	pthread_mutex_unlock(&ring->lock);
+}
+
 /* getMyNicId() */
-JNIEXPORT jlong JNICALL Java_mxio_JavaMx_getMyNicId
-  (JNIEnv *env, jclass jcl, jint endpointId) {
+JNIEXPORT jlong JNICALL Java_mxio_NativeMxTransport_getMyNicId
+  (JNIEnv *env, jobject jobj, jint endpointId) {
 	mx_endpoint_addr_t myAddr;
 	uint64_t nicId;
 	uint32_t epId;
@@ -166,8 +379,8 @@ JNIEXPORT jlong JNICALL Java_mxio_JavaMx_getMyNicId
 }
 
 /* getMyEndpointId() */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_getMyEndpointId
-  (JNIEnv *env, jclass jcl, jint endpointId) {
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_getMyEndpointId
+  (JNIEnv *env, jobject jobj, jint endpointId) {
 	mx_endpoint_addr_t myAddr;
 	uint64_t nicId;
 	uint32_t epId;
@@ -184,8 +397,8 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_getMyEndpointId
 }
 
 /* getNicId() */
-JNIEXPORT jlong JNICALL Java_mxio_JavaMx_getNicId
-  (JNIEnv *env, jclass jcl, jstring name) {
+JNIEXPORT jlong JNICALL Java_mxio_NativeMxTransport_getNicId
+  (JNIEnv *env, jobject jobj, jstring name) {
 	mx_return_t rc;
 	uint64_t nicId;
 	const char *hostname;
@@ -205,14 +418,14 @@ JNIEXPORT jlong JNICALL Java_mxio_JavaMx_getNicId
 }
 
 /* connect() without timeout */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_connect__IIJII
-  (JNIEnv *env, jclass jcl, jint endpointId, jint link, jlong targetNicId, jint targetEndpointId, jint filter) {
-	return Java_mxio_JavaMx_connect__IIJIIJ(env, jcl, endpointId, link, targetNicId, targetEndpointId, filter, MX_INFINITE);
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_connect__IIJII
+  (JNIEnv *env, jobject jobj, jint endpointId, jint link, jlong targetNicId, jint targetEndpointId, jint filter) {
+	return Java_mxio_NativeMxTransport_connect__IIJIIJ(env, jobj, endpointId, link, targetNicId, targetEndpointId, filter, MX_INFINITE);
 }
 
 /* connect() with timeout */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_connect__IIJIIJ
-  (JNIEnv *env, jclass jcl, jint endpointId, jint link, jlong targetNicId, jint targetEndpointId, jint filter, jlong timeout) {
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_connect__IIJIIJ
+  (JNIEnv *env, jobject jobj, jint endpointId, jint link, jlong targetNicId, jint targetEndpointId, jint filter, jlong timeout) {
 	mx_return_t rc;
 	mx_endpoint_addr_t *address;
 
@@ -242,8 +455,8 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_connect__IIJIIJ
 }
 
 /* disconnect() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_disconnect
-  (JNIEnv *env, jclass jcl, jint link) {
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_disconnect
+  (JNIEnv *env, jobject jobj, jint link) {
 	// actually we could do nothing here, but let's check whether the link is present
 
 	mx_endpoint_addr_t *address;
@@ -258,8 +471,8 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_disconnect
 }
 
 /* send() */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_send__Ljava_nio_ByteBuffer_2IIIIIJ
-  (JNIEnv *env, jclass jcl, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint link, jint handle, jlong matchData) {
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_send__Ljava_nio_ByteBuffer_2IIIIIJ
+  (JNIEnv *env, jobject jobj, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint link, jint handle, jlong matchData) {
 	mx_return_t rc;
 	mx_segment_t bufferDesc[1];
 	mx_request_t *request;
@@ -291,11 +504,11 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_send__Ljava_nio_ByteBuffer_2IIIIIJ
 	}
 
 	if(bufferSize == 0) {
-		rc = mx_isend(endpoints[endpointId], NULL, 0, *target, matchData, NULL, request);
+		rc = mx_isend(endpoints[endpointId], NULL, 0, *target, matchData, HANDLE_CONTEXT(handle), request);
 	} else {
 		bufferDesc[0].segment_ptr = (*env)->GetDirectBufferAddress(env, buffer) + offset;
 		bufferDesc[0].segment_length = (uint32_t)bufferSize;
-		rc = mx_isend(endpoints[endpointId], bufferDesc, 1, *target, matchData, NULL, request);
+		rc = mx_isend(endpoints[endpointId], bufferDesc, 1, *target, matchData, HANDLE_CONTEXT(handle), request);
 	}
 	if(rc != MX_SUCCESS) {
 		throwException(env, mx_strerror(rc));
@@ -305,8 +518,8 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_send__Ljava_nio_ByteBuffer_2IIIIIJ
 }
 
 /* sendSynchronous() */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_sendSynchronous__Ljava_nio_ByteBuffer_2IIIIIJ
-  (JNIEnv *env, jclass jcl, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint link, jint handle, jlong matchData) {
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_sendSynchronous__Ljava_nio_ByteBuffer_2IIIIIJ
+  (JNIEnv *env, jobject jobj, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint link, jint handle, jlong matchData) {
 	mx_return_t rc;
 	mx_segment_t bufferDesc[1];
 	mx_request_t *request;
@@ -340,11 +553,11 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_sendSynchronous__Ljava_nio_ByteBuffer_2I
 	//fprintf(stderr, "JavaMx::sendSynchronous: to handle %d\n", handle);
 	/* TODO: check if target is valid */
 	if(bufferSize == 0) {
-			rc = mx_issend(endpoints[endpointId], NULL, 0, *target, matchData, NULL, request);
+			rc = mx_issend(endpoints[endpointId], NULL, 0, *target, matchData, HANDLE_CONTEXT(handle), request);
 	} else {
 		bufferDesc[0].segment_ptr = (*env)->GetDirectBufferAddress(env, buffer) + offset;
 		bufferDesc[0].segment_length = (uint32_t)bufferSize;
-		rc = mx_issend(endpoints[endpointId], bufferDesc, 1, *target, matchData, NULL, request);
+		rc = mx_issend(endpoints[endpointId], bufferDesc, 1, *target, matchData, HANDLE_CONTEXT(handle), request);
 	}
 
 	if(rc != MX_SUCCESS) {
@@ -357,9 +570,9 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_sendSynchronous__Ljava_nio_ByteBuffer_2I
 
 
 /* send() for 2 buffers */
-JNIEXPORT void JNICALL
-Java_mxio_JavaMx_send__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIIIJ
-  (JNIEnv *env, jclass jcl,
+JNIEXPORT void JNICALL
+Java_mxio_NativeMxTransport_send__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIIIJ
+  (JNIEnv *env, jobject jobj,
 		  jobject buffer1, jint bufferSize1,
 		  jobject buffer2, jint bufferSize2,
 		  jint endpointId, jint link, jint handle, jlong matchData
@@ -395,7 +608,7 @@ Java_mxio_JavaMx_send__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIIIJ
 	bufferDesc[1].segment_ptr = (*env)->GetDirectBufferAddress(env, buffer2);
 	bufferDesc[1].segment_length = (uint32_t)bufferSize2;
 
-	rc = mx_isend(endpoints[endpointId], bufferDesc, 2, *target, matchData, NULL, request);
+	rc = mx_isend(endpoints[endpointId], bufferDesc, 2, *target, matchData, HANDLE_CONTEXT(handle), request);
 	if(rc != MX_SUCCESS) {
 		throwException(env, mx_strerror(rc));
 		return;
@@ -404,9 +617,9 @@ Java_mxio_JavaMx_send__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIIIJ
 }
 
 /* sendSynchronous() for SendBuffers */
-JNIEXPORT void JNICALL
-Java_mxio_JavaMx_sendSynchronous__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIIIJ
-  (JNIEnv *env, jclass jcl,
+JNIEXPORT void JNICALL
+Java_mxio_NativeMxTransport_sendSynchronous__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2IIIIJ
+  (JNIEnv *env, jobject jobj,
 		  jobject buffer1, jint bufferSize1,
 		  jobject buffer2, jint bufferSize2,
 		  jint endpointId, jint link, jint handle, jlong matchData
@@ -442,7 +655,7 @@ Java_mxio_JavaMx_sendSynchronous__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2I
 	bufferDesc[1].segment_ptr = (*env)->GetDirectBufferAddress(env, buffer2);
 	bufferDesc[1].segment_length = (uint32_t)bufferSize2;
 
-	rc = mx_issend(endpoints[endpointId], bufferDesc, 2, *target, matchData, NULL, request);
+	rc = mx_issend(endpoints[endpointId], bufferDesc, 2, *target, matchData, HANDLE_CONTEXT(handle), request);
 	if(rc != MX_SUCCESS) {
 		throwException(env, mx_strerror(rc));
 		return;
@@ -451,15 +664,88 @@ Java_mxio_JavaMx_sendSynchronous__Ljava_nio_ByteBuffer_2ILjava_nio_ByteBuffer_2I
 }
 
 
+/* gathers a number of buffers into one message */
+static void sendSegments(JNIEnv *env, jobjectArray segments, jintArray lengths,
+		jint endpointId, jint link, jint handle, jlong matchData, jboolean synchronous) {
+	mx_return_t rc;
+	mx_segment_t bufferDesc[MAX_SEGMENTS];
+	mx_request_t *request;
+	mx_endpoint_addr_t *target;
+	jint count, i;
+	jint segmentLengths[MAX_SEGMENTS];
+	jobject segment;
+
+	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
+		// not a valid endpoint
+		throwException(env, "Invalid Endpoint");
+		return;
+	}
+	/* retrieve the target address */
+	target = getAddress(link);
+	if(target == NULL) {
+		//no valid link
+		throwException(env, "Invalid Link");
+		return;
+	}
+
+	/* retrieve the request handle */
+	request = getRequest(handle);
+	if(request == NULL) {
+		//no valid handle
+		throwException(env, "Invalid Handle");
+		return;
+	}
+
+	count = (*env)->GetArrayLength(env, segments);
+	if(count > MAX_SEGMENTS || count > (*env)->GetArrayLength(env, lengths)) {
+		throwException(env, "Invalid number of segments");
+		return;
+	}
+	(*env)->GetIntArrayRegion(env, lengths, 0, count, segmentLengths);
+	for(i = 0; i < count; i++) {
+		segment = (*env)->GetObjectArrayElement(env, segments, i);
+		bufferDesc[i].segment_ptr = (*env)->GetDirectBufferAddress(env, segment);
+		bufferDesc[i].segment_length = (uint32_t)segmentLengths[i];
+		(*env)->DeleteLocalRef(env, segment);
+		if(bufferDesc[i].segment_ptr == NULL && segmentLengths[i] != 0) {
+			throwException(env, "Segment is not a direct buffer");
+			return;
+		}
+	}
+
+	if(synchronous) {
+		rc = mx_issend(endpoints[endpointId], bufferDesc, count, *target, matchData, HANDLE_CONTEXT(handle), request);
+	} else {
+		rc = mx_isend(endpoints[endpointId], bufferDesc, count, *target, matchData, HANDLE_CONTEXT(handle), request);
+	}
+	if(rc != MX_SUCCESS) {
+		throwException(env, mx_strerror(rc));
+		return;
+	}
+	return;
+}
+
+/* send() for any number of buffers */
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_send___3Ljava_nio_ByteBuffer_2_3IIIIJ
+  (JNIEnv *env, jobject jobj, jobjectArray segments, jintArray lengths, jint endpointId, jint link, jint handle, jlong matchData) {
+	sendSegments(env, segments, lengths, endpointId, link, handle, matchData, JNI_FALSE);
+}
+
+/* sendSynchronous() for any number of buffers */
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_sendSynchronous___3Ljava_nio_ByteBuffer_2_3IIIIJ
+  (JNIEnv *env, jobject jobj, jobjectArray segments, jintArray lengths, jint endpointId, jint link, jint handle, jlong matchData) {
+	sendSegments(env, segments, lengths, endpointId, link, handle, matchData, JNI_TRUE);
+}
+
 /* recv() without mask */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IIIIJ
-  (JNIEnv *env, jclass jcl, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint handle, jlong matchData) {
-	Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IIIIJJ(env, jcl, buffer, offset, bufferSize, endpointId, handle, matchData, MX_MATCH_MASK_NONE);
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_recv__Ljava_nio_ByteBuffer_2IIIIJ
+  (JNIEnv *env, jobject jobj, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint handle, jlong matchData) {
+	Java_mxio_NativeMxTransport_recv__Ljava_nio_ByteBuffer_2IIIIJJ(env, jobj, buffer, offset, bufferSize, endpointId, handle, matchData, MX_MATCH_MASK_NONE);
 }
 
 /* recv() with mask */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IIIIJJ
-  (JNIEnv *env, jclass jcl, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint handle, jlong matchData, jlong matchMask) {
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_recv__Ljava_nio_ByteBuffer_2IIIIJJ
+  (JNIEnv *env, jobject jobj, jobject buffer, jint offset, jint bufferSize, jint endpointId, jint handle, jlong matchData, jlong matchMask) {
 	mx_return_t rc;
 	mx_segment_t buffer_desc[1];
 
@@ -480,11 +766,11 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IIIIJJ
 	}
 
 	if (bufferSize == 0) {
-		rc = mx_irecv(endpoints[endpointId], NULL, 0, matchData, matchMask, NULL, request);
+		rc = mx_irecv(endpoints[endpointId], NULL, 0, matchData, matchMask, HANDLE_CONTEXT(handle), request);
 	} else {
 		buffer_desc[0].segment_ptr = (*env)->GetDirectBufferAddress(env, buffer) + offset;
 		buffer_desc[0].segment_length = (uint32_t)bufferSize;
-		rc = mx_irecv(endpoints[endpointId], buffer_desc, 1, matchData, matchMask, NULL, request);
+		rc = mx_irecv(endpoints[endpointId], buffer_desc, 1, matchData, matchMask, HANDLE_CONTEXT(handle), request);
 	}
 
 	if(rc != MX_SUCCESS) {
@@ -495,15 +781,15 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IIIIJJ
 }
 
 /* recv() 2 buffers without mask */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IILjava_nio_ByteBuffer_2IIIIJ
-  (JNIEnv *env, jclass jcl, jobject buffer, jint offset, jint bufferSize, jobject buffer2, jint offset2, jint bufferSize2, jint endpointId, jint handle, jlong matchData) {
-	Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IILjava_nio_ByteBuffer_2IIIIJJ
-		(env, jcl, buffer, offset, bufferSize, buffer2, offset2, bufferSize2, endpointId, handle, matchData, MX_MATCH_MASK_NONE);
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_recv__Ljava_nio_ByteBuffer_2IILjava_nio_ByteBuffer_2IIIIJ
+  (JNIEnv *env, jobject jobj, jobject buffer, jint offset, jint bufferSize, jobject buffer2, jint offset2, jint bufferSize2, jint endpointId, jint handle, jlong matchData) {
+	Java_mxio_NativeMxTransport_recv__Ljava_nio_ByteBuffer_2IILjava_nio_ByteBuffer_2IIIIJJ
+		(env, jobj, buffer, offset, bufferSize, buffer2, offset2, bufferSize2, endpointId, handle, matchData, MX_MATCH_MASK_NONE);
 }
 
 /* recv() 2 buffers with mask */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IILjava_nio_ByteBuffer_2IIIIJJ
-  (JNIEnv *env, jclass jcl, jobject buffer, jint offset, jint bufferSize, jobject buffer2, jint offset2, jint bufferSize2, jint endpointId, jint handle, jlong matchData, jlong matchMask) {
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_recv__Ljava_nio_ByteBuffer_2IILjava_nio_ByteBuffer_2IIIIJJ
+  (JNIEnv *env, jobject jobj, jobject buffer, jint offset, jint bufferSize, jobject buffer2, jint offset2, jint bufferSize2, jint endpointId, jint handle, jlong matchData, jlong matchMask) {
 	mx_return_t rc;
 	mx_segment_t buffer_desc[2];
 
@@ -529,7 +815,7 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IILjava_nio_
 	buffer_desc[1].segment_length = (uint32_t)bufferSize2;
 
 	//fprintf(stderr, "Recv:: MatchData: %0" PRIx64 ", MatchMask: %0" PRIx64 "\n", matchData, matchMask);
-	rc = mx_irecv(endpoints[endpointId], buffer_desc, 2, matchData, matchMask, NULL, request);
+	rc = mx_irecv(endpoints[endpointId], buffer_desc, 2, matchData, matchMask, HANDLE_CONTEXT(handle), request);
 	if(rc != MX_SUCCESS) {
 		throwException(env, mx_strerror(rc));
 		return;
@@ -540,14 +826,14 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_recv__Ljava_nio_ByteBuffer_2IILjava_nio_
 
 
 /* wait() without timeout */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_wait__II
-  (JNIEnv *env, jclass jcl, jint endpointId, jint handle) {
-	return Java_mxio_JavaMx_wait__IIJ(env, jcl, endpointId, handle, MX_INFINITE);
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_wait__II
+  (JNIEnv *env, jobject jobj, jint endpointId, jint handle) {
+	return Java_mxio_NativeMxTransport_wait__IIJ(env, jobj, endpointId, handle, MX_INFINITE);
 }
 
 /* wait() with timeout */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_wait__IIJ
-  (JNIEnv *env, jclass jcl, jint endpointId, jint handle, jlong timeout) {
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_wait__IIJ
+  (JNIEnv *env, jobject jobj, jint endpointId, jint handle, jlong timeout) {
 	mx_return_t rc;
 	mx_status_t status;
 	uint32_t result;
@@ -589,8 +875,8 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_wait__IIJ
 }
 
 /* test() */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_test__II
-  (JNIEnv *env, jclass jcl, jint endpointId, jint handle) {
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_test__II
+  (JNIEnv *env, jobject jobj, jint endpointId, jint handle) {
 	mx_return_t rc;
 	mx_status_t status;
 	uint32_t result;
@@ -602,7 +888,7 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_test__II
 		throwException(env, "Invalid Endpoint");
 		return -1;
 	}
-	//fprintf(stderr, "JavaMx::test: waiting for handle %d\n", handle);
+	//fprintf(stderr, "JavaMx::test: waiting for handle %d\n", handle);
 	//fflush(stderr);
 	/* retrieve the request handle */
 	request = getRequest(handle);
@@ -628,14 +914,14 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_test__II
 
 	return (jint)(status.xfer_length); // Note: MX documentation incorrect about status structure field names, see header files instead
 }
-
-
-/* test() */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_test__III
-  (JNIEnv *env, jclass jcl, jint endpointId, jint handle, jint attempts) {
+
+
+/* test() */
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_test__III
+  (JNIEnv *env, jobject jobj, jint endpointId, jint handle, jint attempts) {
 	mx_return_t rc;
 	mx_status_t status;
-	uint32_t result;
+	uint32_t result;
 jint i;
 
 	mx_request_t *request;
@@ -645,7 +931,7 @@ jint i;
 		throwException(env, "Invalid Endpoint");
 		return -1;
 	}
-	//fprintf(stderr, "JavaMx::test: waiting for handle %d\n", handle);
+	//fprintf(stderr, "JavaMx::test: waiting for handle %d\n", handle);
 	//fflush(stderr);
 	/* retrieve the request handle */
 	request = getRequest(handle);
@@ -654,7 +940,7 @@ jint i;
 		throwException(env, "Invalid Handle");
 		return -1;
 	}
-
+
 	for(i = 0; i < attempts; i++) {
 		rc = mx_test(endpoints[endpointId], request, &status, &result);
 		if(rc != MX_SUCCESS) {
@@ -667,18 +953,144 @@ jint i;
 				throwException(env, mx_strstatus(rc));
 				return -1;
 			}
-			return (jint)(status.xfer_length); // Note: MX documentation incorrect about status structure field names, see header files instead
-		}
-	}
-
-	// message is not finished yet
+			return (jint)(status.xfer_length); // Note: MX documentation incorrect about status structure field names, see header files instead
+		}
+	}
+
+	// message is not finished yet
 	return -1;
 }
-
+
+
+/* tests count handles, stores the message sizes of the finished requests in 
+ * sizes and -1 for the others. Stops at the first finished request when 
+ * 'all' is false, and throws the failure of a request. When 'all' is true a 
+ * failed request is finished too, its size is REQUEST_FAILED, so the caller 
+ * of the request gets the failure and the other requests are not lost. 
+ * Returns the number of finished requests, or -1 on an error.
+ */
+static jint testHandles(JNIEnv *env, jint endpointId, jintArray handles, 
+		jint count, jintArray sizes, jboolean all, jint *first) {
+	mx_return_t rc;
+	mx_status_t status;
+	uint32_t result;
+	mx_request_t *request;
+	jint *h, *s;
+	jint i, finished = 0;
+	const char *error = NULL;
+
+	*first = -1;
+	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
+		// not a valid endpoint
+		throwException(env, "Invalid Endpoint");
+		return -1;
+	}
+	if(count < 0 || count > (*env)->GetArrayLength(env, handles) 
+			|| count > (*env)->GetArrayLength(env, sizes)) {
+		throwException(env, "Invalid count");
+		return -1;
+	}
+	h = (*env)->GetIntArrayElements(env, handles, NULL);
+	s = (*env)->GetIntArrayElements(env, sizes, NULL);
+	if(h == NULL || s == NULL) {
+		// OutOfMemoryError is pending
+		if(h != NULL) {
+			(*env)->ReleaseIntArrayElements(env, handles, h, JNI_ABORT);
+		}
+		return -1;
+	}
+
+	for(i = 0; i < count; i++) {
+		s[i] = -1;
+	}
+	for(i = 0; i < count; i++) {
+		error = NULL;
+		request = getRequest(h[i]);
+		if(request == NULL) {
+			//no valid handle
+			error = "Invalid Handle";
+		} else {
+			rc = mx_test(endpoints[endpointId], request, &status, &result);
+			if(rc != MX_SUCCESS) {
+				error = mx_strerror(rc);
+			} else if (result == 0) {
+				// Request is not finished yet
+				continue;
+			} else if(status.code != MX_STATUS_SUCCESS) {
+				error = mx_strstatus(status.code);
+			}
+		}
+		if(error != NULL) {
+			if(!all) {
+				break;
+			}
+			// report the failure to the owner of this request only
+			s[i] = REQUEST_FAILED;
+			finished++;
+			continue;
+		}
+		s[i] = (jint)(status.xfer_length);
+		if(finished == 0) {
+			*first = i;
+		}
+		finished++;
+		if(!all) {
+			break;
+		}
+	}
+
+	(*env)->ReleaseIntArrayElements(env, handles, h, JNI_ABORT);
+	(*env)->ReleaseIntArrayElements(env, sizes, s, 0);
+	if(!all && error != NULL) {
+		// nothing finished before it, testAny() stops at the first one
+		throwException(env, error);
+		return -1;
+	}
+	return finished;
+}
+
+/* testAny() */
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_testAny
+  (JNIEnv *env, jobject jobj, jint endpointId, jintArray handles, jint count, jintArray sizes) {
+	jint first;
+
+	testHandles(env, endpointId, handles, count, sizes, JNI_FALSE, &first);
+	return first;
+}
+
+/* testSome() */
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_testSome
+  (JNIEnv *env, jobject jobj, jint endpointId, jintArray handles, jint count, jintArray sizes) {
+	jint first;
+
+	return testHandles(env, endpointId, handles, count, sizes, JNI_TRUE, &first);
+}
+
+/* waitAny() */
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_waitAny
+  (JNIEnv *env, jobject jobj, jint endpointId, jintArray handles, jint count, jintArray sizes, jlong timeout) {
+	jint first, size;
+
+	if(testHandles(env, endpointId, handles, count, sizes, JNI_FALSE, &first) != 0 || count == 0) {
+		// found one, an error, or nothing to wait for
+		return first;
+	}
+	/* MX cannot block on a set of requests, so block on the first one: 
+	 * requests on a single endpoint usually complete in the order they are
+	 * posted */
+	(*env)->GetIntArrayRegion(env, handles, 0, 1, &size);
+	size = Java_mxio_NativeMxTransport_wait__IIJ(env, jobj, endpointId, size, timeout);
+	if(size < 0) {
+		return -1;
+	}
+	(*env)->SetIntArrayRegion(env, sizes, 0, 1, &size);
+	return 0;
+}
+
 
 /* iprobe() */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_iprobe
-  (JNIEnv *env, jclass jcl, jint endpointId, jlong matchData, jlong matchMask) {
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_iprobe
+  (JNIEnv *env, jobject jobj, jint endpointId, jlong matchData, jlong matchMask) {
 	mx_status_t status;
 	uint32_t result;
 	mx_return_t ret;
@@ -705,8 +1117,8 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_iprobe
 }
 
 /* probe() */
-JNIEXPORT jint JNICALL Java_mxio_JavaMx_probe
-  (JNIEnv *env, jclass jcl, jint endpointId, jlong timeout, jlong matchData, jlong matchMask) {
+JNIEXPORT jint JNICALL Java_mxio_NativeMxTransport_probe
+  (JNIEnv *env, jobject jobj, jint endpointId, jlong timeout, jlong matchData, jlong matchMask) {
 
 	mx_status_t status;
 	uint32_t result;
@@ -736,8 +1148,8 @@ JNIEXPORT jint JNICALL Java_mxio_JavaMx_probe
 
 
 /* cancel() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_cancel
-  (JNIEnv *env, jclass jcl, jint endpointId, jint handle) {
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_cancel
+  (JNIEnv *env, jobject jobj, jint endpointId, jint handle) {
 	mx_request_t *request;
 	uint32_t result;
 	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
@@ -754,17 +1166,25 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_cancel
 		return JNI_FALSE;
 	}
 	//fprintf(stderr, "invoking mx_cancel()...\n");
-	mx_cancel(endpoints[endpointId], request, &result);
+	if(rings[endpointId] != NULL) {
+		// not while the completion thread tests the request
+		pthread_mutex_lock(&rings[endpointId]->lock);
+		rings[endpointId]->generation++;
+		mx_cancel(endpoints[endpointId], request, &result);
+		pthread_mutex_unlock(&rings[endpointId]->lock);
+	} else {
+		mx_cancel(endpoints[endpointId], request, &result);
+	}
 	if(result == 0) {
 		// request not canceled, but already delivered
 		return JNI_FALSE;
 	}
 	return JNI_TRUE;
-}
-
-/* forget() */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_forget
-  (JNIEnv *env, jclass jcl, jint endpointId, jint handle) {
+}
+
+/* forget() */
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_forget
+  (JNIEnv *env, jobject jobj, jint endpointId, jint handle) {
 	mx_request_t *request;
 	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
 		// not a valid endpoint
@@ -780,25 +1200,40 @@ JNIEXPORT void JNICALL Java_mxio_JavaMx_forget
 		return;
 	}
 	//fprintf(stderr, "invoking mx_forget()...\n");
-	mx_forget(endpoints[endpointId], request);
-}
-
-
+	if(rings[endpointId] != NULL) {
+		// not while the completion thread tests the request
+		pthread_mutex_lock(&rings[endpointId]->lock);
+		rings[endpointId]->generation++;
+		mx_forget(endpoints[endpointId], request);
+		pthread_mutex_unlock(&rings[endpointId]->lock);
+	} else {
+		mx_forget(endpoints[endpointId], request);
+	}
+}
+
+
 
 /* wakeup() */
-JNIEXPORT void JNICALL Java_mxio_JavaMx_wakeup
-  (JNIEnv *env, jclass jcl, jint endpointId) {
+JNIEXPORT void JNICALL Java_mxio_NativeMxTransport_wakeup
+  (JNIEnv *env, jobject jobj, jint endpointId) {
 	if(endpointId < 0 || endpointId >= MAX_ENDPOINTS || endpoints[endpointId] == NULL) {
 		// not a valid endpoint
 		throwException(env, "Invalid Endpoint");
 		return;
 	}
+	if(rings[endpointId] != NULL) {
+		// the threads that wait for the completion ring
+		pthread_mutex_lock(&rings[endpointId]->lock);
+		rings[endpointId]->wakeups++;
+		pthread_cond_broadcast(&rings[endpointId]->completed);
+		pthread_mutex_unlock(&rings[endpointId]->lock);
+	}
 	mx_wakeup(endpoints[endpointId]);
 }
 
 /* waitForMessage() */
-JNIEXPORT jlong JNICALL Java_mxio_JavaMx_waitForMessage
-  (JNIEnv *env, jclass jcl, jint endpointId, jlong timeout, jlong matchData, jlong matchMask) {
+JNIEXPORT jlong JNICALL Java_mxio_NativeMxTransport_waitForMessage
+  (JNIEnv *env, jobject jobj, jint endpointId, jlong timeout, jlong matchData, jlong matchMask) {
 	mx_status_t status;
 	uint32_t result;
 	//uint32_t timeout = MX_INFINITE; // no timeout
@@ -818,8 +1253,8 @@ JNIEXPORT jlong JNICALL Java_mxio_JavaMx_waitForMessage
 }
 
 /* pollForMessage() */
-JNIEXPORT jlong JNICALL Java_mxio_JavaMx_pollForMessage
-  (JNIEnv *env, jclass jcl, jint endpointId, jlong matchData, jlong matchMask) {
+JNIEXPORT jlong JNICALL Java_mxio_NativeMxTransport_pollForMessage
+  (JNIEnv *env, jobject jobj, jint endpointId, jlong matchData, jlong matchMask) {
 	mx_status_t status;
 	uint32_t result;
 	// uint32_t timeout = 10000; // no timeout
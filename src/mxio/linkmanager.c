@@ -8,8 +8,8 @@ jint lmBlockSize;
 jint lmBlocksInUse;
 mx_endpoint_addr_t **links;
 
-/* LinkManager.init() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_00024LinkManager_init
+/* NativeMxTransport.initLinks() */
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_initLinks
   (JNIEnv *env, jobject jobj, jint blockSize, jint maxBlocks) {
 	lmBlocks = maxBlocks;
 	lmBlockSize = blockSize;
@@ -21,8 +21,8 @@ JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_00024LinkManager_init
 	return JNI_TRUE;
 }
 
-/* LinkManager.addBlock() */
-JNIEXPORT jboolean JNICALL Java_mxio_JavaMx_00024LinkManager_addBlock
+/* NativeMxTransport.addLinkBlock() */
+JNIEXPORT jboolean JNICALL Java_mxio_NativeMxTransport_addLinkBlock
   (JNIEnv *env, jobject jobj) {
 	if(lmBlocksInUse >= lmBlocks) {
 		return JNI_FALSE;
@@ -4,7 +4,7 @@
 
 #include <stdlib.h>
 #include "myriexpress.h"
-#include "mxio_JavaMx_LinkManager.h"
+#include "mxio_NativeMxTransport.h"
 
 mx_endpoint_addr_t *getAddress(jint link);
 
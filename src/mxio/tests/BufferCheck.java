@@ -0,0 +1,117 @@
+package mxio.tests;
+
+import java.nio.ByteBuffer;
+
+import mxio.*;
+
+/**
+ * Checks write(ByteBuffer), readFully(ByteBuffer) and read(ByteBuffer), on a
+ * low latency and on a selectable stream: small and large heap and direct
+ * buffers, so the buffers are copied, gathered and sent with a rendezvous,
+ * and read into a direct buffer at an offset, into a heap buffer, and in
+ * pieces.
+ */
+public class BufferCheck extends LocalCheck {
+
+	private static final int BIG = 1 << 20;
+
+	BufferCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		check(false);
+		check(true);
+	}
+
+	private static ByteBuffer fill(ByteBuffer b, int seed) {
+		for(int i = b.position(); i < b.limit(); i++) {
+			b.put(i, (byte) (13 * i + seed));
+		}
+		return b;
+	}
+
+	private static void expect(ByteBuffer b, int offset, int len, int seed,
+			String what) {
+		for(int i = 0; i < len; i++) {
+			if(b.get(offset + i) != (byte) (13 * i + seed)) {
+				fail(what + ": byte " + i + " corrupt");
+			}
+		}
+	}
+
+	private void check(boolean selectable) throws Exception {
+		this.selectable = selectable;
+		DataInputStream[] is = new DataInputStream[1];
+		final DataOutputStream os = connect(is);
+		DataInputStream in = is[0];
+		final String[] errors = new String[1];
+		Thread writer = new Thread("writer") {
+			public void run() {
+				try {
+					os.write(fill(ByteBuffer.allocate(100), 1));
+					os.write(fill(ByteBuffer.allocate(BIG), 2));
+					os.write(fill(ByteBuffer.allocateDirect(300), 3));
+					os.write(fill(ByteBuffer.allocateDirect(BIG), 4));
+					os.flush();
+					os.write(fill(ByteBuffer.allocate(BIG), 5));
+					os.write(fill(ByteBuffer.allocate(BIG), 6));
+					os.writeInt(1234);
+					os.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					errors[0] = e.toString();
+				}
+			}
+		};
+		writer.start();
+
+		ByteBuffer small = ByteBuffer.allocateDirect(100);
+		in.readFully(small);
+		expect(small, 0, 100, 1, "small heap buffer");
+		ByteBuffer big = ByteBuffer.allocateDirect(16 + BIG);
+		big.position(16);
+		long before = in.bytesRead();
+		in.readFully(big);
+		expect(big, 16, BIG, 2, "large heap buffer");
+		if(in.bytesRead() - before != BIG) {
+			fail((in.bytesRead() - before) + " bytes read instead of " + BIG);
+		}
+		ByteBuffer heap = ByteBuffer.allocate(300);
+		in.readFully(heap);
+		expect(heap, 0, 300, 3, "small direct buffer");
+		ByteBuffer direct = ByteBuffer.allocateDirect(BIG);
+		in.readFully(direct);
+		expect(direct, 0, BIG, 4, "large direct buffer");
+		heap = ByteBuffer.allocate(BIG);
+		in.readFully(heap);
+		expect(heap, 0, BIG, 5, "large heap buffer read in a heap buffer");
+		direct = ByteBuffer.allocateDirect(BIG);
+		while(direct.hasRemaining()) {
+			if(in.read(direct) <= 0) {
+				fail("read() returns nothing before the end of stream");
+			}
+		}
+		expect(direct, 0, BIG, 6, "large heap buffer read in pieces");
+		if(in.readInt() != 1234) {
+			fail("int after the buffers corrupt");
+		}
+		join(writer, errors);
+		if(in.read(ByteBuffer.allocate(1)) != -1) {
+			fail("no end of stream");
+		}
+		in.close();
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		// a shared memory channel copies the buffers
+		property("mxio.shm", "false");
+		new BufferCheck().run();
+	}
+}
@@ -0,0 +1,88 @@
+package mxio.tests;
+
+import mxio.*;
+
+/**
+ * Checks the credit flow control: a writer of which the receiver does not
+ * read stops when its credits are used up, and goes on when the receiver
+ * grants more. A selectable stream has no flow control, its writer does not
+ * stop there.
+ */
+public class CreditCheck extends LocalCheck {
+
+	/** the credits a receiver grants at first */
+	private final int window = Integer.getInteger("mxio.receivequeuesize");
+
+	private volatile int written = 0;
+
+	CreditCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		check(false);
+		check(true);
+	}
+
+	private void check(boolean selectable) throws Exception {
+		this.selectable = selectable;
+		written = 0;
+		DataInputStream[] is = new DataInputStream[1];
+		final DataOutputStream os = connect(is);
+		final int messages = 5000;
+		final String[] errors = new String[1];
+		Thread writer = new Thread("writer") {
+			public void run() {
+				try {
+					for(int i = 0; i < messages; i++) {
+						os.writeInt(i);
+						os.flush();
+						written++;
+					}
+					os.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					errors[0] = e.toString();
+				}
+			}
+		};
+		writer.start();
+
+		Thread.sleep(500);
+		int before = written;
+		System.err.println((selectable ? "selectable" : "low latency") + " stream: "
+				+ before + " messages written before the receiver reads");
+		if(!selectable && (before < window || before > window + 1)) {
+			fail("writer not stopped after " + window + " credits");
+		}
+		if(selectable && before <= window + 1) {
+			fail("writer of a selectable stream stopped");
+		}
+
+		for(int i = 0; i < messages; i++) {
+			if(is[0].readInt() != i) {
+				fail("message " + i + " out of sequence");
+			}
+		}
+		join(writer, errors);
+		if(is[0].read() != -1) {
+			fail("no end of stream");
+		}
+		is[0].close();
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		// a shared memory channel has no credits
+		property("mxio.shm", "false");
+		property("mxio.receivequeuesize", "8");
+		// a stream that shares its receives starts with a smaller window
+		System.setProperty("mxio.sharedreceive", "false");
+		new CreditCheck().run();
+	}
+}
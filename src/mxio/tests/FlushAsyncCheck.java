@@ -0,0 +1,102 @@
+package mxio.tests;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mxio.*;
+
+/**
+ * Checks DataOutputStream.flushAsync(): a writer that computes the next
+ * block while the previous one is sent, a flush that finishes without the
+ * writer touching the stream again, a multicast flush, and a flush to a
+ * receiver that closed, which fails instead of hanging.
+ */
+public class FlushAsyncCheck extends LocalCheck {
+
+	FlushAsyncCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		DataInputStream[] is = new DataInputStream[1];
+		String[] errors = new String[1];
+
+		// pipelined writer
+		int blocks = 2000;
+		int len = 20000;
+		DataOutputStream os = connect(is);
+		Thread reader = reader(is[0], blocks, len, errors);
+		byte[] data = new byte[len];
+		Future<Void> previous = null;
+		for(int b = 0; b < blocks; b++) {
+			fill(data, b);
+			if(previous != null) {
+				previous.get(10, TimeUnit.SECONDS);
+			}
+			os.writeArray(data, 0, len);
+			previous = os.flushAsync();
+		}
+		previous.get(10, TimeUnit.SECONDS);
+
+		// the progress engine finishes the flush on its own
+		os.writeArray(data, 0, 0);
+		Future<Void> last = os.flushAsync();
+		long deadline = System.currentTimeMillis() + 10000;
+		while(!last.isDone()) {
+			if(System.currentTimeMillis() > deadline) {
+				fail("flush never done");
+			}
+			Thread.sleep(1);
+		}
+		os.close();
+		join(reader, errors);
+
+		// multicast over two connections
+		blocks = 100;
+		len = 1000;
+		MulticastDataOutputStream mc = new MulticastDataOutputStream();
+		mc.add(connect(is));
+		Thread r1 = reader(is[0], blocks, len, errors);
+		mc.add(connect(is));
+		Thread r2 = reader(is[0], blocks, len, errors);
+		data = new byte[len];
+		for(int b = 0; b < blocks; b++) {
+			fill(data, b);
+			mc.writeArray(data, 0, len);
+			mc.flushAsync().get(10, TimeUnit.SECONDS);
+		}
+		mc.close();
+		join(r1, errors);
+		join(r2, errors);
+
+		// a receiver that closes
+		os = connect(is);
+		is[0].close();
+		Thread.sleep(500);
+		try {
+			for(int b = 0; b < 100; b++) {
+				os.writeArray(data, 0, len);
+				os.flushAsync().get(10, TimeUnit.SECONDS);
+			}
+			fail("flushes to a closed receiver succeed");
+		} catch (IOException e) {
+			System.err.println("closed receiver: " + e);
+		} catch (ExecutionException e) {
+			System.err.println("closed receiver, flush failed: " + e.getCause());
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		// the flush queues are bypassed by a shared memory channel
+		property("mxio.shm", "false");
+		new FlushAsyncCheck().run();
+	}
+}
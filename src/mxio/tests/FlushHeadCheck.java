@@ -0,0 +1,99 @@
+package mxio.tests;
+
+import java.util.Random;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import mxio.*;
+
+/**
+ * Checks the flush queues when sends finish out of order. The in-process
+ * transport completes every other send late (mxio.local.reorder), so the
+ * send at the head of a queue is often the last one to finish. Messages of
+ * random sizes are written with flush() and flushAsync(), and have to arrive
+ * intact, without a writer that hangs or waits for a send that finished
+ * already. Also run it with
+ * -Dmxio.completionring=true, and with -Dmxio.local.boards=2 -Dmxio.rails=0
+ * to stripe the large messages.
+ */
+public class FlushHeadCheck extends LocalCheck {
+
+	FlushHeadCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		DataInputStream[] is = new DataInputStream[1];
+		final DataOutputStream os = connect(is);
+		final DataInputStream in = is[0];
+		final int messages = 3000;
+		final String[] errors = new String[1];
+		Thread reader = new Thread("reader") {
+			public void run() {
+				try {
+					Random random = new Random(42);
+					for(int m = 0; m < messages; m++) {
+						int n = random.nextInt(60000);
+						if(in.readInt() != n) {
+							errors[0] = "message " + m + " has the wrong size";
+							return;
+						}
+						byte[] data = new byte[n];
+						in.readArray(data, 0, n);
+						for(int i = 0; i < n; i++) {
+							if(data[i] != (byte) (m + i)) {
+								errors[0] = "message " + m + " byte " + i + " corrupt";
+								return;
+							}
+						}
+					}
+					if(in.read() != -1) {
+						errors[0] = "no end of stream after " + messages + " messages";
+					}
+					in.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					errors[0] = e.toString();
+				}
+			}
+		};
+		reader.start();
+
+		Random random = new Random(42);
+		Future<Void> previous = null;
+		for(int m = 0; m < messages; m++) {
+			int n = random.nextInt(60000);
+			byte[] data = new byte[n];
+			fill(data, m);
+			os.writeInt(n);
+			os.writeArray(data, 0, n);
+			if(m % 2 == 0) {
+				os.flush();
+			} else {
+				if(previous != null) {
+					previous.get(10, TimeUnit.SECONDS);
+				}
+				previous = os.flushAsync();
+			}
+		}
+		os.close();
+		join(reader, errors);
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		property("mxio.local.reorder", "true");
+		// a shared memory channel has no flush queues
+		property("mxio.shm", "false");
+		// the writer waits for the head of the queue often
+		property("mxio.flushqueuesize", "2");
+		// and blocks soon, to wait for all sends of the queue at once
+		property("mxio.waitprofile", "throughput");
+		new FlushHeadCheck().run();
+	}
+}
@@ -0,0 +1,126 @@
+package mxio.tests;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import mxio.*;
+
+/**
+ * Checks the lock-free handle manager: threads that take and release
+ * handles at the same time never get a handle that another thread holds,
+ * all handles are free again afterwards, and running out of handles throws
+ * an MxException, after which the released handles can be used again.
+ */
+public class HandleCheck extends LocalCheck {
+
+	private final Object handles;
+	private final Method getHandle, releaseHandle, handlesInUse;
+
+	HandleCheck() throws Exception {
+		super();
+		handles = field(null, Class.forName("mxio.JavaMx"), "handles");
+		getHandle = method("getHandle");
+		releaseHandle = method("releaseHandle", int.class);
+		handlesInUse = method("handlesInUse");
+	}
+
+	private Method method(String name, Class<?>... parameters) {
+		try {
+			Method m = handles.getClass().getDeclaredMethod(name, parameters);
+			m.setAccessible(true);
+			return m;
+		} catch (NoSuchMethodException e) {
+			fail("no method " + name + " in " + handles.getClass().getName());
+			return null;
+		}
+	}
+
+	private int getHandle() throws Exception {
+		try {
+			return (Integer) getHandle.invoke(handles);
+		} catch (InvocationTargetException e) {
+			throw (Exception) e.getCause();
+		}
+	}
+
+	private void releaseHandle(int handle) throws Exception {
+		releaseHandle.invoke(handles, handle);
+	}
+
+	private int handlesInUse() throws Exception {
+		return (Integer) handlesInUse.invoke(handles);
+	}
+
+	@Override
+	void check() throws Exception {
+		final int before = handlesInUse();
+
+		// the threads mark the handles they hold
+		final AtomicIntegerArray owner = new AtomicIntegerArray(1 << 16);
+		final String[] errors = new String[1];
+		Thread[] threads = new Thread[8];
+		for(int t = 0; t < threads.length; t++) {
+			final int id = t + 1;
+			threads[t] = new Thread("handles " + id) {
+				public void run() {
+					try {
+						int[] held = new int[100];
+						for(int round = 0; round < 500; round++) {
+							for(int i = 0; i < held.length; i++) {
+								held[i] = getHandle();
+								if(!owner.compareAndSet(held[i], 0, id)) {
+									errors[0] = "handle " + held[i] + " handed out twice";
+									return;
+								}
+							}
+							for(int i = 0; i < held.length; i++) {
+								owner.set(held[i], 0);
+								releaseHandle(held[i]);
+							}
+						}
+					} catch (Exception e) {
+						e.printStackTrace();
+						errors[0] = e.toString();
+					}
+				}
+			};
+			threads[t].start();
+		}
+		for(Thread t : threads) {
+			join(t, errors);
+		}
+		if(handlesInUse() != before) {
+			fail((handlesInUse() - before) + " handles not released");
+		}
+
+		// take all handles there are
+		int[] held = new int[1 << 16];
+		int n = 0;
+		try {
+			while(n < held.length) {
+				held[n] = getHandle();
+				n++;
+			}
+			fail("more than " + n + " handles");
+		} catch (MxException e) {
+			System.err.println("after " + n + " handles: " + e.getMessage());
+		}
+		for(int i = 0; i < n; i++) {
+			releaseHandle(held[i]);
+		}
+		releaseHandle(getHandle());
+		if(handlesInUse() != before) {
+			fail((handlesInUse() - before) + " handles not released");
+		}
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		new HandleCheck().run();
+	}
+}
@@ -0,0 +1,88 @@
+package mxio.tests;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+
+import mxio.*;
+
+/**
+ * Checks the eviction of idle links: the sweep of the socket keeps the link
+ * of an open connection however long it was not looked up, and disconnects
+ * it once the connection is closed, on both sides. A new connection sets
+ * the link up again. Instead of waiting for mxio.linkidletimeout, the check
+ * makes the links look old and runs the sweep itself.
+ */
+public class LinkCheck extends LocalCheck {
+
+	LinkCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		DataInputStream[] is = new DataInputStream[1];
+		for(int round = 0; round < 3; round++) {
+			DataOutputStream os = connect(is);
+			if(sweep(sender) != 1) {
+				fail("the link of an open connection is disconnected");
+			}
+			os.writeInt(round);
+			os.flush();
+			if(is[0].readInt() != round) {
+				fail("message " + round + " lost");
+			}
+			os.close();
+			if(is[0].read() != -1) {
+				fail("no end of stream");
+			}
+			is[0].close();
+			Thread.sleep(100);
+			int left = sweep(sender) + sweep(receiver);
+			if(left != 0) {
+				fail(left + " links left after the connection is closed");
+			}
+		}
+	}
+
+	/**
+	 * Makes all links of the socket idle for ages, and disconnects the ones
+	 * that are not used.
+	 * @return the number of links left
+	 */
+	private static int sweep(MxSocket socket) throws Exception {
+		Object links = field(socket, MxSocket.class, "links");
+		Method capacity = method(links, "capacity");
+		Method valueAt = method(links, "valueAt", int.class);
+		synchronized(socket) {
+			int n = (Integer) capacity.invoke(links);
+			for(int i = 0; i < n; i++) {
+				Object link = valueAt.invoke(links, i);
+				if(link != null) {
+					Field lastUsed = link.getClass().getDeclaredField("lastUsed");
+					lastUsed.setAccessible(true);
+					lastUsed.setLong(link, 0);
+				}
+			}
+		}
+		Method disconnect = MxSocket.class.getDeclaredMethod("disconnectIdleLinks");
+		disconnect.setAccessible(true);
+		disconnect.invoke(socket);
+		return (Integer) method(links, "size").invoke(links);
+	}
+
+	private static Method method(Object o, String name, Class<?>... parameters)
+			throws Exception {
+		Method m = o.getClass().getDeclaredMethod(name, parameters);
+		m.setAccessible(true);
+		return m;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		new LinkCheck().run();
+	}
+}
@@ -0,0 +1,159 @@
+package mxio.tests;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+
+import mxio.*;
+
+/**
+ * Base of the checks that run a sender and a receiver socket in one JVM, over
+ * the in-process transport, so they run on any box:
+ *
+ * java -Dmxio.transport=local mxio.tests.ShmCheck
+ *
+ * The main() of a check sets the properties it needs before mxio is
+ * loaded, properties given on the command line take precedence. A check
+ * prints OK when it passes, and exits with status 1 when it fails.
+ */
+public abstract class LocalCheck implements MxListener {
+
+	MxSocket sender;
+	MxSocket receiver;
+
+	/** the stream of the last accepted request, guarded by this */
+	private DataInputStream accepted = null;
+	boolean selectable = false;
+
+	LocalCheck() throws MxException {
+		sender = new MxSocket(this);
+		receiver = new MxSocket(this);
+	}
+
+	public final synchronized void newConnection(ConnectionRequest request) {
+		accepted = request.accept(selectable);
+		notifyAll();
+	}
+
+	/**
+	 * Connects the sender socket to the receiver socket.
+	 * @return the output stream, and in is[0] the accepted input stream
+	 */
+	final DataOutputStream connect(DataInputStream[] is) throws IOException {
+		Connection conn = sender.connect(receiver.getMyAddress(), new byte[] {1}, 5000);
+		if(conn == null || conn.getDataOutputStream() == null) {
+			fail("connect failed");
+		}
+		long deadline = System.currentTimeMillis() + 5000;
+		synchronized(this) {
+			while(accepted == null) {
+				long t = deadline - System.currentTimeMillis();
+				if(t <= 0) {
+					fail("connection not accepted");
+				}
+				try {
+					wait(t);
+				} catch (InterruptedException e) {
+					// ignore
+				}
+			}
+			is[0] = accepted;
+			accepted = null;
+		}
+		return conn.getDataOutputStream();
+	}
+
+	/**
+	 * Reads blocks of len bytes written by write(), in a thread of its own.
+	 * The thread records the first problem in errors[0].
+	 */
+	static Thread reader(final DataInputStream is, final int blocks, final int len,
+			final String[] errors) {
+		Thread t = new Thread("reader") {
+			public void run() {
+				try {
+					byte[] data = new byte[len];
+					for(int b = 0; b < blocks; b++) {
+						is.readArray(data, 0, len);
+						for(int i = 0; i < len; i++) {
+							if(data[i] != (byte) (b + i)) {
+								errors[0] = "block " + b + " byte " + i + " corrupt";
+								return;
+							}
+						}
+					}
+					if(is.read() != -1) {
+						errors[0] = "no end of stream after " + blocks + " blocks";
+					}
+					is.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+					errors[0] = e.toString();
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	/**
+	 * Fills data with the contents of block b, as reader() expects them.
+	 */
+	static void fill(byte[] data, int b) {
+		for(int i = 0; i < data.length; i++) {
+			data[i] = (byte) (b + i);
+		}
+	}
+
+	static void join(Thread t, String[] errors) {
+		try {
+			t.join(60000);
+		} catch (InterruptedException e) {
+			// ignore
+		}
+		if(t.isAlive()) {
+			fail(t.getName() + " hangs");
+		}
+		if(errors[0] != null) {
+			fail(errors[0]);
+		}
+	}
+
+	/**
+	 * Reads a field of an mxio object that the API does not show.
+	 */
+	static Object field(Object o, Class<?> c, String name) {
+		try {
+			Field f = c.getDeclaredField(name);
+			f.setAccessible(true);
+			return f.get(o);
+		} catch (Exception e) {
+			fail("no field " + name + " in " + c.getName() + ": " + e);
+			return null;
+		}
+	}
+
+	static void fail(String message) {
+		System.err.println("FAILED: " + message);
+		System.exit(1);
+	}
+
+	/**
+	 * Sets a property of mxio, unless it was given on the command line.
+	 * Only has effect before mxio is loaded.
+	 */
+	static void property(String name, String value) {
+		if(System.getProperty(name) == null) {
+			System.setProperty(name, value);
+		}
+	}
+
+	abstract void check() throws Exception;
+
+	final void run() throws Exception {
+		check();
+		sender.close();
+		receiver.close();
+		System.out.println(getClass().getSimpleName() + " OK");
+		System.exit(0);
+	}
+}
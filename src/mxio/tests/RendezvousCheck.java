@@ -0,0 +1,128 @@
+package mxio.tests;
+
+import mxio.*;
+
+/**
+ * Checks the rendezvous sends of large arrays (mxio.rendezvousthreshold),
+ * on a low latency and on a selectable stream: more arrays than
+ * Config.RENDEZVOUS_SENDS are written before the reader starts, an array is
+ * changed by the writer right after writeArray() returns, arrays are read
+ * element by element and as bytes, and the last array is written just
+ * before the stream is closed.
+ */
+public class RendezvousCheck extends LocalCheck {
+
+	private static final int N = 100000;
+
+	RendezvousCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		check(false);
+		check(true);
+	}
+
+	private void check(boolean selectable) throws Exception {
+		this.selectable = selectable;
+		DataInputStream[] is = new DataInputStream[1];
+		final DataOutputStream os = connect(is);
+		DataInputStream in = is[0];
+		final String[] errors = new String[1];
+		Thread writer = new Thread("writer") {
+			public void run() {
+				try {
+					int[] ints = new int[N];
+					long[] longs = new long[N];
+					short[] shorts = new short[3 * N];
+					for(int i = 0; i < N; i++) {
+						ints[i] = 7 * i;
+						longs[i] = 11L * i;
+					}
+					for(int i = 0; i < shorts.length; i++) {
+						shorts[i] = (short) i;
+					}
+					os.writeByte((byte) 9);
+					os.writeArray(ints, 0, N);
+					os.writeArray(longs, 0, N);
+					os.writeArray(shorts, 0, shorts.length);
+					os.writeArray(ints, 0, N);
+					// the array was copied or sent already
+					ints[0] = -1;
+					os.writeArray(longs, 1, N - 1);
+					os.writeInt(77);
+					os.flush();
+					os.writeArray(longs, 0, N);
+					os.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					errors[0] = e.toString();
+				}
+			}
+		};
+		writer.start();
+		// the writer is ahead of the reader
+		Thread.sleep(200);
+
+		if(in.readByte() != 9) {
+			fail("first byte corrupt");
+		}
+		int[] ints = new int[N];
+		in.readArray(ints, 0, N);
+		for(int i = 0; i < N; i++) {
+			if(ints[i] != 7 * i) {
+				fail("int " + i + " corrupt");
+			}
+		}
+		for(int i = 0; i < N; i++) {
+			if(in.readLong() != 11L * i) {
+				fail("long " + i + " corrupt");
+			}
+		}
+		short[] shorts = new short[3 * N];
+		in.readArray(shorts, 0, shorts.length);
+		for(int i = 0; i < shorts.length; i++) {
+			if(shorts[i] != (short) i) {
+				fail("short " + i + " corrupt");
+			}
+		}
+		byte[] bytes = new byte[4 * N];
+		in.readArray(bytes, 0, bytes.length);
+		for(int i = 0; i < 4; i++) {
+			if(bytes[i] != 0) {
+				fail("array changed after writeArray() returned");
+			}
+		}
+		long[] longs = new long[N];
+		in.readArray(longs, 0, N - 1);
+		for(int i = 0; i < N - 1; i++) {
+			if(longs[i] != 11L * (i + 1)) {
+				fail("long " + i + " of the offset array corrupt");
+			}
+		}
+		if(in.readInt() != 77) {
+			fail("int after the arrays corrupt");
+		}
+		in.readArray(longs, 0, N);
+		if(longs[N - 1] != 11L * (N - 1)) {
+			fail("array written before the close corrupt");
+		}
+		join(writer, errors);
+		if(in.read() != -1) {
+			fail("no end of stream");
+		}
+		in.close();
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		// a shared memory channel copies the arrays
+		property("mxio.shm", "false");
+		new RendezvousCheck().run();
+	}
+}
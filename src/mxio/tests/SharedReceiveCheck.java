@@ -0,0 +1,104 @@
+package mxio.tests;
+
+import mxio.*;
+
+/**
+ * Checks the shared receives of the low latency streams
+ * (mxio.sharedreceive): the reader reads stream a until it went idle, then
+ * reads all of stream b before it reads the rest of a. The messages of a 
+ * that wait in front of the others meanwhile, more than the reader of a has
+ * room for, must not keep the messages of b from its reader.
+ */
+public class SharedReceiveCheck extends LocalCheck {
+
+	SharedReceiveCheck() throws MxException {
+		super();
+	}
+
+	@Override
+	void check() throws Exception {
+		DataInputStream[] is = new DataInputStream[1];
+		final int blocks = 1000;
+		final int len = 100;
+		final String[] errors = new String[1];
+		DataOutputStream a = connect(is);
+		DataInputStream inA = is[0];
+		DataOutputStream b = connect(is);
+		DataInputStream inB = is[0];
+
+		// the receive depth of a grows, and the reader of a waits for the 
+		// rest until a is idle and unposts its receives
+		int first = blocks / 2;
+		Thread writerA = writer(a, blocks, first, len, errors);
+		byte[] data = new byte[len];
+		for(int i = 0; i <= first; i++) {
+			read(inA, data, i);
+		}
+		// the rest of a arrives, unexpected
+		Thread.sleep(500);
+		Thread writerB = writer(b, blocks, blocks, len, errors);
+		Thread reader = reader(inB, blocks, len, errors);
+		join(reader, errors);
+		for(int i = first + 1; i < blocks; i++) {
+			read(inA, data, i);
+		}
+		if(inA.read() != -1) {
+			fail("no end of stream a");
+		}
+		inA.close();
+		join(writerA, errors);
+		join(writerB, errors);
+	}
+
+	private static void read(DataInputStream is, byte[] data, int b) 
+			throws Exception {
+		is.readArray(data, 0, data.length);
+		for(int i = 0; i < data.length; i++) {
+			if(data[i] != (byte) (b + i)) {
+				fail("block " + b + " byte " + i + " corrupt");
+			}
+		}
+	}
+
+	/**
+	 * Writes blocks as reader() expects them, and pauses longer than a reader
+	 * takes to become idle after the first ones.
+	 */
+	private static Thread writer(final DataOutputStream os, final int blocks,
+			final int first, final int len, final String[] errors) {
+		Thread t = new Thread("writer") {
+			public void run() {
+				try {
+					byte[] data = new byte[len];
+					for(int b = 0; b < blocks; b++) {
+						if(b == first) {
+							Thread.sleep(2500);
+						}
+						fill(data, b);
+						os.writeArray(data, 0, len);
+						os.flush();
+					}
+					os.close();
+				} catch (Exception e) {
+					e.printStackTrace();
+					errors[0] = e.toString();
+				}
+			}
+		};
+		t.start();
+		return t;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		property("mxio.transport", "local");
+		// a shared memory channel has no posted receives
+		property("mxio.shm", "false");
+		property("mxio.sharedreceive", "true");
+		property("mxio.receivequeuesize", "4");
+		new SharedReceiveCheck().run();
+	}
+}
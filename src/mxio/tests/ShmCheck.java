@@ -0,0 +1,125 @@
+package mxio.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import mxio.*;
+
+/**
+ * Checks the shared memory channel of two sockets on the same host: the data
+ * arrives intact while the ring wraps around many times, the channel file is
+ * gone once the connection is set up, and the reader refuses files that are
+ * no channel of this process, or of which the slots do not fit its buffers.
+ * The channel files go to a directory of their own.
+ */
+public class ShmCheck extends LocalCheck {
+
+	/** the offset of the slot size in a channel file, see ShmChannel */
+	private static final int LAYOUT = 132;
+
+	private final File directory;
+
+	ShmCheck(File directory) throws MxException {
+		super();
+		this.directory = directory;
+	}
+
+	@Override
+	void check() throws Exception {
+		DataInputStream[] is = new DataInputStream[1];
+		DataOutputStream os = connect(is);
+		if(field(os, DataOutputStreamImpl.class, "channel") == null) {
+			fail("the connection does not use a shared memory channel");
+		}
+		if(channels() != 0) {
+			fail("channel file left in " + directory);
+		}
+
+		// many more messages than slots, some of them fill several slots
+		int blocks = 20000;
+		int len = 3000;
+		String[] errors = new String[1];
+		Thread reader = reader(is[0], blocks, len, errors);
+		byte[] data = new byte[len];
+		for(int b = 0; b < blocks; b++) {
+			fill(data, b);
+			os.writeArray(data, 0, len);
+			if(b % 13 == 0) {
+				os.flush();
+			}
+		}
+		os.close();
+		join(reader, errors);
+
+		Method open = Class.forName("mxio.ShmChannel").getDeclaredMethod(
+				"open", String.class);
+		open.setAccessible(true);
+		File outside = File.createTempFile("mxio-", ".ring");
+		outside.deleteOnExit();
+		refused(open, outside.getPath());
+		refused(open, directory.getPath() + "/../" + directory.getName() + "/../" + outside.getName());
+		refused(open, directory.getPath() + "/mxio-none.ring");
+		File other = new File(directory, "other.ring");
+		other.createNewFile();
+		refused(open, other.getPath());
+
+		// a channel of a writer with other buffers
+		File foreign = new File(directory, "mxio-foreign.ring");
+		RandomAccessFile raf = new RandomAccessFile(foreign, "rw");
+		try {
+			raf.setLength(4 * 1024 * 1024);
+			ByteBuffer slotSize = ByteBuffer.allocate(4).order(ByteOrder.nativeOrder());
+			slotSize.putInt(0, 12345);
+			raf.seek(LAYOUT);
+			raf.write(slotSize.array());
+		} finally {
+			raf.close();
+		}
+		refused(open, foreign.getPath());
+		other.delete();
+		foreign.delete();
+	}
+
+	private static void refused(Method open, String name) throws Exception {
+		try {
+			open.invoke(null, name);
+		} catch (InvocationTargetException e) {
+			if(e.getCause() instanceof IOException) {
+				System.err.println("refused " + name + ": " + e.getCause().getMessage());
+				return;
+			}
+			throw e;
+		}
+		fail("channel " + name + " opened");
+	}
+
+	private int channels() {
+		int n = 0;
+		for(String name : directory.list()) {
+			if(name.startsWith("mxio-") && name.endsWith(".ring")) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @param args
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception {
+		File directory = File.createTempFile("mxio-shm", "");
+		directory.delete();
+		directory.mkdir();
+		directory.deleteOnExit();
+		property("mxio.transport", "local");
+		property("mxio.shm", "true");
+		property("mxio.shm.dir", directory.getPath());
+		new ShmCheck(new File(System.getProperty("mxio.shm.dir"))).run();
+	}
+}